@@ -0,0 +1,167 @@
+package com.torrent;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides whether the tracker takes a request before it touches any swarm.
+ * Every client address has a token bucket, so a client that ignores the
+ * announce interval cannot flood the tracker. When the event loop falls
+ * behind, requests are shed: either the current pass has already kept the
+ * requests read in it waiting too long, or too many wait on other nodes.
+ *
+ * Decisions are made on the event loop only; the counters of turned-away
+ * work may be read from any thread.
+ */
+class AdmissionControl {
+    private static final Logger logger = LoggerFactory.getLogger(AdmissionControl.class);
+
+    enum Decision { ACCEPT, RATE_LIMITED, OVERLOADED }
+
+    private final double tokensPerNano;
+    private final int burst;
+    private final long maxQueueDelayNanos;
+    private final int maxInFlight;
+    private final Map<String, Bucket> buckets = new HashMap<>();
+    private long passStart;
+    private int inFlight;
+
+    private final AtomicLong rateLimited = new AtomicLong();
+    private final AtomicLong overloaded = new AtomicLong();
+    private final AtomicLong throttled = new AtomicLong();
+    private final AtomicLong refusedConnections = new AtomicLong();
+    // Totals at the last report, so each report shows what happened since
+    private long reportedRateLimited;
+    private long reportedOverloaded;
+    private long reportedThrottled;
+    private long reportedRefusedConnections;
+
+    /**
+     * @param requestsPerSecond sustained rate allowed per client address
+     * @param burst             requests a client may send at once after being quiet
+     * @param maxQueueDelayMillis how long requests read in one loop pass may wait
+     *                          behind each other before the rest are shed
+     * @param maxInFlight       requests waiting on other nodes before new ones are shed
+     */
+    AdmissionControl(double requestsPerSecond, int burst, long maxQueueDelayMillis, int maxInFlight) {
+        this.tokensPerNano = requestsPerSecond / 1_000_000_000.0;
+        this.burst = burst;
+        this.maxQueueDelayNanos = maxQueueDelayMillis * 1_000_000;
+        this.maxInFlight = maxInFlight;
+    }
+
+    /** Marks the start of an event-loop pass; the requests read in it queue behind each other. */
+    void startPass(long now) {
+        passStart = now;
+    }
+
+    /** Admits a client request, taking one token from the bucket of {@code ip}. */
+    Decision admit(String ip, long now) {
+        if (isOverloaded(now)) {
+            overloaded.incrementAndGet();
+            return Decision.OVERLOADED;
+        }
+        Bucket bucket = buckets.computeIfAbsent(ip, k -> new Bucket(now));
+        if (!bucket.take(now)) {
+            rateLimited.incrementAndGet();
+            return Decision.RATE_LIMITED;
+        }
+        return Decision.ACCEPT;
+    }
+
+    /** Admits a request another node forwarded; its client was charged there. */
+    Decision admitForwarded(long now) {
+        if (isOverloaded(now)) {
+            overloaded.incrementAndGet();
+            return Decision.OVERLOADED;
+        }
+        return Decision.ACCEPT;
+    }
+
+    private boolean isOverloaded(long now) {
+        return now - passStart > maxQueueDelayNanos || inFlight >= maxInFlight;
+    }
+
+    void onForwardStarted() {
+        inFlight++;
+    }
+
+    void onForwardFinished() {
+        inFlight--;
+    }
+
+    /** An announce that came before {@code min interval} and got no peers. */
+    void onThrottled() {
+        throttled.incrementAndGet();
+    }
+
+    void onConnectionRefused() {
+        refusedConnections.incrementAndGet();
+    }
+
+    /** Forgets clients whose buckets have refilled; a new bucket would be the same. */
+    void evictIdle(long now) {
+        buckets.values().removeIf(bucket -> bucket.refill(now) >= burst);
+    }
+
+    /** Logs the requests turned away since the last report, if any. */
+    void logShedRequests() {
+        long rateLimitedNow = rateLimited.get();
+        long overloadedNow = overloaded.get();
+        long throttledNow = throttled.get();
+        long refusedNow = refusedConnections.get();
+        if (rateLimitedNow != reportedRateLimited || overloadedNow != reportedOverloaded
+            || throttledNow != reportedThrottled || refusedNow != reportedRefusedConnections) {
+            logger.warn("Shed {} rate-limited and {} overload requests, throttled {} announces, refused {} connections",
+                rateLimitedNow - reportedRateLimited, overloadedNow - reportedOverloaded,
+                throttledNow - reportedThrottled, refusedNow - reportedRefusedConnections);
+        }
+        reportedRateLimited = rateLimitedNow;
+        reportedOverloaded = overloadedNow;
+        reportedThrottled = throttledNow;
+        reportedRefusedConnections = refusedNow;
+    }
+
+    long getRateLimited() {
+        return rateLimited.get();
+    }
+
+    long getOverloaded() {
+        return overloaded.get();
+    }
+
+    long getThrottled() {
+        return throttled.get();
+    }
+
+    long getRefusedConnections() {
+        return refusedConnections.get();
+    }
+
+    private class Bucket {
+        private double tokens = burst;
+        private long updated;
+
+        Bucket(long now) {
+            this.updated = now;
+        }
+
+        double refill(long now) {
+            tokens = Math.min(burst, tokens + (now - updated) * tokensPerNano);
+            updated = now;
+            return tokens;
+        }
+
+        boolean take(long now) {
+            if (refill(now) < 1) {
+                return false;
+            }
+            tokens--;
+            return true;
+        }
+    }
+}
@@ -1,13 +1,14 @@
 package com.torrent;
 
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
 
 public class BencodeParser {
     private final ByteArrayInputStream input;
@@ -21,6 +22,7 @@ public class BencodeParser {
     }
 
     private Object parseNext() throws IOException {
+        input.mark(1);
         int nextByte = input.read();
         if (nextByte == -1) {
             throw new IOException("Unexpected end of input");
@@ -102,53 +104,85 @@ public class BencodeParser {
     }
 
     public static byte[] encode(Object obj) {
-        ByteBuffer buffer = ByteBuffer.allocate(1024);
-        encode(obj, buffer);
-        buffer.flip();
-        byte[] result = new byte[buffer.remaining()];
-        buffer.get(result);
-        return result;
+        ByteArrayOutputStream out = new ByteArrayOutputStream(1024);
+        encode(obj, out);
+        return out.toByteArray();
     }
 
-    private static void encode(Object obj, ByteBuffer buffer) {
-        if (obj instanceof Long) {
-            encodeInteger((Long) obj, buffer);
+    /** Appends the encoding of {@code obj}, so large values can be written piece by piece. */
+    static void encode(Object obj, ByteArrayOutputStream out) {
+        if (obj instanceof Encoded) {
+            out.writeBytes(((Encoded) obj).bytes);
+        } else if (obj instanceof Number) {
+            encodeInteger(((Number) obj).longValue(), out);
         } else if (obj instanceof String) {
-            encodeString((String) obj, buffer);
+            encodeString((String) obj, out);
+        } else if (obj instanceof byte[]) {
+            encodeBytes((byte[]) obj, out);
         } else if (obj instanceof List) {
-            encodeList((List<?>) obj, buffer);
+            encodeList((List<?>) obj, out);
         } else if (obj instanceof Map) {
-            encodeDictionary((Map<?, ?>) obj, buffer);
+            encodeDictionary((Map<?, ?>) obj, out);
         }
     }
 
-    private static void encodeInteger(Long value, ByteBuffer buffer) {
-        buffer.put((byte) 'i');
-        buffer.put(value.toString().getBytes(StandardCharsets.ISO_8859_1));
-        buffer.put((byte) 'e');
+    private static void encodeInteger(long value, ByteArrayOutputStream out) {
+        out.write('i');
+        out.writeBytes(Long.toString(value).getBytes(StandardCharsets.ISO_8859_1));
+        out.write('e');
     }
 
-    private static void encodeString(String value, ByteBuffer buffer) {
-        byte[] bytes = value.getBytes(StandardCharsets.ISO_8859_1);
-        buffer.put(Integer.toString(bytes.length).getBytes(StandardCharsets.ISO_8859_1));
-        buffer.put((byte) ':');
-        buffer.put(bytes);
+    /**
+     * Text as a bencoded string holds it: its UTF-8 bytes, one char per byte.
+     * Strings that are not plain ASCII must go through this before encoding.
+     */
+    public static String toRaw(String text) {
+        return new String(text.getBytes(StandardCharsets.UTF_8), StandardCharsets.ISO_8859_1);
     }
 
-    private static void encodeList(List<?> list, ByteBuffer buffer) {
-        buffer.put((byte) 'l');
+    /** The text held by a string parsed as raw bytes, read as UTF-8. */
+    public static String fromRaw(String raw) {
+        return new String(raw.getBytes(StandardCharsets.ISO_8859_1), StandardCharsets.UTF_8);
+    }
+
+    private static void encodeString(String value, ByteArrayOutputStream out) {
+        encodeBytes(value.getBytes(StandardCharsets.ISO_8859_1), out);
+    }
+
+    private static void encodeBytes(byte[] bytes, ByteArrayOutputStream out) {
+        out.writeBytes(Integer.toString(bytes.length).getBytes(StandardCharsets.ISO_8859_1));
+        out.write(':');
+        out.writeBytes(bytes);
+    }
+
+    private static void encodeList(List<?> list, ByteArrayOutputStream out) {
+        out.write('l');
         for (Object item : list) {
-            encode(item, buffer);
+            encode(item, out);
         }
-        buffer.put((byte) 'e');
+        out.write('e');
     }
 
-    private static void encodeDictionary(Map<?, ?> dict, ByteBuffer buffer) {
-        buffer.put((byte) 'd');
+    private static void encodeDictionary(Map<?, ?> dict, ByteArrayOutputStream out) {
+        // Keys must be emitted in raw byte order for info hashes to be reproducible
+        Map<String, Object> sorted = new TreeMap<>();
         for (Map.Entry<?, ?> entry : dict.entrySet()) {
-            encodeString(entry.getKey().toString(), buffer);
-            encode(entry.getValue(), buffer);
+            sorted.put(entry.getKey().toString(), entry.getValue());
+        }
+        out.write('d');
+        for (Map.Entry<String, Object> entry : sorted.entrySet()) {
+            encodeString(entry.getKey(), out);
+            encode(entry.getValue(), out);
+        }
+        out.write('e');
+    }
+
+    /** A value that is already bencoded and is written as it is. */
+    static final class Encoded {
+        private final byte[] bytes;
+
+        Encoded(byte[] bytes) {
+            this.bytes = bytes;
         }
-        buffer.put((byte) 'e');
     }
-} 
\ No newline at end of file
+}
@@ -0,0 +1,69 @@
+package com.torrent;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Recycles direct buffers in power-of-two size classes so the wire path does
+ * not allocate per message. Buffers larger than the biggest class are
+ * allocated on demand and dropped on release.
+ */
+public class BufferPool {
+    public static final BufferPool SHARED = new BufferPool(64, 256 * 1024, 256);
+
+    private final int minSize;
+    private final int maxSize;
+    private final int maxPooledPerClass;
+    private final Queue<ByteBuffer>[] classes;
+    private final AtomicIntegerArray pooled;
+
+    @SuppressWarnings("unchecked")
+    public BufferPool(int minSize, int maxSize, int maxPooledPerClass) {
+        this.minSize = Integer.highestOneBit(minSize);
+        this.maxSize = maxSize;
+        this.maxPooledPerClass = maxPooledPerClass;
+        int count = classIndex(maxSize) + 1;
+        this.classes = (Queue<ByteBuffer>[]) new Queue<?>[count];
+        for (int i = 0; i < count; i++) {
+            classes[i] = new ConcurrentLinkedQueue<>();
+        }
+        this.pooled = new AtomicIntegerArray(count);
+    }
+
+    /** Returns a cleared buffer with at least {@code size} bytes of capacity. */
+    public ByteBuffer acquire(int size) {
+        if (size > maxSize) {
+            return ByteBuffer.allocateDirect(size);
+        }
+        int index = classIndex(size);
+        ByteBuffer buffer = classes[index].poll();
+        if (buffer == null) {
+            return ByteBuffer.allocateDirect(minSize << index);
+        }
+        pooled.decrementAndGet(index);
+        buffer.clear();
+        return buffer;
+    }
+
+    public void release(ByteBuffer buffer) {
+        int capacity = buffer.capacity();
+        if (!buffer.isDirect() || capacity > maxSize || capacity < minSize || Integer.bitCount(capacity) != 1) {
+            return;
+        }
+        int index = classIndex(capacity);
+        if (pooled.incrementAndGet(index) <= maxPooledPerClass) {
+            classes[index].offer(buffer);
+        } else {
+            pooled.decrementAndGet(index);
+        }
+    }
+
+    private int classIndex(int size) {
+        if (size <= minSize) {
+            return 0;
+        }
+        return 32 - Integer.numberOfLeadingZeros(size - 1) - Integer.numberOfTrailingZeros(minSize);
+    }
+}
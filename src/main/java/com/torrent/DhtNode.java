@@ -0,0 +1,542 @@
+package com.torrent;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Mainline DHT node (BEP 5) speaking KRPC over a single {@link DatagramChannel}.
+ *
+ * Incoming queries are answered on the receive thread. Lookups are iterative:
+ * each round queries up to {@link #ALPHA} of the closest unqueried nodes in
+ * parallel and stops once the {@link DhtRoutingTable#K} closest responsive
+ * nodes have all been asked, or the query/time budget runs out.
+ */
+public class DhtNode {
+    private static final Logger logger = LoggerFactory.getLogger(DhtNode.class);
+    private static final int ALPHA = 8;
+    private static final int MAX_LOOKUP_QUERIES = 128;
+    private static final long QUERY_TIMEOUT_MILLIS = 2000;
+    private static final long LOOKUP_TIMEOUT_MILLIS = 15000;
+    private static final long TOKEN_ROTATION_MILLIS = 5 * 60 * 1000;
+    private static final long PEER_TTL_MILLIS = 30 * 60 * 1000;
+    private static final int MAX_STORED_PEERS = 1000;
+    private static final int MAX_RETURNED_PEERS = 50;
+    private static final int COMPACT_NODE_LENGTH = 26;
+    private static final int MAX_PACKET_SIZE = 65536;
+
+    private final DatagramChannel channel;
+    private final byte[] nodeId = new byte[20];
+    private final DhtRoutingTable routingTable;
+    private final Map<String, PendingQuery> pendingQueries = new ConcurrentHashMap<>();
+    private final Map<String, Map<InetSocketAddress, Long>> peerStore = new ConcurrentHashMap<>();
+    private final AtomicInteger nextTransaction = new AtomicInteger(0);
+    private final SecureRandom random = new SecureRandom();
+    private byte[] tokenSecret = new byte[16];
+    private byte[] previousTokenSecret = new byte[16];
+    private long tokenRotatedAt;
+    private Thread receiver;
+    private volatile boolean running;
+
+    public DhtNode(int port) throws IOException {
+        random.nextBytes(nodeId);
+        random.nextBytes(tokenSecret);
+        previousTokenSecret = tokenSecret.clone();
+        tokenRotatedAt = System.currentTimeMillis();
+        this.routingTable = new DhtRoutingTable(nodeId);
+        this.channel = DatagramChannel.open();
+        channel.bind(new InetSocketAddress(port));
+    }
+
+    public void start() {
+        running = true;
+        receiver = new Thread(this::receiveLoop, "dht-receiver");
+        receiver.setDaemon(true);
+        receiver.start();
+        logger.info("DHT node listening on UDP port {}", getPort());
+    }
+
+    public int getPort() {
+        try {
+            return ((InetSocketAddress) channel.getLocalAddress()).getPort();
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+
+    public byte[] getNodeId() {
+        return nodeId;
+    }
+
+    public DhtRoutingTable getRoutingTable() {
+        return routingTable;
+    }
+
+    /** Contacts the given nodes and then looks up our own id to fill the routing table. */
+    public void bootstrap(List<InetSocketAddress> nodes) {
+        List<CompletableFuture<Map<String, Object>>> responses = new ArrayList<>();
+        for (InetSocketAddress node : nodes) {
+            Map<String, Object> args = new HashMap<>();
+            args.put("target", toString(nodeId));
+            responses.add(query(node, "find_node", args).thenApply(response -> {
+                addCompactNodes(response.get("nodes"), null);
+                return response;
+            }));
+        }
+        for (CompletableFuture<Map<String, Object>> response : responses) {
+            try {
+                response.join();
+            } catch (RuntimeException e) {
+                // Unreachable bootstrap node
+            }
+        }
+        lookup(nodeId, false);
+        logger.info("DHT bootstrap complete, {} nodes in routing table", routingTable.size());
+    }
+
+    /** Learns a node from outside the DHT, e.g. a peer's PORT message. */
+    public void ping(InetSocketAddress address) {
+        query(address, "ping", new HashMap<>());
+    }
+
+    public List<TrackerResponse.PeerInfo> getPeers(byte[] infoHash) {
+        return toPeerInfo(lookup(infoHash, true).peers);
+    }
+
+    /** Finds peers for the torrent and announces ourselves to the closest nodes that gave us a token. */
+    public List<TrackerResponse.PeerInfo> announce(byte[] infoHash, int port) {
+        LookupResult result = lookup(infoHash, true);
+        for (Candidate candidate : result.closest) {
+            if (candidate.token == null) {
+                continue;
+            }
+            Map<String, Object> args = new HashMap<>();
+            args.put("info_hash", toString(infoHash));
+            args.put("port", (long) port);
+            args.put("token", candidate.token);
+            query(candidate.address, "announce_peer", args);
+        }
+        return toPeerInfo(result.peers);
+    }
+
+    public void stop() {
+        running = false;
+        try {
+            channel.close();
+        } catch (IOException e) {
+            logger.error("Error closing DHT socket", e);
+        }
+    }
+
+    private LookupResult lookup(byte[] target, boolean getPeers) {
+        long deadline = System.currentTimeMillis() + LOOKUP_TIMEOUT_MILLIS;
+        Map<InetSocketAddress, Candidate> seen = new HashMap<>();
+        List<Candidate> candidates = new ArrayList<>();
+        for (DhtRoutingTable.Node node : routingTable.closest(target, DhtRoutingTable.K * 2)) {
+            Candidate candidate = new Candidate(node.getId(), node.getAddress());
+            seen.put(candidate.address, candidate);
+            candidates.add(candidate);
+        }
+        Set<String> peers = new LinkedHashSet<>();
+        int queries = 0;
+
+        while (queries < MAX_LOOKUP_QUERIES && System.currentTimeMillis() < deadline) {
+            candidates.sort((a, b) -> DhtRoutingTable.compareDistance(a.id, b.id, target));
+            List<Candidate> batch = new ArrayList<>();
+            int considered = 0;
+            for (Candidate candidate : candidates) {
+                if (candidate.failed) {
+                    continue;
+                }
+                if (considered++ >= DhtRoutingTable.K) {
+                    break;
+                }
+                if (!candidate.queried && batch.size() < ALPHA) {
+                    batch.add(candidate);
+                }
+            }
+            if (batch.isEmpty()) {
+                break;
+            }
+
+            Map<Candidate, CompletableFuture<Map<String, Object>>> inFlight = new LinkedHashMap<>();
+            for (Candidate candidate : batch) {
+                candidate.queried = true;
+                queries++;
+                Map<String, Object> args = new HashMap<>();
+                args.put(getPeers ? "info_hash" : "target", toString(target));
+                inFlight.put(candidate, query(candidate.address, getPeers ? "get_peers" : "find_node", args));
+            }
+            for (Map.Entry<Candidate, CompletableFuture<Map<String, Object>>> entry : inFlight.entrySet()) {
+                Candidate candidate = entry.getKey();
+                Map<String, Object> response;
+                try {
+                    response = entry.getValue().join();
+                } catch (RuntimeException e) {
+                    candidate.failed = true;
+                    continue;
+                }
+                candidate.responded = true;
+                if (response.get("token") instanceof String) {
+                    candidate.token = (String) response.get("token");
+                }
+                if (response.get("values") instanceof List) {
+                    for (Object value : (List<?>) response.get("values")) {
+                        if (value instanceof String) {
+                            for (TrackerResponse.PeerInfo peer : TrackerResponse.parseCompactPeers((String) value)) {
+                                peers.add(peer.getIp() + ":" + peer.getPort());
+                            }
+                        }
+                    }
+                }
+                for (Candidate found : addCompactNodes(response.get("nodes"), seen)) {
+                    candidates.add(found);
+                }
+            }
+        }
+
+        LookupResult result = new LookupResult();
+        result.peers = peers;
+        candidates.sort((a, b) -> DhtRoutingTable.compareDistance(a.id, b.id, target));
+        for (Candidate candidate : candidates) {
+            if (candidate.responded && result.closest.size() < DhtRoutingTable.K) {
+                result.closest.add(candidate);
+            }
+        }
+        logger.debug("DHT lookup finished after {} queries, {} peers", queries, peers.size());
+        return result;
+    }
+
+    /** Parses compact node info, adds it to the routing table and returns nodes not yet in {@code seen}. */
+    private List<Candidate> addCompactNodes(Object nodes, Map<InetSocketAddress, Candidate> seen) {
+        List<Candidate> added = new ArrayList<>();
+        if (!(nodes instanceof String)) {
+            return added;
+        }
+        byte[] bytes = ((String) nodes).getBytes(StandardCharsets.ISO_8859_1);
+        for (int i = 0; i + COMPACT_NODE_LENGTH <= bytes.length; i += COMPACT_NODE_LENGTH) {
+            byte[] id = Arrays.copyOfRange(bytes, i, i + 20);
+            if (Arrays.equals(id, nodeId)) {
+                continue;
+            }
+            InetSocketAddress address;
+            try {
+                address = new InetSocketAddress(InetAddress.getByAddress(Arrays.copyOfRange(bytes, i + 20, i + 24)),
+                    ((bytes[i + 24] & 0xFF) << 8) | (bytes[i + 25] & 0xFF));
+            } catch (IOException e) {
+                continue;
+            }
+            if (address.getPort() == 0) {
+                continue;
+            }
+            if (seen != null && !seen.containsKey(address)) {
+                Candidate candidate = new Candidate(id, address);
+                seen.put(address, candidate);
+                added.add(candidate);
+            }
+        }
+        return added;
+    }
+
+    private CompletableFuture<Map<String, Object>> query(InetSocketAddress address, String method, Map<String, Object> args) {
+        String transactionId = toString(new byte[] {
+            (byte) (nextTransaction.get() >>> 8), (byte) nextTransaction.getAndIncrement() });
+        args.put("id", toString(nodeId));
+        Map<String, Object> message = new HashMap<>();
+        message.put("t", transactionId);
+        message.put("y", "q");
+        message.put("q", method);
+        message.put("a", args);
+
+        CompletableFuture<Map<String, Object>> future = new CompletableFuture<>();
+        pendingQueries.put(transactionId, new PendingQuery(address, future));
+        try {
+            channel.send(ByteBuffer.wrap(BencodeParser.encode(message)), address);
+        } catch (IOException e) {
+            future.completeExceptionally(e);
+        }
+        return future.orTimeout(QUERY_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS).whenComplete((response, error) -> {
+            pendingQueries.remove(transactionId);
+            if (error != null) {
+                routingTable.markFailed(address);
+            }
+        });
+    }
+
+    private void receiveLoop() {
+        ByteBuffer buffer = ByteBuffer.allocate(MAX_PACKET_SIZE);
+        while (running) {
+            try {
+                buffer.clear();
+                SocketAddress source = channel.receive(buffer);
+                if (!(source instanceof InetSocketAddress)) {
+                    continue;
+                }
+                buffer.flip();
+                byte[] data = new byte[buffer.remaining()];
+                buffer.get(data);
+                handlePacket(data, (InetSocketAddress) source);
+            } catch (ClosedChannelException e) {
+                break;
+            } catch (IOException e) {
+                logger.warn("Error receiving DHT packet", e);
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void handlePacket(byte[] data, InetSocketAddress source) {
+        Map<String, Object> message;
+        try {
+            message = (Map<String, Object>) new BencodeParser(data).parse();
+        } catch (IOException | RuntimeException e) {
+            logger.debug("Malformed DHT packet from {}", source);
+            return;
+        }
+        Object type = message.get("y");
+        Object transactionId = message.get("t");
+        if (!(transactionId instanceof String)) {
+            return;
+        }
+        if ("q".equals(type)) {
+            handleQuery(message, (String) transactionId, source);
+        } else if ("r".equals(type) || "e".equals(type)) {
+            PendingQuery pending = pendingQueries.get(transactionId);
+            if (pending == null || !pending.address.equals(source)) {
+                return;
+            }
+            if ("e".equals(type)) {
+                pending.future.completeExceptionally(new IOException("DHT error from " + source + ": " + message.get("e")));
+                return;
+            }
+            Object response = message.get("r");
+            if (!(response instanceof Map)) {
+                pending.future.completeExceptionally(new IOException("Malformed DHT response"));
+                return;
+            }
+            Map<String, Object> body = (Map<String, Object>) response;
+            if (body.get("id") instanceof String) {
+                routingTable.add(fromString((String) body.get("id")), source);
+            }
+            pending.future.complete(body);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void handleQuery(Map<String, Object> message, String transactionId, InetSocketAddress source) {
+        Object method = message.get("q");
+        Object argsObject = message.get("a");
+        if (!(argsObject instanceof Map) || !(((Map<?, ?>) argsObject).get("id") instanceof String)) {
+            sendError(transactionId, source, 203, "Protocol Error");
+            return;
+        }
+        Map<String, Object> args = (Map<String, Object>) argsObject;
+        byte[] senderId = fromString((String) args.get("id"));
+        if (senderId.length != 20) {
+            sendError(transactionId, source, 203, "Protocol Error");
+            return;
+        }
+        routingTable.add(senderId, source);
+
+        Map<String, Object> response = new HashMap<>();
+        response.put("id", toString(nodeId));
+        if ("ping".equals(method)) {
+            // Only the id is returned
+        } else if ("find_node".equals(method) && args.get("target") instanceof String) {
+            response.put("nodes", compactNodes(fromString((String) args.get("target"))));
+        } else if ("get_peers".equals(method) && args.get("info_hash") instanceof String) {
+            String infoHash = (String) args.get("info_hash");
+            response.put("token", createToken(source.getAddress(), tokenSecret()));
+            List<String> values = storedPeers(infoHash);
+            if (!values.isEmpty()) {
+                response.put("values", values);
+            }
+            response.put("nodes", compactNodes(fromString(infoHash)));
+        } else if ("announce_peer".equals(method) && args.get("info_hash") instanceof String
+                && args.get("token") instanceof String) {
+            if (!isValidToken((String) args.get("token"), source.getAddress())) {
+                sendError(transactionId, source, 203, "Bad token");
+                return;
+            }
+            boolean impliedPort = args.get("implied_port") instanceof Long && (Long) args.get("implied_port") != 0;
+            int port = impliedPort || !(args.get("port") instanceof Long)
+                ? source.getPort() : ((Long) args.get("port")).intValue();
+            storePeer((String) args.get("info_hash"), new InetSocketAddress(source.getAddress(), port));
+        } else {
+            sendError(transactionId, source, 204, "Method Unknown");
+            return;
+        }
+
+        Map<String, Object> reply = new HashMap<>();
+        reply.put("t", transactionId);
+        reply.put("y", "r");
+        reply.put("r", response);
+        send(reply, source);
+    }
+
+    private void sendError(String transactionId, InetSocketAddress destination, long code, String text) {
+        Map<String, Object> reply = new HashMap<>();
+        reply.put("t", transactionId);
+        reply.put("y", "e");
+        reply.put("e", List.of(code, text));
+        send(reply, destination);
+    }
+
+    private void send(Map<String, Object> message, InetSocketAddress destination) {
+        try {
+            channel.send(ByteBuffer.wrap(BencodeParser.encode(message)), destination);
+        } catch (IOException e) {
+            logger.debug("Error sending DHT message to {}", destination, e);
+        }
+    }
+
+    private String compactNodes(byte[] target) {
+        ByteBuffer buffer = ByteBuffer.allocate(DhtRoutingTable.K * COMPACT_NODE_LENGTH);
+        for (DhtRoutingTable.Node node : routingTable.closest(target, DhtRoutingTable.K)) {
+            byte[] address = node.getAddress().getAddress().getAddress();
+            if (address.length != 4) {
+                continue;
+            }
+            buffer.put(node.getId());
+            buffer.put(address);
+            buffer.putShort((short) node.getAddress().getPort());
+        }
+        return new String(buffer.array(), 0, buffer.position(), StandardCharsets.ISO_8859_1);
+    }
+
+    private void storePeer(String infoHash, InetSocketAddress peer) {
+        Map<InetSocketAddress, Long> peers = peerStore.computeIfAbsent(infoHash, k -> new ConcurrentHashMap<>());
+        if (peers.size() < MAX_STORED_PEERS || peers.containsKey(peer)) {
+            peers.put(peer, System.currentTimeMillis());
+        }
+    }
+
+    private List<String> storedPeers(String infoHash) {
+        List<String> values = new ArrayList<>();
+        Map<InetSocketAddress, Long> peers = peerStore.get(infoHash);
+        if (peers == null) {
+            return values;
+        }
+        long expiry = System.currentTimeMillis() - PEER_TTL_MILLIS;
+        Iterator<Map.Entry<InetSocketAddress, Long>> it = peers.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<InetSocketAddress, Long> entry = it.next();
+            if (entry.getValue() < expiry) {
+                it.remove();
+                continue;
+            }
+            byte[] address = entry.getKey().getAddress().getAddress();
+            if (address.length == 4 && values.size() < MAX_RETURNED_PEERS) {
+                ByteBuffer compact = ByteBuffer.allocate(6);
+                compact.put(address);
+                compact.putShort((short) entry.getKey().getPort());
+                values.add(new String(compact.array(), StandardCharsets.ISO_8859_1));
+            }
+        }
+        return values;
+    }
+
+    private synchronized byte[] tokenSecret() {
+        if (System.currentTimeMillis() - tokenRotatedAt > TOKEN_ROTATION_MILLIS) {
+            previousTokenSecret = tokenSecret;
+            tokenSecret = new byte[16];
+            random.nextBytes(tokenSecret);
+            tokenRotatedAt = System.currentTimeMillis();
+        }
+        return tokenSecret;
+    }
+
+    /** Tokens are valid for the current and the previous secret, i.e. 5 to 10 minutes. */
+    private boolean isValidToken(String token, InetAddress address) {
+        byte[] current = tokenSecret();
+        byte[] previous;
+        synchronized (this) {
+            previous = previousTokenSecret;
+        }
+        return token.equals(createToken(address, current)) || token.equals(createToken(address, previous));
+    }
+
+    private static String createToken(InetAddress address, byte[] secret) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            digest.update(secret);
+            digest.update(address.getAddress());
+            return toString(Arrays.copyOf(digest.digest(), 8));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static List<TrackerResponse.PeerInfo> toPeerInfo(Set<String> peers) {
+        List<TrackerResponse.PeerInfo> result = new ArrayList<>();
+        for (String peer : peers) {
+            int separator = peer.lastIndexOf(':');
+            TrackerResponse.PeerInfo info = new TrackerResponse.PeerInfo();
+            info.setIp(peer.substring(0, separator));
+            info.setPort(Integer.parseInt(peer.substring(separator + 1)));
+            result.add(info);
+        }
+        return result;
+    }
+
+    private static String toString(byte[] bytes) {
+        return new String(bytes, StandardCharsets.ISO_8859_1);
+    }
+
+    private static byte[] fromString(String value) {
+        return value.getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    private static class PendingQuery {
+        private final InetSocketAddress address;
+        private final CompletableFuture<Map<String, Object>> future;
+
+        PendingQuery(InetSocketAddress address, CompletableFuture<Map<String, Object>> future) {
+            this.address = address;
+            this.future = future;
+        }
+    }
+
+    private static class Candidate {
+        private final byte[] id;
+        private final InetSocketAddress address;
+        private boolean queried;
+        private boolean responded;
+        private boolean failed;
+        private String token;
+
+        Candidate(byte[] id, InetSocketAddress address) {
+            this.id = id;
+            this.address = address;
+        }
+    }
+
+    private static class LookupResult {
+        private Set<String> peers = new LinkedHashSet<>();
+        private final List<Candidate> closest = new ArrayList<>();
+    }
+}
@@ -0,0 +1,140 @@
+package com.torrent;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * Kademlia routing table (BEP 5). Bucket {@code i} holds nodes whose id shares
+ * exactly {@code i} leading bits with the local id, which is equivalent to only
+ * ever splitting the bucket that covers our own id. Each bucket keeps up to
+ * {@link #K} nodes in least-recently-seen order.
+ */
+public class DhtRoutingTable {
+    public static final int K = 8;
+    private static final int ID_BITS = 160;
+    private static final int MAX_FAILURES = 2;
+
+    private final byte[] localId;
+    private final List<LinkedList<Node>> buckets = new ArrayList<>(ID_BITS);
+
+    public DhtRoutingTable(byte[] localId) {
+        this.localId = localId;
+        for (int i = 0; i < ID_BITS; i++) {
+            buckets.add(new LinkedList<>());
+        }
+    }
+
+    public byte[] getLocalId() {
+        return localId;
+    }
+
+    /**
+     * Records a node we heard from. Known nodes move to the tail of their bucket;
+     * a new node joins if the bucket has room or can replace a node that has
+     * stopped answering, otherwise the long-lived nodes are kept.
+     */
+    public synchronized void add(byte[] id, InetSocketAddress address) {
+        int index = bucketIndex(id);
+        if (index < 0) {
+            return;
+        }
+        LinkedList<Node> bucket = buckets.get(index);
+        Iterator<Node> it = bucket.iterator();
+        while (it.hasNext()) {
+            Node node = it.next();
+            if (java.util.Arrays.equals(node.id, id) || node.address.equals(address)) {
+                it.remove();
+                bucket.addLast(new Node(id, address));
+                return;
+            }
+        }
+        if (bucket.size() < K) {
+            bucket.addLast(new Node(id, address));
+            return;
+        }
+        for (it = bucket.iterator(); it.hasNext(); ) {
+            if (it.next().failures >= MAX_FAILURES) {
+                it.remove();
+                bucket.addLast(new Node(id, address));
+                return;
+            }
+        }
+    }
+
+    public synchronized void markFailed(InetSocketAddress address) {
+        for (LinkedList<Node> bucket : buckets) {
+            for (Node node : bucket) {
+                if (node.address.equals(address)) {
+                    node.failures++;
+                    return;
+                }
+            }
+        }
+    }
+
+    /** Returns up to {@code count} good nodes ordered by XOR distance to {@code target}. */
+    public synchronized List<Node> closest(byte[] target, int count) {
+        List<Node> all = new ArrayList<>();
+        for (LinkedList<Node> bucket : buckets) {
+            for (Node node : bucket) {
+                if (node.failures < MAX_FAILURES) {
+                    all.add(node);
+                }
+            }
+        }
+        all.sort((a, b) -> compareDistance(a.id, b.id, target));
+        return new ArrayList<>(all.subList(0, Math.min(count, all.size())));
+    }
+
+    public synchronized int size() {
+        int size = 0;
+        for (LinkedList<Node> bucket : buckets) {
+            size += bucket.size();
+        }
+        return size;
+    }
+
+    private int bucketIndex(byte[] id) {
+        for (int i = 0; i < localId.length; i++) {
+            int diff = (localId[i] ^ id[i]) & 0xFF;
+            if (diff != 0) {
+                return i * 8 + Integer.numberOfLeadingZeros(diff) - 24;
+            }
+        }
+        return -1;
+    }
+
+    /** Orders {@code a} and {@code b} by their XOR distance to {@code target}. */
+    public static int compareDistance(byte[] a, byte[] b, byte[] target) {
+        for (int i = 0; i < target.length; i++) {
+            int da = (a[i] ^ target[i]) & 0xFF;
+            int db = (b[i] ^ target[i]) & 0xFF;
+            if (da != db) {
+                return Integer.compare(da, db);
+            }
+        }
+        return 0;
+    }
+
+    public static class Node {
+        private final byte[] id;
+        private final InetSocketAddress address;
+        private int failures;
+
+        public Node(byte[] id, InetSocketAddress address) {
+            this.id = id;
+            this.address = address;
+        }
+
+        public byte[] getId() {
+            return id;
+        }
+
+        public InetSocketAddress getAddress() {
+            return address;
+        }
+    }
+}
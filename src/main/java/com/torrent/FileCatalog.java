@@ -0,0 +1,116 @@
+package com.torrent;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * The files published on the tracker, indexed by name for the list action.
+ * Files sit in a sorted map keyed by lower-cased name and info hash, so the
+ * page after a cursor, or the files under a name prefix, is a range of the
+ * map: a page costs a logarithmic seek plus its own size, however large the
+ * catalog. A cursor is the key of the last file looked at, so it stays valid
+ * while files come and go.
+ *
+ * A substring can match anywhere in the range, so a search looks at no more
+ * than {@code maxScanned} files per page and hands back a cursor to go on
+ * from; such a page may hold fewer matches than asked for, or none.
+ *
+ * Not thread-safe; the tracker uses it from its event loop only.
+ */
+class FileCatalog {
+    private final int maxScanned;
+    private final Map<String, TrackerServer.FileInfo> byInfoHash = new HashMap<>();
+    private final NavigableMap<String, TrackerServer.FileInfo> byName = new TreeMap<>();
+
+    FileCatalog(int maxScanned) {
+        this.maxScanned = maxScanned;
+    }
+
+    /** Adds a file, replacing one with the same info hash. */
+    void put(TrackerServer.FileInfo file) {
+        TrackerServer.FileInfo previous = byInfoHash.put(file.getInfoHash(), file);
+        if (previous != null) {
+            byName.remove(key(previous.getFileName(), previous.getInfoHash()));
+        }
+        byName.put(key(file.getFileName(), file.getInfoHash()), file);
+    }
+
+    TrackerServer.FileInfo remove(String infoHash) {
+        TrackerServer.FileInfo file = byInfoHash.remove(infoHash);
+        if (file != null) {
+            byName.remove(key(file.getFileName(), file.getInfoHash()));
+        }
+        return file;
+    }
+
+    Set<String> infoHashes() {
+        return Collections.unmodifiableSet(byInfoHash.keySet());
+    }
+
+    /**
+     * Up to {@code limit} files in name order after {@code cursor} (null for
+     * the first page), optionally only names starting with {@code prefix} or
+     * containing {@code search}, both ignoring case.
+     */
+    Page page(String cursor, String prefix, String search, int limit) {
+        NavigableMap<String, TrackerServer.FileInfo> range = byName;
+        if (prefix != null && !prefix.isEmpty()) {
+            String from = lower(prefix);
+            range = range.subMap(from, true, from + Character.MAX_VALUE, false);
+        }
+        if (cursor != null) {
+            range = range.tailMap(cursor, false);
+        }
+        String needle = search == null || search.isEmpty() ? null : lower(search);
+        // size() of a range view walks the whole range
+        List<TrackerServer.FileInfo> files = new ArrayList<>(Math.min(limit, 64));
+        String last = null;
+        int scanned = 0;
+        for (Map.Entry<String, TrackerServer.FileInfo> entry : range.entrySet()) {
+            if (files.size() == limit || scanned == maxScanned) {
+                return new Page(files, last);
+            }
+            scanned++;
+            last = entry.getKey();
+            if (needle == null || lower(entry.getValue().getFileName()).contains(needle)) {
+                files.add(entry.getValue());
+            }
+        }
+        return new Page(files, null);
+    }
+
+    /** The sort key of a file, which is also the cursor after it. */
+    static String key(String fileName, String infoHash) {
+        return lower(fileName) + '\0' + infoHash;
+    }
+
+    private static String lower(String s) {
+        return s.toLowerCase(Locale.ROOT);
+    }
+
+    static class Page {
+        private final List<TrackerServer.FileInfo> files;
+        private final String next;
+
+        Page(List<TrackerServer.FileInfo> files, String next) {
+            this.files = files;
+            this.next = next;
+        }
+
+        List<TrackerServer.FileInfo> getFiles() {
+            return files;
+        }
+
+        /** The cursor for the following page, or null if this is the last. */
+        String getNext() {
+            return next;
+        }
+    }
+}
@@ -0,0 +1,316 @@
+package com.torrent;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Incremental HTTP/1.1 request parser for the tracker. It works directly on a
+ * connection's read buffer: a request head that is not complete yet is
+ * resumed where the last scan stopped, and pipelined requests are taken off
+ * the buffer one at a time. Header names are matched byte by byte against the
+ * few the tracker cares about, so ordinary headers never become strings.
+ */
+class HttpRequestParser {
+    private static final byte[] GET = ascii("GET");
+    private static final byte[] HTTP_1_0 = ascii("HTTP/1.0");
+    private static final byte[] HTTP_1_1 = ascii("HTTP/1.1");
+    private static final byte[] CONNECTION = ascii("connection");
+    private static final byte[] CONTENT_LENGTH = ascii("content-length");
+    private static final byte[] TRANSFER_ENCODING = ascii("transfer-encoding");
+    private static final byte[] FORWARDED_FOR = ascii("x-forwarded-for");
+    private static final byte[] CLOSE = ascii("close");
+    private static final byte[] KEEP_ALIVE = ascii("keep-alive");
+
+    private final int maxRequestBytes;
+    // Bytes of the pending request already searched for the end of its head
+    private int scanned;
+
+    HttpRequestParser(int maxRequestBytes) {
+        this.maxRequestBytes = maxRequestBytes;
+    }
+
+    /**
+     * Takes the next complete request off {@code buffer}, which is in read
+     * mode. Returns null and leaves the buffer untouched if more bytes are
+     * needed.
+     *
+     * @throws IOException if the request is malformed or too large
+     */
+    Request parse(ByteBuffer buffer) throws IOException {
+        int start = buffer.position();
+        int headEnd = findHeadEnd(buffer, start);
+        if (headEnd < 0) {
+            if (buffer.remaining() >= maxRequestBytes) {
+                throw new IOException("Request head too large");
+            }
+            return null;
+        }
+        Request request = parseHead(buffer, start, headEnd);
+        // Head and body must fit the buffer together, or the request could never complete
+        if (headEnd - start + request.contentLength > maxRequestBytes) {
+            throw new IOException("Request too large");
+        }
+        // A body is not used by any tracker request but must be skipped to find the next one
+        if (headEnd + request.contentLength > buffer.limit()) {
+            return null;
+        }
+        buffer.position(headEnd + (int) request.contentLength);
+        scanned = 0;
+        return request;
+    }
+
+    /** Returns the index just past the blank line ending the head, or -1. */
+    private int findHeadEnd(ByteBuffer buffer, int start) {
+        int limit = buffer.limit();
+        for (int i = start + scanned; i < limit; i++) {
+            if (buffer.get(i) != '\n') {
+                continue;
+            }
+            // Bare LF line endings are accepted as well as CRLF
+            if (i + 1 < limit && buffer.get(i + 1) == '\n') {
+                return i + 2;
+            }
+            if (i + 2 < limit && buffer.get(i + 1) == '\r' && buffer.get(i + 2) == '\n') {
+                return i + 3;
+            }
+        }
+        // The last two bytes may begin the terminator
+        scanned = Math.max(0, limit - start - 2);
+        return -1;
+    }
+
+    private Request parseHead(ByteBuffer buffer, int start, int end) throws IOException {
+        Request request = new Request();
+        int lineEnd = lineEnd(buffer, start, end);
+        int contentEnd = trimCr(buffer, start, lineEnd);
+        int methodEnd = indexOf(buffer, start, contentEnd, (byte) ' ');
+        int targetEnd = methodEnd < 0 ? -1 : indexOf(buffer, methodEnd + 1, contentEnd, (byte) ' ');
+        if (targetEnd < 0 || targetEnd == methodEnd + 1) {
+            throw new IOException("Malformed request line");
+        }
+        request.get = equals(buffer, start, methodEnd, GET, false);
+        request.target = copy(buffer, methodEnd + 1, targetEnd);
+        if (equals(buffer, targetEnd + 1, contentEnd, HTTP_1_1, false)) {
+            request.keepAlive = true;
+        } else if (!equals(buffer, targetEnd + 1, contentEnd, HTTP_1_0, false)) {
+            throw new IOException("Unsupported HTTP version");
+        }
+
+        for (int line = lineEnd + 1; line < end; line = lineEnd + 1) {
+            lineEnd = lineEnd(buffer, line, end);
+            contentEnd = trimCr(buffer, line, lineEnd);
+            if (contentEnd == line) {
+                break;
+            }
+            int colon = indexOf(buffer, line, contentEnd, (byte) ':');
+            if (colon < 0) {
+                throw new IOException("Malformed header");
+            }
+            int value = colon + 1;
+            while (value < contentEnd && (buffer.get(value) == ' ' || buffer.get(value) == '\t')) {
+                value++;
+            }
+            int valueEnd = contentEnd;
+            while (valueEnd > value && (buffer.get(valueEnd - 1) == ' ' || buffer.get(valueEnd - 1) == '\t')) {
+                valueEnd--;
+            }
+            if (equals(buffer, line, colon, CONNECTION, true)) {
+                if (containsToken(buffer, value, valueEnd, CLOSE)) {
+                    request.keepAlive = false;
+                } else if (containsToken(buffer, value, valueEnd, KEEP_ALIVE)) {
+                    request.keepAlive = true;
+                }
+            } else if (equals(buffer, line, colon, CONTENT_LENGTH, true)) {
+                request.contentLength = parseLong(buffer, value, valueEnd);
+            } else if (equals(buffer, line, colon, TRANSFER_ENCODING, true)) {
+                throw new IOException("Transfer-Encoding is not supported");
+            } else if (equals(buffer, line, colon, FORWARDED_FOR, true)) {
+                request.forwardedFor = new String(copy(buffer, value, valueEnd), StandardCharsets.ISO_8859_1);
+            }
+        }
+        return request;
+    }
+
+    private static byte[] copy(ByteBuffer buffer, int from, int to) {
+        byte[] bytes = new byte[to - from];
+        ByteBuffer source = buffer.duplicate();
+        source.limit(to).position(from);
+        source.get(bytes);
+        return bytes;
+    }
+
+    private static int lineEnd(ByteBuffer buffer, int from, int end) {
+        int index = indexOf(buffer, from, end, (byte) '\n');
+        return index < 0 ? end : index;
+    }
+
+    private static int trimCr(ByteBuffer buffer, int from, int lineEnd) {
+        return lineEnd > from && buffer.get(lineEnd - 1) == '\r' ? lineEnd - 1 : lineEnd;
+    }
+
+    private static int indexOf(ByteBuffer buffer, int from, int to, byte b) {
+        for (int i = from; i < to; i++) {
+            if (buffer.get(i) == b) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean equals(ByteBuffer buffer, int from, int to, byte[] expected, boolean ignoreCase) {
+        if (to - from != expected.length) {
+            return false;
+        }
+        for (int i = 0; i < expected.length; i++) {
+            byte b = buffer.get(from + i);
+            if (ignoreCase && b >= 'A' && b <= 'Z') {
+                b += 'a' - 'A';
+            }
+            if (b != expected[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Whether a comma-separated header value contains {@code token}, ignoring case. */
+    private static boolean containsToken(ByteBuffer buffer, int from, int to, byte[] token) {
+        int start = from;
+        for (int i = from; i <= to; i++) {
+            if (i == to || buffer.get(i) == ',') {
+                int tokenStart = start;
+                int tokenEnd = i;
+                while (tokenStart < tokenEnd && buffer.get(tokenStart) == ' ') {
+                    tokenStart++;
+                }
+                while (tokenEnd > tokenStart && buffer.get(tokenEnd - 1) == ' ') {
+                    tokenEnd--;
+                }
+                if (equals(buffer, tokenStart, tokenEnd, token, true)) {
+                    return true;
+                }
+                start = i + 1;
+            }
+        }
+        return false;
+    }
+
+    private static long parseLong(ByteBuffer buffer, int from, int to) throws IOException {
+        if (from == to || to - from > 18) {
+            throw new IOException("Invalid number");
+        }
+        long value = 0;
+        for (int i = from; i < to; i++) {
+            byte b = buffer.get(i);
+            if (b < '0' || b > '9') {
+                throw new IOException("Invalid number");
+            }
+            value = value * 10 + (b - '0');
+        }
+        return value;
+    }
+
+    /** Parses a decimal query value such as {@code port} or {@code left}. */
+    static long parseLong(byte[] value) throws IOException {
+        return parseLong(ByteBuffer.wrap(value), 0, value.length);
+    }
+
+    private static byte[] ascii(String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    interface QueryParameterConsumer {
+        void accept(String name, byte[] value) throws IOException;
+    }
+
+    static class Request {
+        private boolean get;
+        private boolean keepAlive;
+        private long contentLength;
+        private byte[] target;
+        private String forwardedFor;
+
+        boolean isGet() {
+            return get;
+        }
+
+        /** HTTP/1.1 defaults to keep-alive and HTTP/1.0 to close, unless a Connection header says otherwise. */
+        boolean isKeepAlive() {
+            return keepAlive;
+        }
+
+        String getForwardedFor() {
+            return forwardedFor;
+        }
+
+        /** The request target exactly as sent, path and query. */
+        String getTarget() {
+            return new String(target, StandardCharsets.ISO_8859_1);
+        }
+
+        String getPath() {
+            int end = queryStart();
+            return new String(target, 0, end < 0 ? target.length : end, StandardCharsets.ISO_8859_1);
+        }
+
+        /**
+         * Decodes the query string. Values are percent-decoded to raw bytes,
+         * since {@code info_hash} and {@code peer_id} are binary.
+         */
+        void forEachQueryParameter(QueryParameterConsumer consumer) throws IOException {
+            int start = queryStart();
+            if (start < 0) {
+                return;
+            }
+            int from = start + 1;
+            for (int i = from; i <= target.length; i++) {
+                if (i < target.length && target[i] != '&') {
+                    continue;
+                }
+                if (i > from) {
+                    int equals = from;
+                    while (equals < i && target[equals] != '=') {
+                        equals++;
+                    }
+                    String name = new String(decode(from, equals), StandardCharsets.ISO_8859_1);
+                    consumer.accept(name, equals < i ? decode(equals + 1, i) : new byte[0]);
+                }
+                from = i + 1;
+            }
+        }
+
+        private int queryStart() {
+            for (int i = 0; i < target.length; i++) {
+                if (target[i] == '?') {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        private byte[] decode(int from, int to) throws IOException {
+            byte[] decoded = new byte[to - from];
+            int length = 0;
+            for (int i = from; i < to; i++) {
+                byte b = target[i];
+                if (b == '%') {
+                    if (i + 2 >= to) {
+                        throw new IOException("Truncated percent escape");
+                    }
+                    int high = Character.digit(target[i + 1], 16);
+                    int low = Character.digit(target[i + 2], 16);
+                    if (high < 0 || low < 0) {
+                        throw new IOException("Invalid percent escape");
+                    }
+                    decoded[length++] = (byte) (high << 4 | low);
+                    i += 2;
+                } else {
+                    decoded[length++] = b == '+' ? (byte) ' ' : b;
+                }
+            }
+            return length == decoded.length ? decoded : Arrays.copyOf(decoded, length);
+        }
+    }
+}
@@ -0,0 +1,456 @@
+package com.torrent;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.IntFunction;
+
+/**
+ * Verification against the per-file SHA-256 merkle trees of v2 and hybrid
+ * torrents (BEP 52). Every file starts on a piece boundary; a piece is checked
+ * against its hash in the file's piece layer, and once a peer has sent the
+ * leaf hashes below it, each 16 KiB block can be checked on its own. A
+ * corrupt block is then pinned down exactly instead of failing the piece.
+ */
+public class MerkleVerifier {
+    public static final int BLOCK_SIZE = 16384;
+    public static final int HASH_LENGTH = 32;
+    private static final int MAX_LEVELS = 64;
+    // BEP 52 caps a hash request at 512 hashes
+    private static final int MAX_REQUEST_HASHES = 512;
+    private static final ThreadLocal<MessageDigest> SHA256 = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    });
+
+    private final long pieceLength;
+    private final int blocksPerPiece;
+    private final int pieceLevel;
+    private final Map<String, FileTree> filesByRoot = new HashMap<>();
+    private final FileTree[] pieceFiles;
+    // padHashes[n] is the root of a subtree of 2^n zero leaves
+    private final byte[][] padHashes = new byte[MAX_LEVELS][];
+    // Leaf hashes received from peers, kept only while their piece is being downloaded
+    private final Map<Integer, byte[][]> blockHashes = new HashMap<>();
+
+    /** Returns a verifier for v2 and hybrid torrents, or null for v1-only ones. */
+    public static MerkleVerifier create(TorrentFile torrent) throws IOException {
+        if (torrent.getInfo().getFileTree() == null) {
+            return null;
+        }
+        return new MerkleVerifier(torrent.getInfo(), torrent.getPieceLayers());
+    }
+
+    MerkleVerifier(TorrentFile.Info info, Map<String, String> pieceLayers) throws IOException {
+        this.pieceLength = info.getPieceLength();
+        if (pieceLength < BLOCK_SIZE || Long.bitCount(pieceLength) != 1) {
+            throw new IOException("v2 piece length must be a power of two of at least 16 KiB: " + pieceLength);
+        }
+        this.blocksPerPiece = (int) (pieceLength / BLOCK_SIZE);
+        this.pieceLevel = Integer.numberOfTrailingZeros(blocksPerPiece);
+        padHashes[0] = new byte[HASH_LENGTH];
+        for (int level = 1; level < MAX_LEVELS; level++) {
+            padHashes[level] = hash(padHashes[level - 1], padHashes[level - 1]);
+        }
+
+        List<FileTree> pieces = new ArrayList<>();
+        for (TorrentFile.Info.FileInfo file : info.getFileTree()) {
+            if (file.getLength() == 0) {
+                continue;
+            }
+            String root = file.getPiecesRoot();
+            if (root == null || root.length() != HASH_LENGTH) {
+                throw new IOException("File " + file.getPath() + " has no valid pieces root");
+            }
+            FileTree tree = new FileTree(root.getBytes(StandardCharsets.ISO_8859_1), file.getLength(), pieces.size());
+            if (tree.pieceCount > 1) {
+                String layer = pieceLayers == null ? null : pieceLayers.get(root);
+                if (layer == null || layer.length() != tree.pieceCount * HASH_LENGTH) {
+                    throw new IOException("Missing piece layer for " + file.getPath());
+                }
+                byte[][] pieceHashes = split(layer.getBytes(StandardCharsets.ISO_8859_1), tree.pieceCount);
+                tree.upperLayers = buildLayers(pieceHashes, nextPowerOfTwo(tree.pieceCount), pieceLevel);
+                if (!Arrays.equals(tree.upperLayers[tree.upperLayers.length - 1][0], tree.root)) {
+                    throw new IOException("Piece layer of " + file.getPath() + " does not match its pieces root");
+                }
+            }
+            filesByRoot.put(root, tree);
+            for (int i = 0; i < tree.pieceCount; i++) {
+                pieces.add(tree);
+            }
+        }
+        this.pieceFiles = pieces.toArray(new FileTree[0]);
+    }
+
+    public int getPieceCount() {
+        return pieceFiles.length;
+    }
+
+    /**
+     * Checks the file data at the start of a piece; in a hybrid torrent the
+     * rest of the last piece of a file is padding.
+     */
+    public boolean verifyPiece(int pieceIndex, ByteBuffer data) {
+        FileTree tree = fileOf(pieceIndex);
+        if (tree == null) {
+            return false;
+        }
+        int local = pieceIndex - tree.firstPiece;
+        int length = tree.dataLength(local);
+        if (data.remaining() < length) {
+            return false;
+        }
+        byte[][] leaves = new byte[tree.leafCount(local)][];
+        ByteBuffer block = data.duplicate();
+        for (int i = 0; i < leaves.length; i++) {
+            block.limit(data.position() + Math.min(length, (i + 1) * BLOCK_SIZE)).position(data.position() + i * BLOCK_SIZE);
+            leaves[i] = hash(block);
+        }
+        return Arrays.equals(root(leaves, tree.pieceWidth(), 0), tree.pieceHash(local));
+    }
+
+    /** Whether every block of the piece can be checked individually. */
+    public synchronized boolean hasBlockHashes(int pieceIndex) {
+        return leafHashes(pieceIndex) != null;
+    }
+
+    /**
+     * Checks one block against its leaf hash. Returns true when the leaf hashes
+     * of the piece are not known yet; the whole piece is checked later anyway.
+     */
+    public boolean verifyBlock(int pieceIndex, int block, ByteBuffer data) {
+        byte[] expected;
+        synchronized (this) {
+            byte[][] leaves = leafHashes(pieceIndex);
+            if (leaves == null) {
+                return true;
+            }
+            expected = block < leaves.length ? leaves[block] : null;
+        }
+        FileTree tree = fileOf(pieceIndex);
+        int fileBytes = Math.max(0, Math.min(data.remaining(),
+            tree.dataLength(pieceIndex - tree.firstPiece) - block * BLOCK_SIZE));
+        ByteBuffer leaf = data.duplicate();
+        leaf.limit(leaf.position() + fileBytes);
+        if (expected != null && !Arrays.equals(hash(leaf), expected)) {
+            return false;
+        }
+        for (int i = data.position() + fileBytes; i < data.limit(); i++) {
+            if (data.get(i) != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the blocks of a piece that do not match their leaf hashes, or
+     * null if those hashes are not known. Padding must be all zeros.
+     */
+    public BitSet findCorruptBlocks(int pieceIndex, byte[] data) {
+        byte[][] leaves;
+        synchronized (this) {
+            leaves = leafHashes(pieceIndex);
+        }
+        if (leaves == null) {
+            return null;
+        }
+        FileTree tree = fileOf(pieceIndex);
+        int length = tree.dataLength(pieceIndex - tree.firstPiece);
+        BitSet corrupt = new BitSet();
+        int blocks = (data.length + BLOCK_SIZE - 1) / BLOCK_SIZE;
+        for (int block = 0; block < blocks; block++) {
+            int start = block * BLOCK_SIZE;
+            int end = Math.min(data.length, start + BLOCK_SIZE);
+            int fileEnd = Math.max(start, Math.min(end, length));
+            if (block < leaves.length
+                    && !Arrays.equals(hash(ByteBuffer.wrap(data, start, fileEnd - start)), leaves[block])) {
+                corrupt.set(block);
+            }
+            for (int i = fileEnd; i < end && !corrupt.get(block); i++) {
+                if (data[i] != 0) {
+                    corrupt.set(block);
+                }
+            }
+        }
+        return corrupt;
+    }
+
+    /** The request for the leaf hashes of a piece, or null if they are known or implied. */
+    public synchronized HashRequest getHashRequest(int pieceIndex) {
+        FileTree tree = fileOf(pieceIndex);
+        if (tree == null || leafHashes(pieceIndex) != null) {
+            return null;
+        }
+        int local = pieceIndex - tree.firstPiece;
+        return new HashRequest(tree.root, 0, local * tree.pieceWidth(), tree.pieceWidth(), 0);
+    }
+
+    /** The piece whose leaf hashes a request from {@link #getHashRequest} asks for, or -1. */
+    public int getPieceIndex(HashRequest request) {
+        FileTree tree = filesByRoot.get(new String(request.piecesRoot, StandardCharsets.ISO_8859_1));
+        if (tree == null || request.baseLayer != 0 || request.length != tree.pieceWidth()
+                || request.index % tree.pieceWidth() != 0 || request.index / tree.pieceWidth() >= tree.pieceCount) {
+            return -1;
+        }
+        return tree.firstPiece + request.index / tree.pieceWidth();
+    }
+
+    /**
+     * Accepts leaf hashes a peer sent for one of our requests once they hash up
+     * to the known piece hash. Returns the piece they belong to, or -1.
+     */
+    public int onHashes(HashRequest request, byte[] hashes) {
+        int pieceIndex = getPieceIndex(request);
+        if (pieceIndex < 0 || hashes.length < request.length * HASH_LENGTH) {
+            return -1;
+        }
+        FileTree tree = pieceFiles[pieceIndex];
+        int local = pieceIndex - tree.firstPiece;
+        byte[][] leaves = split(hashes, request.length);
+        if (!Arrays.equals(root(leaves, request.length, 0), tree.pieceHash(local))) {
+            return -1;
+        }
+        synchronized (this) {
+            blockHashes.put(pieceIndex, Arrays.copyOf(leaves, tree.leafCount(local)));
+        }
+        return pieceIndex;
+    }
+
+    /**
+     * Answers a peer's hash request from the piece layers and, below them, from
+     * our own data; {@code pieceData} returns a piece we have or null. Returns
+     * the requested hashes followed by the uncle hashes of the proof, or null
+     * to reject the request.
+     */
+    public byte[] getHashes(HashRequest request, IntFunction<byte[]> pieceData) {
+        FileTree tree = filesByRoot.get(new String(request.piecesRoot, StandardCharsets.ISO_8859_1));
+        int length = request.length;
+        if (tree == null || length < 1 || length > MAX_REQUEST_HASHES || Integer.bitCount(length) != 1
+                || request.index < 0 || request.index % length != 0 || request.baseLayer < 0 || request.proofLayers < 0) {
+            return null;
+        }
+        int height = tree.height();
+        int subtreeLevels = Integer.numberOfTrailingZeros(length);
+        if (request.baseLayer + subtreeLevels > height
+                || (long) request.index + length > 1L << (height - request.baseLayer)) {
+            return null;
+        }
+        int uncles = Math.max(0, Math.min(request.proofLayers - subtreeLevels, height - request.baseLayer - subtreeLevels));
+        ByteBuffer result = ByteBuffer.allocate((length + uncles) * HASH_LENGTH);
+        Map<Integer, byte[][][]> pieceTrees = new HashMap<>();
+        for (int i = 0; i < length; i++) {
+            byte[] node = nodeHash(tree, request.baseLayer, request.index + i, pieceData, pieceTrees);
+            if (node == null) {
+                return null;
+            }
+            result.put(node);
+        }
+        int level = request.baseLayer + subtreeLevels;
+        int position = request.index >> subtreeLevels;
+        for (int i = 0; i < uncles; i++, level++, position >>= 1) {
+            byte[] node = nodeHash(tree, level, position ^ 1, pieceData, pieceTrees);
+            if (node == null) {
+                return null;
+            }
+            result.put(node);
+        }
+        return result.array();
+    }
+
+    /** Drops the leaf hashes of a piece once it is stored. */
+    public synchronized void discard(int pieceIndex) {
+        blockHashes.remove(pieceIndex);
+    }
+
+    private byte[][] leafHashes(int pieceIndex) {
+        byte[][] leaves = blockHashes.get(pieceIndex);
+        if (leaves != null) {
+            return leaves;
+        }
+        FileTree tree = fileOf(pieceIndex);
+        if (tree != null && tree.pieceWidth() == 1) {
+            // One leaf per piece: the piece hash is the leaf hash
+            return new byte[][] {tree.pieceHash(pieceIndex - tree.firstPiece)};
+        }
+        return null;
+    }
+
+    private byte[] nodeHash(FileTree tree, int level, int position, IntFunction<byte[]> pieceData,
+                            Map<Integer, byte[][][]> pieceTrees) {
+        int pieceWidth = tree.pieceWidth();
+        int pieceLevels = Integer.numberOfTrailingZeros(pieceWidth);
+        if (level >= pieceLevels && tree.upperLayers != null) {
+            return tree.upperLayers[level - pieceLevels][position];
+        }
+        int perPiece = pieceWidth >> level;
+        int local = position / perPiece;
+        if (local >= tree.pieceCount) {
+            return padHashes[level];
+        }
+        byte[][][] layers = pieceTrees.get(local);
+        if (layers == null) {
+            byte[] data = pieceData.apply(tree.firstPiece + local);
+            if (data == null) {
+                return null;
+            }
+            byte[][] leaves = new byte[tree.leafCount(local)][];
+            int length = tree.dataLength(local);
+            for (int i = 0; i < leaves.length; i++) {
+                int start = i * BLOCK_SIZE;
+                leaves[i] = hash(ByteBuffer.wrap(data, start, Math.min(BLOCK_SIZE, length - start)));
+            }
+            layers = buildLayers(leaves, pieceWidth, 0);
+            pieceTrees.put(local, layers);
+        }
+        return layers[level][position % perPiece];
+    }
+
+    private FileTree fileOf(int pieceIndex) {
+        return pieceIndex >= 0 && pieceIndex < pieceFiles.length ? pieceFiles[pieceIndex] : null;
+    }
+
+    /** All layers of the tree over {@code nodes}, padded to {@code width} with subtrees of zeros. */
+    private byte[][][] buildLayers(byte[][] nodes, int width, int level) {
+        int levels = Integer.numberOfTrailingZeros(width) + 1;
+        byte[][][] layers = new byte[levels][][];
+        byte[][] layer = Arrays.copyOf(nodes, width);
+        for (int i = nodes.length; i < width; i++) {
+            layer[i] = padHashes[level];
+        }
+        layers[0] = layer;
+        for (int l = 1; l < levels; l++) {
+            byte[][] below = layers[l - 1];
+            layer = new byte[below.length / 2][];
+            for (int i = 0; i < layer.length; i++) {
+                layer[i] = hash(below[2 * i], below[2 * i + 1]);
+            }
+            layers[l] = layer;
+        }
+        return layers;
+    }
+
+    private byte[] root(byte[][] nodes, int width, int level) {
+        byte[][][] layers = buildLayers(nodes, width, level);
+        return layers[layers.length - 1][0];
+    }
+
+    private static byte[][] split(byte[] hashes, int count) {
+        byte[][] result = new byte[count][];
+        for (int i = 0; i < count; i++) {
+            result[i] = Arrays.copyOfRange(hashes, i * HASH_LENGTH, (i + 1) * HASH_LENGTH);
+        }
+        return result;
+    }
+
+    private static int nextPowerOfTwo(long n) {
+        return n <= 1 ? 1 : Integer.highestOneBit((int) (n - 1)) << 1;
+    }
+
+    private static byte[] hash(ByteBuffer data) {
+        MessageDigest digest = SHA256.get();
+        digest.update(data);
+        return digest.digest();
+    }
+
+    private static byte[] hash(byte[] left, byte[] right) {
+        MessageDigest digest = SHA256.get();
+        digest.update(left);
+        digest.update(right);
+        return digest.digest();
+    }
+
+    private class FileTree {
+        private final byte[] root;
+        private final long length;
+        private final int firstPiece;
+        private final int pieceCount;
+        private final long totalLeaves;
+        // Layers from the piece layer up to the root; null for files of a single piece
+        private byte[][][] upperLayers;
+
+        FileTree(byte[] root, long length, int firstPiece) {
+            this.root = root;
+            this.length = length;
+            this.firstPiece = firstPiece;
+            this.pieceCount = (int) ((length + pieceLength - 1) / pieceLength);
+            this.totalLeaves = (length + BLOCK_SIZE - 1) / BLOCK_SIZE;
+        }
+
+        /** Leaves under one piece hash; a single-piece file's tree is only as wide as it needs to be. */
+        int pieceWidth() {
+            return pieceCount > 1 ? blocksPerPiece : nextPowerOfTwo(totalLeaves);
+        }
+
+        int height() {
+            return upperLayers != null ? pieceLevel + upperLayers.length - 1 : Integer.numberOfTrailingZeros(pieceWidth());
+        }
+
+        byte[] pieceHash(int local) {
+            return upperLayers != null ? upperLayers[0][local] : root;
+        }
+
+        int dataLength(int local) {
+            return (int) Math.min(pieceLength, length - local * pieceLength);
+        }
+
+        int leafCount(int local) {
+            return (dataLength(local) + BLOCK_SIZE - 1) / BLOCK_SIZE;
+        }
+    }
+
+    /** Payload of the hash request, hashes and hash reject messages (BEP 52). */
+    public static final class HashRequest {
+        public static final int LENGTH = HASH_LENGTH + 16;
+
+        private final byte[] piecesRoot;
+        private final int baseLayer;
+        private final int index;
+        private final int length;
+        private final int proofLayers;
+
+        public HashRequest(byte[] piecesRoot, int baseLayer, int index, int length, int proofLayers) {
+            this.piecesRoot = piecesRoot;
+            this.baseLayer = baseLayer;
+            this.index = index;
+            this.length = length;
+            this.proofLayers = proofLayers;
+        }
+
+        public static HashRequest read(PeerWireCodec.Message message) {
+            byte[] root = new byte[HASH_LENGTH];
+            message.copy(0, root, 0, HASH_LENGTH);
+            return new HashRequest(root, message.getInt(HASH_LENGTH), message.getInt(HASH_LENGTH + 4),
+                message.getInt(HASH_LENGTH + 8), message.getInt(HASH_LENGTH + 12));
+        }
+
+        /** The request fields followed by {@code hashes}, as sent in a hashes message. */
+        public byte[] toPayload(byte[] hashes) {
+            ByteBuffer payload = ByteBuffer.allocate(LENGTH + hashes.length);
+            payload.put(piecesRoot).putInt(baseLayer).putInt(index).putInt(length).putInt(proofLayers).put(hashes);
+            return payload.array();
+        }
+
+        public boolean matches(HashRequest other) {
+            return Arrays.equals(piecesRoot, other.piecesRoot) && baseLayer == other.baseLayer
+                && index == other.index && length == other.length;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("HashRequest[layer=%d, index=%d, length=%d, proof=%d]",
+                baseLayer, index, length, proofLayers);
+        }
+    }
+}
@@ -4,41 +4,154 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
-import java.nio.channels.SocketChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.BitSet;
-import java.util.function.BiConsumer;
-import java.util.function.Supplier;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
+import java.util.function.BiFunction;
+import java.util.function.BooleanSupplier;
 
 public class PeerConnection implements Runnable {
     private static final Logger logger = LoggerFactory.getLogger(PeerConnection.class);
     private static final int HANDSHAKE_LENGTH = 68;
     private static final String PROTOCOL_IDENTIFIER = "BitTorrent protocol";
     private static final int BLOCK_SIZE = 16384;
+    private static final int MAX_REQUEST_LENGTH = 131072;
+    private static final int MAX_PENDING_REQUESTS = 5;
+    private static final long UTP_CONNECT_TIMEOUT_MILLIS = 3000;
+    private static final long RATE_WINDOW_MILLIS = 1000;
+    private static final long TICK_MILLIS = 50;
+    private static final long KEEP_ALIVE_INTERVAL_MILLIS = 90_000;
+    private static final int MAX_GATHER_BUFFERS = 64;
+    // Stop serving requests while this much is still waiting to be written
+    private static final long MAX_OUTBOUND_BYTES = 4 * 1024 * 1024;
+    private static final int ALLOWED_FAST_COUNT = 10;
+    // BEP 6: bit 0x04 of the last reserved byte
+    private static final int FAST_EXTENSION_BYTE = 7;
+    private static final int FAST_EXTENSION_BIT = 0x04;
+    // BEP 10: bit 0x10 of reserved byte 5
+    private static final int EXTENSION_PROTOCOL_BYTE = 5;
+    private static final int EXTENSION_PROTOCOL_BIT = 0x10;
+    // BEP 5: bit 0x01 of the last reserved byte
+    private static final int DHT_BYTE = 7;
+    private static final int DHT_BIT = 0x01;
+    // BEP 52: bit 0x10 of the last reserved byte
+    private static final int V2_BYTE = 7;
+    private static final int V2_BIT = 0x10;
+    private static final int EXTENDED_HANDSHAKE_ID = 0;
+    private static final int UT_PEX_ID = 1;
+    private static final String CLIENT_VERSION = "simple-torrent 1.0";
 
     private final String ip;
     private final int port;
     private final byte[] infoHash;
     private final String peerId;
     private final BitSet pieces;
-    private final BiConsumer<Integer, byte[]> pieceCompleteCallback;
-    private final Supplier<Block> blockRequestCallback;
-    private SocketChannel socket;
-    private ByteBuffer buffer;
+    private final int pieceCount;
+    private final BitSet peerPieces = new BitSet();
+    private final BitSet allowedFast = new BitSet();
+    private final BitSet grantedFast = new BitSet();
+    private final List<Block> pendingRequests = new ArrayList<>();
+    private final BlockHandler blockHandler;
+    private final BiFunction<PeerConnection, BitSet, Block> blockRequestCallback;
+    private final Consumer<Block> blockReleaseCallback;
+    private final BlockReader blockReader;
+    private final Set<String> pexSent = new HashSet<>();
+    private PeerExchange peerExchange;
+    private DhtNode dhtNode;
+    private UtpSocketManager utpManager;
+    private AvailabilityListener availabilityListener;
+    private SuperSeeder superSeeder;
+    private HashExchange hashExchange;
+    private MerkleVerifier.HashRequest pendingHashRequest;
+    private BooleanSupplier receivePaused;
+    private volatile long downloadRate;
+    private long rateBytes;
+    private long rateWindowStart = System.currentTimeMillis();
+    private PeerTransport transport;
+    private PeerWireCodec codec;
+    private ByteBuffer directTarget;
+    private final ArrayDeque<ByteBuffer> outbound = new ArrayDeque<>();
+    private final ByteBuffer[] gather = new ByteBuffer[MAX_GATHER_BUFFERS];
+    private long outboundBytes;
+    private long lastSendTime;
     private boolean running;
+    private volatile boolean closeRequested;
+    private boolean fastExtension;
+    private boolean extensionProtocol;
+    private boolean peerDht;
+    private boolean peerV2;
+    private boolean connected;
+    private int peerPexId;
+    private long lastPexTime;
     private boolean choked = true;
     private boolean interested = false;
+    private boolean peerInterested = false;
+    private boolean amChoking = true;
 
-    public PeerConnection(String ip, int port, byte[] infoHash, String peerId, BitSet pieces,
-                         BiConsumer<Integer, byte[]> pieceCompleteCallback, Supplier<Block> blockRequestCallback) {
+    public PeerConnection(String ip, int port, byte[] infoHash, String peerId, BitSet pieces, int pieceCount,
+                         BlockHandler blockHandler, BiFunction<PeerConnection, BitSet, Block> blockRequestCallback,
+                         Consumer<Block> blockReleaseCallback, BlockReader blockReader) {
         this.ip = ip;
         this.port = port;
         this.infoHash = infoHash;
         this.peerId = peerId;
         this.pieces = pieces;
-        this.pieceCompleteCallback = pieceCompleteCallback;
+        this.pieceCount = pieceCount;
+        this.blockHandler = blockHandler;
         this.blockRequestCallback = blockRequestCallback;
+        this.blockReleaseCallback = blockReleaseCallback;
+        this.blockReader = blockReader;
+    }
+
+    /** Enables ut_pex on this connection; must be called before {@link #run()}. */
+    public void setPeerExchange(PeerExchange peerExchange) {
+        this.peerExchange = peerExchange;
+    }
+
+    /** Enables DHT port exchange on this connection; must be called before {@link #run()}. */
+    public void setDhtNode(DhtNode dhtNode) {
+        this.dhtNode = dhtNode;
+    }
+
+    /** Reports the pieces this peer has; must be called before {@link #run()}. */
+    public void setAvailabilityListener(AvailabilityListener availabilityListener) {
+        this.availabilityListener = availabilityListener;
+    }
+
+    /** Stops reading from the socket while the supplier returns true; must be called before {@link #run()}. */
+    public void setReceivePaused(BooleanSupplier receivePaused) {
+        this.receivePaused = receivePaused;
+    }
+
+    /**
+     * Hides our pieces and reveals them one at a time as the seeder allows;
+     * only meaningful while we are a seed. Must be called before {@link #run()}.
+     */
+    public void setSuperSeeder(SuperSeeder superSeeder) {
+        this.superSeeder = superSeeder;
+    }
+
+    /** Enables BEP 52 hash requests on this connection; must be called before {@link #run()}. */
+    public void setHashExchange(HashExchange hashExchange) {
+        this.hashExchange = hashExchange;
+    }
+
+    /** Tries uTP before TCP when connecting; must be called before {@link #run()}. */
+    public void setUtpManager(UtpSocketManager utpManager) {
+        this.utpManager = utpManager;
     }
 
     @Override
@@ -46,6 +159,14 @@ public class PeerConnection implements Runnable {
         try {
             connect();
             performHandshake();
+            connected = true;
+            if (extensionProtocol) {
+                sendExtendedHandshake();
+            }
+            sendAvailability();
+            if (dhtNode != null && peerDht) {
+                send(codec.encodePort(dhtNode.getPort()));
+            }
             startMessageLoop();
         } catch (IOException e) {
             logger.error("Error in peer connection", e);
@@ -55,31 +176,54 @@ public class PeerConnection implements Runnable {
     }
 
     private void connect() throws IOException {
-        socket = SocketChannel.open();
-        socket.connect(new InetSocketAddress(ip, port));
-        socket.configureBlocking(false);
-        buffer = ByteBuffer.allocate(16384);
+        InetSocketAddress address = new InetSocketAddress(ip, port);
+        if (utpManager != null) {
+            try {
+                transport = utpManager.connect(address, UTP_CONNECT_TIMEOUT_MILLIS);
+            } catch (IOException e) {
+                logger.debug("uTP connect to {} failed, falling back to TCP", address);
+            }
+        }
+        if (transport == null) {
+            transport = TcpTransport.connect(address);
+        }
+        codec = new PeerWireCodec(pieceCount, BufferPool.SHARED);
+        codec.setPayloadSink(this::reservePayload);
     }
 
     private void performHandshake() throws IOException {
         ByteBuffer handshake = ByteBuffer.allocate(HANDSHAKE_LENGTH);
         handshake.put((byte) PROTOCOL_IDENTIFIER.length());
         handshake.put(PROTOCOL_IDENTIFIER.getBytes());
-        handshake.put(new byte[8]); // Reserved bytes
+        byte[] reserved = new byte[8];
+        reserved[FAST_EXTENSION_BYTE] |= FAST_EXTENSION_BIT;
+        reserved[EXTENSION_PROTOCOL_BYTE] |= EXTENSION_PROTOCOL_BIT;
+        if (dhtNode != null) {
+            reserved[DHT_BYTE] |= DHT_BIT;
+        }
+        if (hashExchange != null) {
+            reserved[V2_BYTE] |= V2_BIT;
+        }
+        handshake.put(reserved);
         handshake.put(infoHash);
         handshake.put(peerId.getBytes());
         handshake.flip();
 
         while (handshake.hasRemaining()) {
-            socket.write(handshake);
+            if (transport.write(handshake) == 0) {
+                transport.awaitReady(TICK_MILLIS, false, true);
+            }
         }
 
         ByteBuffer response = ByteBuffer.allocate(HANDSHAKE_LENGTH);
         while (response.position() < HANDSHAKE_LENGTH) {
-            int read = socket.read(response);
+            int read = transport.read(response);
             if (read == -1) {
                 throw new IOException("Connection closed during handshake");
             }
+            if (read == 0) {
+                transport.awaitReady(TICK_MILLIS, true, false);
+            }
         }
         response.flip();
 
@@ -91,159 +235,671 @@ public class PeerConnection implements Runnable {
             throw new IOException("Invalid protocol identifier");
         }
 
-        response.position(response.position() + 8); // Skip reserved bytes
+        byte[] peerReserved = new byte[8];
+        response.get(peerReserved);
+        fastExtension = (peerReserved[FAST_EXTENSION_BYTE] & FAST_EXTENSION_BIT) != 0;
+        extensionProtocol = (peerReserved[EXTENSION_PROTOCOL_BYTE] & EXTENSION_PROTOCOL_BIT) != 0;
+        peerDht = (peerReserved[DHT_BYTE] & DHT_BIT) != 0;
+        peerV2 = (peerReserved[V2_BYTE] & V2_BIT) != 0;
         byte[] peerInfoHash = new byte[20];
         response.get(peerInfoHash);
-        if (!java.util.Arrays.equals(peerInfoHash, infoHash)) {
+        if (!Arrays.equals(peerInfoHash, infoHash)) {
             throw new IOException("Info hash mismatch");
         }
     }
 
-    private void startMessageLoop() throws IOException {
-        running = true;
-        while (running) {
-            if (socket.read(buffer) == -1) {
-                break;
+    /**
+     * Tells the peer what we have. With the Fast extension a seed or an empty
+     * client sends a one-byte have-all/have-none instead of a full bitfield, and
+     * the peer is granted its allowed-fast set so it can start before unchoke.
+     * A super-seed claims to have nothing and announces offers with {@code have}.
+     */
+    private void sendAvailability() throws IOException {
+        if (superSeeder != null) {
+            if (fastExtension) {
+                send(codec.encode(PeerWireCodec.HAVE_NONE));
+            }
+            return;
+        }
+        int have = pieces.cardinality();
+        if (fastExtension && have == pieceCount) {
+            send(codec.encode(PeerWireCodec.HAVE_ALL));
+        } else if (fastExtension && have == 0) {
+            send(codec.encode(PeerWireCodec.HAVE_NONE));
+        } else if (have > 0) {
+            byte[] bitfield = new byte[(pieceCount + 7) / 8];
+            for (int i = pieces.nextSetBit(0); i >= 0 && i < pieceCount; i = pieces.nextSetBit(i + 1)) {
+                bitfield[i / 8] |= (byte) (0x80 >>> (i % 8));
             }
-            buffer.flip();
-            while (buffer.remaining() >= 4) {
-                int length = buffer.getInt();
-                if (length == 0) {
-                    // Keep-alive message
-                    continue;
+            send(codec.encode(PeerWireCodec.BITFIELD, bitfield));
+        }
+
+        if (fastExtension) {
+            for (int index : computeAllowedFastSet(ALLOWED_FAST_COUNT)) {
+                grantedFast.set(index);
+                if (pieces.get(index)) {
+                    send(codec.encodeInt(PeerWireCodec.ALLOWED_FAST, index));
                 }
-                if (buffer.remaining() < length) {
-                    buffer.position(buffer.position() - 4);
-                    break;
+            }
+        }
+    }
+
+    /** Canonical allowed-fast set from BEP 6, derived from the peer's /24 and the info hash. */
+    private List<Integer> computeAllowedFastSet(int k) {
+        List<Integer> result = new ArrayList<>();
+        byte[] address;
+        try {
+            address = InetAddress.getByName(ip).getAddress();
+        } catch (IOException e) {
+            return result;
+        }
+        if (address.length != 4 || pieceCount == 0) {
+            return result;
+        }
+        k = Math.min(k, pieceCount);
+        byte[] x = new byte[24];
+        System.arraycopy(address, 0, x, 0, 3);
+        System.arraycopy(infoHash, 0, x, 4, 20);
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            while (result.size() < k) {
+                x = digest.digest(x);
+                for (int i = 0; i < 5 && result.size() < k; i++) {
+                    long y = ByteBuffer.wrap(x, i * 4, 4).getInt() & 0xFFFFFFFFL;
+                    int index = (int) (y % pieceCount);
+                    if (!result.contains(index)) {
+                        result.add(index);
+                    }
                 }
-                byte messageId = buffer.get();
-                handleMessage(messageId, length - 1);
             }
-            buffer.compact();
+        } catch (NoSuchAlgorithmException e) {
+            logger.error("SHA-1 unavailable", e);
+        }
+        return result;
+    }
 
-            if (!choked && interested) {
-                requestBlock();
+    private void startMessageLoop() throws IOException {
+        running = true;
+        lastSendTime = System.currentTimeMillis();
+        flush();
+        while (running && !closeRequested) {
+            // While paused the socket is left unread so flow control pushes back on the sender
+            boolean paused = receivePaused != null && receivePaused.getAsBoolean();
+            transport.awaitReady(TICK_MILLIS, !paused, !outbound.isEmpty());
+            if (!paused && codec.readFrom(transport) == -1) {
+                break;
+            }
+            PeerWireCodec.Message message;
+            while ((message = codec.next()) != null) {
+                handleMessage(message);
             }
+
+            updateDownloadRate();
+            requestBlocks();
+            maybeOfferPiece();
+            maybeRequestHashes();
+            maybeSendPeerExchange();
+            maybeSendKeepAlive();
+            flush();
         }
     }
 
-    private void handleMessage(byte messageId, int length) {
-        switch (messageId) {
-            case 0: // choke
+    private void handleMessage(PeerWireCodec.Message message) throws IOException {
+        switch (message.getId()) {
+            case PeerWireCodec.CHOKE:
                 handleChoke();
                 break;
-            case 1: // unchoke
+            case PeerWireCodec.UNCHOKE:
                 handleUnchoke();
                 break;
-            case 2: // interested
+            case PeerWireCodec.INTERESTED:
                 handleInterested();
                 break;
-            case 3: // not interested
+            case PeerWireCodec.NOT_INTERESTED:
                 handleNotInterested();
                 break;
-            case 4: // have
-                handleHave(buffer.getInt());
+            case PeerWireCodec.HAVE:
+                handleHave(message.getInt(0));
+                break;
+            case PeerWireCodec.BITFIELD:
+                handleBitfield(message);
+                break;
+            case PeerWireCodec.REQUEST:
+                handleRequest(message.getInt(0), message.getInt(4), message.getInt(8));
                 break;
-            case 5: // bitfield
-                handleBitfield(length);
+            case PeerWireCodec.PIECE:
+                handlePiece(message);
                 break;
-            case 6: // request
-                handleRequest(buffer.getInt(), buffer.getInt(), buffer.getInt());
+            case PeerWireCodec.CANCEL:
+                handleCancel(message.getInt(0), message.getInt(4), message.getInt(8));
                 break;
-            case 7: // piece
-                handlePiece(buffer.getInt(), buffer.getInt(), length - 8);
+            case PeerWireCodec.PORT:
+                handlePort(message.getUnsignedShort(0));
                 break;
-            case 8: // cancel
-                handleCancel(buffer.getInt(), buffer.getInt(), buffer.getInt());
+            case PeerWireCodec.SUGGEST_PIECE:
+                // Only a hint, the picker decides
+                break;
+            case PeerWireCodec.HAVE_ALL:
+                handleHaveAll();
+                break;
+            case PeerWireCodec.HAVE_NONE:
+                break;
+            case PeerWireCodec.REJECT_REQUEST:
+                handleReject(message.getInt(0), message.getInt(4), message.getInt(8));
+                break;
+            case PeerWireCodec.ALLOWED_FAST:
+                handleAllowedFast(message.getInt(0));
+                break;
+            case PeerWireCodec.EXTENDED:
+                handleExtended(message);
+                break;
+            case PeerWireCodec.HASH_REQUEST:
+                handleHashRequest(MerkleVerifier.HashRequest.read(message));
+                break;
+            case PeerWireCodec.HASHES:
+                handleHashes(message);
+                break;
+            case PeerWireCodec.HASH_REJECT:
+                handleHashReject(MerkleVerifier.HashRequest.read(message));
                 break;
             default:
-                logger.warn("Unknown message ID: {}", messageId);
-                buffer.position(buffer.position() + length);
+                logger.warn("Unknown message ID: {}", message.getId());
+        }
+    }
+
+    private void sendExtendedHandshake() throws IOException {
+        Map<String, Object> supported = new LinkedHashMap<>();
+        if (peerExchange != null) {
+            supported.put(PeerExchange.EXTENSION_NAME, (long) UT_PEX_ID);
+        }
+        Map<String, Object> handshake = new LinkedHashMap<>();
+        handshake.put("m", supported);
+        handshake.put("v", CLIENT_VERSION);
+        if (peerExchange != null) {
+            handshake.put("p", (long) peerExchange.getListenPort());
+        }
+        send(codec.encodeExtended(EXTENDED_HANDSHAKE_ID, BencodeParser.encode(handshake)));
+    }
+
+    private void handleExtended(PeerWireCodec.Message message) {
+        int extendedId = message.getUnsignedByte(0);
+        byte[] payload = message.copyPayload(1);
+        if (extendedId == EXTENDED_HANDSHAKE_ID) {
+            try {
+                Map<?, ?> handshake = (Map<?, ?>) new BencodeParser(payload).parse();
+                Object supported = handshake.get("m");
+                if (supported instanceof Map) {
+                    Object pexId = ((Map<?, ?>) supported).get(PeerExchange.EXTENSION_NAME);
+                    peerPexId = pexId instanceof Long ? ((Long) pexId).intValue() : 0;
+                }
+            } catch (IOException | ClassCastException e) {
+                logger.warn("Malformed extended handshake from {}:{}", ip, port, e);
+            }
+        } else if (extendedId == UT_PEX_ID && peerExchange != null) {
+            peerExchange.handleMessage(payload);
+        }
+    }
+
+    private void maybeSendPeerExchange() {
+        if (peerExchange == null || peerPexId == 0) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        if (now - lastPexTime < PeerExchange.INTERVAL_MILLIS) {
+            return;
+        }
+        lastPexTime = now;
+        byte[] message = peerExchange.buildMessage(pexSent, ip + ":" + port);
+        if (message != null) {
+            send(codec.encodeExtended(peerPexId, message));
+        }
+    }
+
+    private void handlePort(int dhtPort) {
+        if (dhtNode != null && dhtPort > 0) {
+            dhtNode.ping(new InetSocketAddress(ip, dhtPort));
         }
     }
 
     private void handleChoke() {
         choked = true;
+        if (!fastExtension) {
+            // Without the fast extension a choke implicitly discards all pending requests
+            releasePendingRequests();
+        }
     }
 
     private void handleUnchoke() {
         choked = false;
     }
 
-    private void handleInterested() {
-        interested = true;
+    private void handleInterested() throws IOException {
+        peerInterested = true;
+        if (amChoking) {
+            amChoking = false;
+            send(codec.encode(PeerWireCodec.UNCHOKE));
+        }
     }
 
     private void handleNotInterested() {
-        interested = false;
+        peerInterested = false;
     }
 
-    private void handleHave(int pieceIndex) {
-        pieces.set(pieceIndex);
+    private void handleHave(int pieceIndex) throws IOException {
+        if (pieceIndex < 0 || pieceIndex >= pieceCount || peerPieces.get(pieceIndex)) {
+            return;
+        }
+        peerPieces.set(pieceIndex);
+        if (availabilityListener != null) {
+            availabilityListener.onHave(pieceIndex);
+        }
+        if (superSeeder != null) {
+            superSeeder.onHave(getPeerKey(), pieceIndex);
+        }
+        updateInterest();
     }
 
-    private void handleBitfield(int length) {
-        byte[] bitfield = new byte[length];
-        buffer.get(bitfield);
-        for (int i = 0; i < bitfield.length; i++) {
+    private void handleBitfield(PeerWireCodec.Message message) throws IOException {
+        BitSet added = new BitSet(pieceCount);
+        for (int i = 0; i < message.getPayloadLength(); i++) {
+            int bits = message.getUnsignedByte(i);
             for (int j = 0; j < 8; j++) {
-                if ((bitfield[i] & (1 << (7 - j))) != 0) {
-                    pieces.set(i * 8 + j);
+                int piece = i * 8 + j;
+                if ((bits & (1 << (7 - j))) != 0 && piece < pieceCount && !peerPieces.get(piece)) {
+                    added.set(piece);
                 }
             }
         }
+        addPeerPieces(added);
+        updateInterest();
+    }
+
+    private void handleHaveAll() throws IOException {
+        BitSet added = new BitSet(pieceCount);
+        added.set(0, pieceCount);
+        added.andNot(peerPieces);
+        addPeerPieces(added);
+        updateInterest();
+    }
+
+    private void addPeerPieces(BitSet added) {
+        peerPieces.or(added);
+        if (availabilityListener != null && !added.isEmpty()) {
+            availabilityListener.onPiecesAdded(added);
+        }
+    }
+
+    private void handleAllowedFast(int pieceIndex) {
+        if (pieceIndex >= 0 && pieceIndex < pieceCount) {
+            allowedFast.set(pieceIndex);
+        }
+    }
+
+    private void handleReject(int index, int begin, int length) {
+        Iterator<Block> it = pendingRequests.iterator();
+        while (it.hasNext()) {
+            Block block = it.next();
+            if (block.matches(index, begin, length)) {
+                it.remove();
+                blockReleaseCallback.accept(block);
+                return;
+            }
+        }
+    }
+
+    private void handleRequest(int index, int begin, int length) throws IOException {
+        if (outboundBytes > MAX_OUTBOUND_BYTES) {
+            // The peer is not draining what we already queued; it will re-request
+            if (fastExtension) {
+                send(codec.encodeBlock(PeerWireCodec.REJECT_REQUEST, index, begin, length));
+            }
+            return;
+        }
+        boolean servable = index >= 0 && pieces.get(index) && begin >= 0 && length > 0 && length <= MAX_REQUEST_LENGTH
+            && (superSeeder == null || superSeeder.isOffered(getPeerKey(), index));
+        if (!servable || (amChoking && !grantedFast.get(index))) {
+            if (fastExtension) {
+                send(codec.encodeBlock(PeerWireCodec.REJECT_REQUEST, index, begin, length));
+            }
+            return;
+        }
+        try {
+            byte[] data = blockReader.read(index, begin, length);
+            send(codec.encodePiece(index, begin, data));
+        } catch (IOException e) {
+            logger.error("Error serving block {}:{} to {}:{}", index, begin, ip, port, e);
+            if (fastExtension) {
+                send(codec.encodeBlock(PeerWireCodec.REJECT_REQUEST, index, begin, length));
+            }
+        }
     }
 
-    private void handleRequest(int index, int begin, int length) {
-        // TODO: Implement request handling
+    /**
+     * Delivers a received block. The payload either already sits in the buffer
+     * the block handler reserved, or is copied there from the receive buffer;
+     * only blocks the handler will not take directly are copied into an array.
+     */
+    private void handlePiece(PeerWireCodec.Message message) {
+        int index = message.getPieceIndex();
+        int begin = message.getPieceBegin();
+        int length = message.getBlockLength();
+        if (!removePending(index, begin, length)) {
+            logger.debug("Unrequested block {}:{} from {}:{}", index, begin, ip, port);
+            return;
+        }
+        rateBytes += length;
+        if (message.isDirect()) {
+            blockHandler.onBlockWritten(this, index, begin, directTarget);
+            directTarget = null;
+            return;
+        }
+        ByteBuffer target = blockHandler.reserve(index, begin, length);
+        if (target != null) {
+            message.copyTo(8, target);
+            blockHandler.onBlockWritten(this, index, begin, target);
+        } else {
+            byte[] data = new byte[length];
+            message.copy(8, data, 0, length);
+            blockHandler.onBlock(this, index, begin, data);
+        }
     }
 
-    private void handlePiece(int index, int begin, int length) {
-        byte[] data = new byte[length];
-        buffer.get(data);
-        pieceCompleteCallback.accept(index, data);
+    private ByteBuffer reservePayload(int index, int begin, int length) {
+        if (!isPending(index, begin)) {
+            return null;
+        }
+        directTarget = blockHandler.reserve(index, begin, length);
+        return directTarget == null ? null : directTarget.duplicate();
     }
 
+    private boolean removePending(int index, int begin, int length) {
+        Iterator<Block> it = pendingRequests.iterator();
+        while (it.hasNext()) {
+            if (it.next().matches(index, begin, length)) {
+                it.remove();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Drops the block from the outbound queue if it has not started going out.
+     * With the fast extension every request still gets an answer, so the
+     * dropped block is rejected instead.
+     */
     private void handleCancel(int index, int begin, int length) {
-        // TODO: Implement cancel handling
-    }
-
-    private void requestBlock() {
-        Block block = blockRequestCallback.get();
-        if (block != null) {
-            ByteBuffer request = ByteBuffer.allocate(17);
-            request.putInt(13);
-            request.put((byte) 6);
-            request.putInt(block.getIndex());
-            request.putInt(0);
-            request.putInt((int) block.getSize());
-            request.flip();
-            try {
-                socket.write(request);
-            } catch (IOException e) {
-                logger.error("Error sending request", e);
+        Iterator<ByteBuffer> it = outbound.iterator();
+        while (it.hasNext()) {
+            ByteBuffer buffer = it.next();
+            if (PeerWireCodec.isPiece(buffer, index, begin, length)) {
+                it.remove();
+                outboundBytes -= buffer.remaining();
+                codec.release(buffer);
+                if (fastExtension) {
+                    send(codec.encodeBlock(PeerWireCodec.REJECT_REQUEST, index, begin, length));
+                }
+                return;
             }
         }
     }
 
+    private void updateInterest() throws IOException {
+        BitSet wanted = (BitSet) peerPieces.clone();
+        wanted.andNot(pieces);
+        boolean shouldBeInterested = !wanted.isEmpty();
+        if (shouldBeInterested != interested) {
+            interested = shouldBeInterested;
+            send(codec.encode(interested ? PeerWireCodec.INTERESTED : PeerWireCodec.NOT_INTERESTED));
+        }
+    }
+
+    /**
+     * Keeps the request pipeline full. While choked only pieces in the peer's
+     * allowed-fast set may be requested.
+     */
+    private void requestBlocks() {
+        if (!interested || (choked && allowedFast.isEmpty())) {
+            return;
+        }
+        BitSet available = peerPieces;
+        if (choked) {
+            available = (BitSet) allowedFast.clone();
+            available.and(peerPieces);
+        }
+        while (pendingRequests.size() < MAX_PENDING_REQUESTS) {
+            Block block = blockRequestCallback.apply(this, available);
+            if (block == null) {
+                return;
+            }
+            send(codec.encodeBlock(PeerWireCodec.REQUEST, block.getIndex(), block.getBegin(), (int) block.getSize()));
+            pendingRequests.add(block);
+        }
+    }
+
+    private void updateDownloadRate() {
+        long now = System.currentTimeMillis();
+        long elapsed = now - rateWindowStart;
+        if (elapsed >= RATE_WINDOW_MILLIS) {
+            // Smoothed over successive windows so a single stall does not demote a fast peer
+            downloadRate = (downloadRate + rateBytes * 1000 / elapsed) / 2;
+            rateBytes = 0;
+            rateWindowStart = now;
+        }
+    }
+
+    /** Recent download rate from this peer in bytes per second. */
+    public long getDownloadRate() {
+        return downloadRate;
+    }
+
+    /** Whether a request for this block is already outstanding on this connection. */
+    boolean isPending(int index, int begin) {
+        for (Block block : pendingRequests) {
+            if (block.getIndex() == index && block.getBegin() == begin) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void releasePendingRequests() {
+        for (Block block : pendingRequests) {
+            blockReleaseCallback.accept(block);
+        }
+        pendingRequests.clear();
+    }
+
+    /** Queues an encoded message; it is written by the next {@link #flush()}. */
+    private void send(ByteBuffer message) {
+        outbound.add(message);
+        outboundBytes += message.remaining();
+    }
+
+    /** Asks the peer for the leaf hashes of a piece in progress, one request at a time. */
+    private void maybeRequestHashes() {
+        if (hashExchange == null || !peerV2 || pendingHashRequest != null) {
+            return;
+        }
+        pendingHashRequest = hashExchange.nextRequest(peerPieces);
+        if (pendingHashRequest != null) {
+            send(codec.encode(PeerWireCodec.HASH_REQUEST, pendingHashRequest.toPayload(new byte[0])));
+        }
+    }
+
+    private void handleHashRequest(MerkleVerifier.HashRequest request) {
+        byte[] hashes = hashExchange == null ? null : hashExchange.serve(request);
+        if (hashes == null) {
+            send(codec.encode(PeerWireCodec.HASH_REJECT, request.toPayload(new byte[0])));
+        } else {
+            send(codec.encode(PeerWireCodec.HASHES, request.toPayload(hashes)));
+        }
+    }
+
+    private void handleHashes(PeerWireCodec.Message message) {
+        MerkleVerifier.HashRequest request = MerkleVerifier.HashRequest.read(message);
+        if (pendingHashRequest == null || !pendingHashRequest.matches(request)) {
+            logger.debug("Unrequested hashes from {}:{}", ip, port);
+            return;
+        }
+        pendingHashRequest = null;
+        hashExchange.onHashes(request, message.copyPayload(MerkleVerifier.HashRequest.LENGTH));
+    }
+
+    private void handleHashReject(MerkleVerifier.HashRequest request) {
+        if (pendingHashRequest != null && pendingHashRequest.matches(request)) {
+            pendingHashRequest = null;
+            hashExchange.onRejected(request);
+        }
+    }
+
+    /** Announces the next super-seed offer once the previous one has propagated. */
+    private void maybeOfferPiece() {
+        if (superSeeder == null) {
+            return;
+        }
+        int piece = superSeeder.nextOffer(getPeerKey(), peerPieces);
+        if (piece >= 0) {
+            send(codec.encodeInt(PeerWireCodec.HAVE, piece));
+        }
+    }
+
+    private String getPeerKey() {
+        return ip + ":" + port;
+    }
+
+    private void maybeSendKeepAlive() {
+        if (System.currentTimeMillis() - lastSendTime >= KEEP_ALIVE_INTERVAL_MILLIS && outbound.isEmpty()) {
+            send(codec.encodeKeepAlive());
+        }
+    }
+
+    /**
+     * Writes as much of the outbound queue as the transport accepts, one
+     * gathering write per batch. Whatever is left stays queued and the loop
+     * waits for the transport to become writable.
+     */
+    private void flush() throws IOException {
+        while (!outbound.isEmpty()) {
+            int count = 0;
+            for (ByteBuffer buffer : outbound) {
+                gather[count++] = buffer;
+                if (count == gather.length) {
+                    break;
+                }
+            }
+            long written = transport.write(gather, 0, count);
+            Arrays.fill(gather, 0, count, null);
+            if (written > 0) {
+                outboundBytes -= written;
+                lastSendTime = System.currentTimeMillis();
+            }
+            while (!outbound.isEmpty() && !outbound.peek().hasRemaining()) {
+                codec.release(outbound.poll());
+            }
+            if (written == 0 || (!outbound.isEmpty() && count < gather.length)) {
+                return;
+            }
+        }
+    }
+
+    private void releaseOutbound() {
+        ByteBuffer buffer;
+        while ((buffer = outbound.poll()) != null) {
+            codec.release(buffer);
+        }
+        outboundBytes = 0;
+    }
+
+    public String getIp() {
+        return ip;
+    }
+
+    /** Asks the connection to shut down; its own thread disconnects within a tick. */
+    public void close() {
+        closeRequested = true;
+    }
+
+    public boolean isFastExtension() {
+        return fastExtension;
+    }
+
+    public boolean isConnected() {
+        return connected;
+    }
+
     public void disconnect() {
         running = false;
+        connected = false;
+        releasePendingRequests();
+        if (pendingHashRequest != null) {
+            hashExchange.onRejected(pendingHashRequest);
+            pendingHashRequest = null;
+        }
+        if (superSeeder != null) {
+            superSeeder.remove(getPeerKey());
+        }
+        if (availabilityListener != null && !peerPieces.isEmpty()) {
+            availabilityListener.onPiecesRemoved((BitSet) peerPieces.clone());
+            peerPieces.clear();
+        }
+        releaseOutbound();
         try {
-            if (socket != null) {
-                socket.close();
+            if (transport != null) {
+                transport.close();
             }
         } catch (IOException e) {
             logger.error("Error closing socket", e);
         }
     }
 
+    /** Leaf hash exchange for v2 torrents (BEP 52). */
+    public interface HashExchange {
+        /** The next hash request for a peer holding {@code peerPieces}, or null. */
+        MerkleVerifier.HashRequest nextRequest(BitSet peerPieces);
+
+        /** Hashes answering a peer's request, or null to reject it. */
+        byte[] serve(MerkleVerifier.HashRequest request);
+
+        void onHashes(MerkleVerifier.HashRequest request, byte[] hashes);
+
+        void onRejected(MerkleVerifier.HashRequest request);
+    }
+
+    public interface AvailabilityListener {
+        void onHave(int pieceIndex);
+
+        void onPiecesAdded(BitSet pieces);
+
+        void onPiecesRemoved(BitSet pieces);
+    }
+
+    public interface BlockReader {
+        byte[] read(int pieceIndex, int begin, int length) throws IOException;
+    }
+
+    public interface BlockHandler {
+        /**
+         * Returns the region a block's payload should be written into, or null
+         * to have it delivered through {@link #onBlock} instead.
+         */
+        ByteBuffer reserve(int pieceIndex, int begin, int length);
+
+        /** Called once the region returned by {@link #reserve} holds the block. */
+        void onBlockWritten(PeerConnection peer, int pieceIndex, int begin, ByteBuffer region);
+
+        void onBlock(PeerConnection peer, int pieceIndex, int begin, byte[] data);
+    }
+
     public static class Block {
         private final int index;
+        private final int begin;
         private final long size;
         private boolean downloaded;
 
-        public Block(int index, long size) {
+        public Block(int index, int begin, long size) {
             this.index = index;
+            this.begin = begin;
             this.size = size;
             this.downloaded = false;
         }
@@ -252,6 +908,10 @@ public class PeerConnection implements Runnable {
             return index;
         }
 
+        public int getBegin() {
+            return begin;
+        }
+
         public long getSize() {
             return size;
         }
@@ -263,5 +923,9 @@ public class PeerConnection implements Runnable {
         public void setDownloaded(boolean downloaded) {
             this.downloaded = downloaded;
         }
+
+        boolean matches(int index, int begin, int length) {
+            return this.index == index && this.begin == begin && this.size == length;
+        }
     }
-} 
\ No newline at end of file
+}
@@ -0,0 +1,131 @@
+package com.torrent;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * Peer exchange (BEP 11) shared by all connections of one torrent. Each
+ * connection keeps the set of peers it last advertised; messages only carry
+ * the peers added and dropped since then.
+ */
+public class PeerExchange {
+    private static final Logger logger = LoggerFactory.getLogger(PeerExchange.class);
+    public static final String EXTENSION_NAME = "ut_pex";
+    public static final long INTERVAL_MILLIS = 60_000;
+    private static final int MAX_PEERS_PER_MESSAGE = 50;
+
+    private final int listenPort;
+    private final Supplier<Set<String>> connectedPeers;
+    private final Consumer<List<TrackerResponse.PeerInfo>> addedCallback;
+    private final Consumer<List<TrackerResponse.PeerInfo>> droppedCallback;
+
+    public PeerExchange(int listenPort, Supplier<Set<String>> connectedPeers,
+                        Consumer<List<TrackerResponse.PeerInfo>> addedCallback,
+                        Consumer<List<TrackerResponse.PeerInfo>> droppedCallback) {
+        this.listenPort = listenPort;
+        this.connectedPeers = connectedPeers;
+        this.addedCallback = addedCallback;
+        this.droppedCallback = droppedCallback;
+    }
+
+    public int getListenPort() {
+        return listenPort;
+    }
+
+    /**
+     * Builds the next ut_pex payload for a connection and updates {@code lastSent}
+     * to match, or returns null when nothing changed. {@code recipient} is never
+     * advertised back to itself.
+     */
+    public byte[] buildMessage(Set<String> lastSent, String recipient) {
+        Set<String> current = new HashSet<>(connectedPeers.get());
+        current.remove(recipient);
+
+        ByteBuffer added = ByteBuffer.allocate(MAX_PEERS_PER_MESSAGE * 6);
+        List<String> addedKeys = new ArrayList<>();
+        for (String peer : current) {
+            if (addedKeys.size() == MAX_PEERS_PER_MESSAGE) {
+                break;
+            }
+            if (!lastSent.contains(peer) && putCompact(peer, added)) {
+                addedKeys.add(peer);
+            }
+        }
+        ByteBuffer dropped = ByteBuffer.allocate(MAX_PEERS_PER_MESSAGE * 6);
+        List<String> droppedKeys = new ArrayList<>();
+        for (String peer : lastSent) {
+            if (droppedKeys.size() == MAX_PEERS_PER_MESSAGE) {
+                break;
+            }
+            if (!current.contains(peer)) {
+                putCompact(peer, dropped);
+                droppedKeys.add(peer);
+            }
+        }
+        if (addedKeys.isEmpty() && droppedKeys.isEmpty()) {
+            return null;
+        }
+        lastSent.addAll(addedKeys);
+        lastSent.removeAll(droppedKeys);
+
+        Map<String, Object> message = new LinkedHashMap<>();
+        message.put("added", compactString(added));
+        message.put("added.f", new String(new byte[addedKeys.size()], StandardCharsets.ISO_8859_1));
+        message.put("dropped", compactString(dropped));
+        return BencodeParser.encode(message);
+    }
+
+    public void handleMessage(byte[] payload) {
+        try {
+            Map<?, ?> message = (Map<?, ?>) new BencodeParser(payload).parse();
+            Object added = message.get("added");
+            if (added instanceof String) {
+                List<TrackerResponse.PeerInfo> peers = TrackerResponse.parseCompactPeers((String) added);
+                if (!peers.isEmpty()) {
+                    addedCallback.accept(peers);
+                }
+            }
+            Object dropped = message.get("dropped");
+            if (dropped instanceof String) {
+                List<TrackerResponse.PeerInfo> peers = TrackerResponse.parseCompactPeers((String) dropped);
+                if (!peers.isEmpty()) {
+                    droppedCallback.accept(peers);
+                }
+            }
+        } catch (IOException | ClassCastException e) {
+            logger.warn("Malformed {} message", EXTENSION_NAME, e);
+        }
+    }
+
+    private static boolean putCompact(String peer, ByteBuffer buffer) {
+        int separator = peer.lastIndexOf(':');
+        try {
+            byte[] address = InetAddress.getByName(peer.substring(0, separator)).getAddress();
+            if (address.length != 4) {
+                return false;
+            }
+            buffer.put(address);
+            buffer.putShort((short) Integer.parseInt(peer.substring(separator + 1)));
+            return true;
+        } catch (IOException | NumberFormatException e) {
+            return false;
+        }
+    }
+
+    private static String compactString(ByteBuffer buffer) {
+        return new String(buffer.array(), 0, buffer.position(), StandardCharsets.ISO_8859_1);
+    }
+}
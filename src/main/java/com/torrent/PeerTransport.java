@@ -0,0 +1,25 @@
+package com.torrent;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.ScatteringByteChannel;
+
+/**
+ * Byte stream carrying the peer wire protocol. Reads and writes never block:
+ * a read returns 0 when nothing has arrived and -1 at end of stream, and a
+ * write may accept only part of the buffers.
+ */
+public interface PeerTransport extends ByteChannel, ScatteringByteChannel, GatheringByteChannel {
+
+    InetSocketAddress getRemoteAddress() throws IOException;
+
+    /**
+     * Blocks until the transport is likely readable (when {@code readInterest}
+     * is set) or writable (when {@code writeInterest} is set), or until the
+     * timeout elapses. Spurious wakeups are allowed; callers simply retry their
+     * read or write.
+     */
+    void awaitReady(long timeoutMillis, boolean readInterest, boolean writeInterest) throws IOException;
+}
@@ -0,0 +1,381 @@
+package com.torrent;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ScatteringByteChannel;
+
+/**
+ * Frames the peer wire protocol. Incoming bytes accumulate in one receive
+ * buffer and are exposed through a single reusable {@link Message} view, so
+ * decoding allocates nothing per message. Outgoing messages are encoded into
+ * buffers from a {@link BufferPool} that the caller releases once written.
+ *
+ * Piece payloads can bypass the receive buffer: once a piece header has
+ * arrived, a {@link PayloadSink} may supply the block's final destination and
+ * the rest of the payload is read straight into it with a scattering read.
+ */
+public class PeerWireCodec {
+    public static final int CHOKE = 0;
+    public static final int UNCHOKE = 1;
+    public static final int INTERESTED = 2;
+    public static final int NOT_INTERESTED = 3;
+    public static final int HAVE = 4;
+    public static final int BITFIELD = 5;
+    public static final int REQUEST = 6;
+    public static final int PIECE = 7;
+    public static final int CANCEL = 8;
+    public static final int PORT = 9;
+    public static final int SUGGEST_PIECE = 13;
+    public static final int HAVE_ALL = 14;
+    public static final int HAVE_NONE = 15;
+    public static final int REJECT_REQUEST = 16;
+    public static final int ALLOWED_FAST = 17;
+    public static final int EXTENDED = 20;
+    public static final int HASH_REQUEST = 21;
+    public static final int HASHES = 22;
+    public static final int HASH_REJECT = 23;
+
+    // Largest frame accepted unless the bitfield itself is bigger: room for a 128 KiB block plus headers
+    public static final int DEFAULT_MAX_MESSAGE_LENGTH = 128 * 1024 + 9;
+    public static final int PIECE_HEADER_LENGTH = 13;
+    private static final int INITIAL_BUFFER_SIZE = 64 * 1024;
+
+    private final int bitfieldLength;
+    private final int maxMessageLength;
+    private final BufferPool pool;
+    private final Message message = new Message();
+    private final ByteBuffer[] scatter = new ByteBuffer[2];
+    private ByteBuffer inbound = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+    private int readIndex;
+    private PayloadSink sink;
+    private ByteBuffer payloadTarget;
+    // Set once the sink declined the frame at readIndex, so it is asked only once
+    private boolean sinkDeclined;
+
+    public PeerWireCodec(int pieceCount, BufferPool pool) {
+        this.bitfieldLength = (pieceCount + 7) / 8;
+        this.maxMessageLength = Math.max(DEFAULT_MAX_MESSAGE_LENGTH, 1 + bitfieldLength);
+        this.pool = pool;
+        message.buffer = inbound;
+    }
+
+    public int getMaxMessageLength() {
+        return maxMessageLength;
+    }
+
+    public void setPayloadSink(PayloadSink sink) {
+        this.sink = sink;
+    }
+
+    /**
+     * Reads whatever the channel has; returns -1 at end of stream. While a piece
+     * payload is being received directly, its destination is filled first and
+     * any following bytes land in the receive buffer.
+     */
+    public long readFrom(ScatteringByteChannel channel) throws IOException {
+        compact();
+        if (payloadTarget != null && payloadTarget.hasRemaining()) {
+            scatter[0] = payloadTarget;
+            scatter[1] = inbound;
+            return channel.read(scatter, 0, inbound.hasRemaining() ? 2 : 1);
+        }
+        if (!inbound.hasRemaining()) {
+            return 0;
+        }
+        return channel.read(inbound);
+    }
+
+    /**
+     * Decodes the next complete message, or returns null if more bytes are
+     * needed. The returned view is only valid until the next call.
+     * Keep-alives are consumed silently.
+     *
+     * @throws IOException if the frame is oversized or malformed
+     */
+    public Message next() throws IOException {
+        if (payloadTarget != null) {
+            if (payloadTarget.hasRemaining()) {
+                return null;
+            }
+            payloadTarget = null;
+            sinkDeclined = false;
+            return message;
+        }
+        while (true) {
+            int available = inbound.position() - readIndex;
+            if (available < 4) {
+                return null;
+            }
+            int length = inbound.getInt(readIndex);
+            if (length < 0 || length > maxMessageLength) {
+                throw new IOException("Message length " + length + " exceeds limit " + maxMessageLength);
+            }
+            if (length == 0) {
+                readIndex += 4;
+                continue;
+            }
+            if (available < 4 + length) {
+                if (available >= PIECE_HEADER_LENGTH && receiveDirect(length, available)) {
+                    return null;
+                }
+                ensureCapacity(4 + length);
+                return null;
+            }
+            int id = inbound.get(readIndex + 4) & 0xFF;
+            validate(id, length - 1);
+            message.id = id;
+            message.offset = readIndex + 5;
+            message.length = length - 1;
+            message.direct = false;
+            readIndex += 4 + length;
+            sinkDeclined = false;
+            return message;
+        }
+    }
+
+    /** Hands a partially received piece message over to the sink's buffer, if it wants it. */
+    private boolean receiveDirect(int length, int available) throws IOException {
+        if (sink == null || sinkDeclined || (inbound.get(readIndex + 4) & 0xFF) != PIECE) {
+            return false;
+        }
+        validate(PIECE, length - 1);
+        int index = inbound.getInt(readIndex + 5);
+        int begin = inbound.getInt(readIndex + 9);
+        int blockLength = length - 9;
+        ByteBuffer target = sink.reserve(index, begin, blockLength);
+        if (target == null || target.remaining() != blockLength) {
+            sinkDeclined = true;
+            return false;
+        }
+        int start = readIndex + PIECE_HEADER_LENGTH;
+        ByteBuffer received = inbound.duplicate();
+        received.limit(inbound.position()).position(start);
+        target.put(received);
+        readIndex = inbound.position();
+        message.id = PIECE;
+        message.direct = true;
+        message.offset = -1;
+        message.length = length - 1;
+        message.pieceIndex = index;
+        message.pieceBegin = begin;
+        payloadTarget = target;
+        return true;
+    }
+
+    private void validate(int id, int payloadLength) throws IOException {
+        int expected;
+        switch (id) {
+            case CHOKE:
+            case UNCHOKE:
+            case INTERESTED:
+            case NOT_INTERESTED:
+            case HAVE_ALL:
+            case HAVE_NONE:
+                expected = 0;
+                break;
+            case HAVE:
+            case SUGGEST_PIECE:
+            case ALLOWED_FAST:
+                expected = 4;
+                break;
+            case REQUEST:
+            case CANCEL:
+            case REJECT_REQUEST:
+                expected = 12;
+                break;
+            case HASH_REQUEST:
+            case HASH_REJECT:
+                expected = MerkleVerifier.HashRequest.LENGTH;
+                break;
+            case HASHES:
+                if (payloadLength < MerkleVerifier.HashRequest.LENGTH
+                        || (payloadLength - MerkleVerifier.HashRequest.LENGTH) % MerkleVerifier.HASH_LENGTH != 0) {
+                    throw new IOException("Malformed hashes message of length " + payloadLength);
+                }
+                return;
+            case PORT:
+                expected = 2;
+                break;
+            case BITFIELD:
+                expected = bitfieldLength;
+                break;
+            case PIECE:
+                if (payloadLength < 8) {
+                    throw new IOException("Truncated piece message");
+                }
+                return;
+            case EXTENDED:
+                if (payloadLength < 1) {
+                    throw new IOException("Truncated extended message");
+                }
+                return;
+            default:
+                return;
+        }
+        if (payloadLength != expected) {
+            throw new IOException("Message " + id + " has length " + payloadLength + ", expected " + expected);
+        }
+    }
+
+    private void compact() {
+        if (readIndex == 0) {
+            return;
+        }
+        inbound.flip();
+        inbound.position(readIndex);
+        inbound.compact();
+        readIndex = 0;
+    }
+
+    private void ensureCapacity(int frameLength) {
+        if (frameLength <= inbound.capacity() - readIndex) {
+            return;
+        }
+        compact();
+        if (frameLength > inbound.capacity()) {
+            ByteBuffer grown = ByteBuffer.allocate(frameLength);
+            inbound.flip();
+            grown.put(inbound);
+            inbound = grown;
+            message.buffer = grown;
+        }
+    }
+
+    // ---- encoding ----
+
+    public ByteBuffer encodeKeepAlive() {
+        ByteBuffer buffer = pool.acquire(4);
+        buffer.putInt(0).flip();
+        return buffer;
+    }
+
+    public ByteBuffer encode(int id) {
+        ByteBuffer buffer = pool.acquire(5);
+        buffer.putInt(1).put((byte) id).flip();
+        return buffer;
+    }
+
+    public ByteBuffer encodeInt(int id, int value) {
+        ByteBuffer buffer = pool.acquire(9);
+        buffer.putInt(5).put((byte) id).putInt(value).flip();
+        return buffer;
+    }
+
+    public ByteBuffer encodePort(int port) {
+        ByteBuffer buffer = pool.acquire(7);
+        buffer.putInt(3).put((byte) PORT).putShort((short) port).flip();
+        return buffer;
+    }
+
+    /** Request, cancel and reject share the index/begin/length layout. */
+    public ByteBuffer encodeBlock(int id, int index, int begin, int length) {
+        ByteBuffer buffer = pool.acquire(17);
+        buffer.putInt(13).put((byte) id).putInt(index).putInt(begin).putInt(length).flip();
+        return buffer;
+    }
+
+    public ByteBuffer encodePiece(int index, int begin, byte[] data) {
+        ByteBuffer buffer = pool.acquire(PIECE_HEADER_LENGTH + data.length);
+        buffer.putInt(9 + data.length).put((byte) PIECE).putInt(index).putInt(begin).put(data).flip();
+        return buffer;
+    }
+
+    /** Whether {@code buffer} is an unwritten piece message from {@link #encodePiece} for this block. */
+    public static boolean isPiece(ByteBuffer buffer, int index, int begin, int length) {
+        return buffer.position() == 0 && buffer.limit() == PIECE_HEADER_LENGTH + length
+            && buffer.get(4) == PIECE && buffer.getInt(5) == index && buffer.getInt(9) == begin;
+    }
+
+    public ByteBuffer encode(int id, byte[] payload) {
+        ByteBuffer buffer = pool.acquire(5 + payload.length);
+        buffer.putInt(1 + payload.length).put((byte) id).put(payload).flip();
+        return buffer;
+    }
+
+    public ByteBuffer encodeExtended(int extendedId, byte[] payload) {
+        ByteBuffer buffer = pool.acquire(6 + payload.length);
+        buffer.putInt(2 + payload.length).put((byte) EXTENDED).put((byte) extendedId).put(payload).flip();
+        return buffer;
+    }
+
+    public void release(ByteBuffer buffer) {
+        pool.release(buffer);
+    }
+
+    /** Supplies the final destination for a piece payload, or null to receive it normally. */
+    public interface PayloadSink {
+        ByteBuffer reserve(int index, int begin, int length);
+    }
+
+    /** Flyweight view of the current message inside the receive buffer. */
+    public static final class Message {
+        private ByteBuffer buffer;
+        private int id;
+        private int offset;
+        private int length;
+        private boolean direct;
+        private int pieceIndex;
+        private int pieceBegin;
+
+        public int getId() {
+            return id;
+        }
+
+        /**
+         * Whether this piece message's payload was already read into the buffer
+         * returned by the {@link PayloadSink}; its bytes are not available here.
+         */
+        public boolean isDirect() {
+            return direct;
+        }
+
+        public int getPieceIndex() {
+            return direct ? pieceIndex : getInt(0);
+        }
+
+        public int getPieceBegin() {
+            return direct ? pieceBegin : getInt(4);
+        }
+
+        public int getBlockLength() {
+            return length - 8;
+        }
+
+        /** Copies as much of the payload, from {@code position} on, as fits into {@code dst}. */
+        public void copyTo(int position, ByteBuffer dst) {
+            int count = Math.min(dst.remaining(), length - position);
+            dst.put(buffer.array(), buffer.arrayOffset() + offset + position, count);
+        }
+
+        public int getPayloadLength() {
+            return length;
+        }
+
+        public int getInt(int position) {
+            return buffer.getInt(offset + position);
+        }
+
+        public int getUnsignedShort(int position) {
+            return buffer.getShort(offset + position) & 0xFFFF;
+        }
+
+        public int getUnsignedByte(int position) {
+            return buffer.get(offset + position) & 0xFF;
+        }
+
+        /** Copies {@code count} payload bytes starting at {@code position}. */
+        public void copy(int position, byte[] dst, int dstOffset, int count) {
+            if (position < 0 || count < 0 || position + count > length) {
+                throw new IndexOutOfBoundsException("Payload range " + position + "+" + count + " of " + length);
+            }
+            int start = offset + position;
+            System.arraycopy(buffer.array(), buffer.arrayOffset() + start, dst, dstOffset, count);
+        }
+
+        public byte[] copyPayload(int position) {
+            byte[] bytes = new byte[length - position];
+            copy(position, bytes, 0, bytes.length);
+            return bytes;
+        }
+    }
+}
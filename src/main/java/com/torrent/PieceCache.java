@@ -0,0 +1,280 @@
+package com.torrent;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntPredicate;
+
+/**
+ * Byte-bounded read cache of whole pieces in front of {@link PieceStorage}.
+ *
+ * Eviction is segmented LRU: pieces enter a probation segment and are promoted
+ * to the protected segment on their second hit, so a one-off scan over cold
+ * pieces only ever displaces other probationary entries and never the hot set.
+ *
+ * A disk read that is still running when the piece is put or invalidated is
+ * discarded once it finishes, so it never overwrites newer data.
+ */
+public class PieceCache {
+    private static final Logger logger = LoggerFactory.getLogger(PieceCache.class);
+    private static final double PROTECTED_RATIO = 0.8;
+
+    private final PieceStorage storage;
+    // Pieces that are complete on disk; only those are read ahead
+    private final IntPredicate available;
+    private final long capacity;
+    private final long protectedCapacity;
+    private final LinkedHashMap<Integer, byte[]> probation = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<Integer, byte[]> protectedSegment = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<Integer, Load> loading = new ConcurrentHashMap<>();
+    private final ExecutorService prefetchExecutor;
+    private long probationBytes;
+    private long protectedBytes;
+
+    private final AtomicLong hits = new AtomicLong(0);
+    private final AtomicLong misses = new AtomicLong(0);
+    private final AtomicLong evictions = new AtomicLong(0);
+    private final AtomicLong prefetches = new AtomicLong(0);
+
+    public PieceCache(PieceStorage storage, long capacity, IntPredicate available) {
+        this.storage = storage;
+        this.available = available;
+        this.capacity = capacity;
+        this.protectedCapacity = (long) (capacity * PROTECTED_RATIO);
+        this.prefetchExecutor = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "piece-cache-prefetch");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Returns a copy of {@code length} bytes at {@code begin} within the piece,
+     * loading the whole piece from storage on a miss. When the last block of a
+     * piece is requested the next piece is read ahead in the background.
+     */
+    public byte[] getBlock(int pieceIndex, int begin, int length) throws IOException {
+        byte[] piece = getPiece(pieceIndex);
+        if (begin < 0 || length < 0 || begin + length > piece.length) {
+            throw new IOException("Block out of range: piece " + pieceIndex + " begin " + begin + " length " + length);
+        }
+        if (begin + length == piece.length && pieceIndex + 1 < storage.getPieceCount()) {
+            prefetch(pieceIndex + 1);
+        }
+        byte[] block = new byte[length];
+        System.arraycopy(piece, begin, block, 0, length);
+        return block;
+    }
+
+    public byte[] getPiece(int pieceIndex) throws IOException {
+        byte[] piece = lookup(pieceIndex);
+        if (piece != null) {
+            hits.incrementAndGet();
+            return piece;
+        }
+        misses.incrementAndGet();
+        return load(pieceIndex);
+    }
+
+    /** Inserts a freshly verified piece so peers asking for it right away are served from memory. */
+    public synchronized void put(int pieceIndex, byte[] data) {
+        discardLoad(pieceIndex);
+        insert(pieceIndex, data);
+    }
+
+    /** Reads a piece in the background, if it is on disk and not cached yet. */
+    public void prefetch(int pieceIndex) {
+        if (!available.test(pieceIndex)) {
+            return;
+        }
+        synchronized (this) {
+            if (probation.containsKey(pieceIndex) || protectedSegment.containsKey(pieceIndex)) {
+                return;
+            }
+        }
+        if (loading.containsKey(pieceIndex)) {
+            return;
+        }
+        prefetches.incrementAndGet();
+        prefetchExecutor.submit(() -> {
+            try {
+                load(pieceIndex);
+            } catch (IOException e) {
+                logger.warn("Read-ahead of piece {} failed", pieceIndex, e);
+            }
+        });
+    }
+
+    public synchronized void invalidate(int pieceIndex) {
+        discardLoad(pieceIndex);
+        byte[] removed = probation.remove(pieceIndex);
+        if (removed != null) {
+            probationBytes -= removed.length;
+        }
+        removed = protectedSegment.remove(pieceIndex);
+        if (removed != null) {
+            protectedBytes -= removed.length;
+        }
+    }
+
+    public void close() {
+        prefetchExecutor.shutdownNow();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    public long getPrefetches() {
+        return prefetches.get();
+    }
+
+    public synchronized long getSizeBytes() {
+        return probationBytes + protectedBytes;
+    }
+
+    public double getHitRatio() {
+        long total = hits.get() + misses.get();
+        return total == 0 ? 0 : (double) hits.get() / total;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("PieceCache[hits=%d, misses=%d, hitRatio=%.2f, evictions=%d, prefetches=%d, bytes=%d/%d]",
+            getHits(), getMisses(), getHitRatio(), getEvictions(), getPrefetches(), getSizeBytes(), capacity);
+    }
+
+    private synchronized byte[] lookup(int pieceIndex) {
+        byte[] piece = protectedSegment.get(pieceIndex);
+        if (piece != null) {
+            return piece;
+        }
+        piece = probation.remove(pieceIndex);
+        if (piece != null) {
+            // Second hit: promote, demoting the coldest protected entries back to probation
+            probationBytes -= piece.length;
+            protectedSegment.put(pieceIndex, piece);
+            protectedBytes += piece.length;
+            Iterator<Map.Entry<Integer, byte[]>> it = protectedSegment.entrySet().iterator();
+            while (protectedBytes > protectedCapacity && it.hasNext()) {
+                Map.Entry<Integer, byte[]> eldest = it.next();
+                if (eldest.getKey() == pieceIndex) {
+                    continue;
+                }
+                it.remove();
+                protectedBytes -= eldest.getValue().length;
+                probation.put(eldest.getKey(), eldest.getValue());
+                probationBytes += eldest.getValue().length;
+            }
+            evict();
+        }
+        return piece;
+    }
+
+    private byte[] load(int pieceIndex) throws IOException {
+        // Concurrent misses on the same piece share a single disk read
+        Load load = new Load();
+        Load existing = loading.putIfAbsent(pieceIndex, load);
+        if (existing != null) {
+            return await(existing.future);
+        }
+        try {
+            byte[] piece = storage.readPiece(pieceIndex);
+            synchronized (this) {
+                if (!load.discarded) {
+                    insert(pieceIndex, piece);
+                }
+            }
+            load.future.complete(piece);
+            return piece;
+        } catch (IOException | RuntimeException e) {
+            load.future.completeExceptionally(e);
+            throw e;
+        } finally {
+            loading.remove(pieceIndex, load);
+        }
+    }
+
+    /** Keeps a disk read still in flight from caching what it read. Called with the monitor held. */
+    private void discardLoad(int pieceIndex) {
+        Load load = loading.remove(pieceIndex);
+        if (load != null) {
+            load.discarded = true;
+        }
+    }
+
+    private byte[] await(CompletableFuture<byte[]> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while loading piece", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+
+    /** Caches a piece, replacing an older copy in whichever segment holds it. */
+    private void insert(int pieceIndex, byte[] data) {
+        if (data.length > capacity) {
+            return;
+        }
+        byte[] previous = protectedSegment.get(pieceIndex);
+        if (previous != null) {
+            protectedSegment.put(pieceIndex, data);
+            protectedBytes += data.length - previous.length;
+            evict();
+            return;
+        }
+        previous = probation.put(pieceIndex, data);
+        if (previous != null) {
+            probationBytes -= previous.length;
+        }
+        probationBytes += data.length;
+        evict();
+    }
+
+    private void evict() {
+        Iterator<Map.Entry<Integer, byte[]>> it = probation.entrySet().iterator();
+        while (probationBytes + protectedBytes > capacity && it.hasNext()) {
+            Map.Entry<Integer, byte[]> eldest = it.next();
+            it.remove();
+            probationBytes -= eldest.getValue().length;
+            evictions.incrementAndGet();
+        }
+        it = protectedSegment.entrySet().iterator();
+        while (probationBytes + protectedBytes > capacity && it.hasNext()) {
+            Map.Entry<Integer, byte[]> eldest = it.next();
+            it.remove();
+            protectedBytes -= eldest.getValue().length;
+            evictions.incrementAndGet();
+        }
+    }
+
+    private static class Load {
+        private final CompletableFuture<byte[]> future = new CompletableFuture<>();
+        // Set under the cache's monitor
+        private boolean discarded;
+    }
+}
@@ -0,0 +1,59 @@
+package com.torrent;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.BitSet;
+
+/**
+ * SHA-1 of a piece computed while its blocks arrive. Each block that extends
+ * the in-order prefix is hashed right away; blocks past a gap wait in the piece
+ * buffer until the gap fills. Completing the piece then costs little more than
+ * the final {@code digest()} call.
+ */
+class PieceDigest {
+    private final byte[] buffer;
+    private final int blockSize;
+    private final MessageDigest digest;
+    private final BitSet arrived = new BitSet();
+    private int hashedBlocks;
+    private boolean finished;
+
+    PieceDigest(byte[] buffer, int blockSize) {
+        this.buffer = buffer;
+        this.blockSize = blockSize;
+        try {
+            this.digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /** Whether this digest covers {@code data}; a piece that starts over gets a new buffer. */
+    boolean isFor(byte[] data) {
+        return buffer == data;
+    }
+
+    /** Records a block now present in the buffer and hashes any blocks that are in order. */
+    synchronized void onBlock(int block) {
+        if (finished) {
+            return;
+        }
+        arrived.set(block);
+        while (arrived.get(hashedBlocks)) {
+            int start = hashedBlocks * blockSize;
+            digest.update(buffer, start, Math.min(blockSize, buffer.length - start));
+            hashedBlocks++;
+        }
+    }
+
+    /**
+     * Returns the piece hash. The buffer must be complete; blocks not hashed
+     * yet, e.g. ones still on their way through {@link #onBlock}, are hashed here.
+     */
+    synchronized byte[] finish() {
+        finished = true;
+        int start = Math.min(hashedBlocks * blockSize, buffer.length);
+        digest.update(buffer, start, buffer.length - start);
+        return digest.digest();
+    }
+}
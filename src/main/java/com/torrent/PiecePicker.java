@@ -0,0 +1,193 @@
+package com.torrent;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Random;
+import java.util.function.IntPredicate;
+
+/**
+ * Decides which pieces to download next. Pieces get a priority from the files
+ * they overlap ({@link Priority#SKIP} pieces are never picked), and in
+ * streaming mode the pieces ahead of the reader get deadlines derived from the
+ * playback rate. Everything without a deadline is picked rarest-first.
+ */
+public class PiecePicker implements PeerConnection.AvailabilityListener {
+    public static final long DEFAULT_STREAMING_RATE = 1024 * 1024;
+    // Pieces due within this window are given a deadline
+    private static final long READAHEAD_MILLIS = 30_000;
+    // Pieces due within this window are only requested from fast peers, duplicating outstanding requests
+    private static final long CRITICAL_MILLIS = 3_000;
+
+    public enum Priority { SKIP, LOW, NORMAL, HIGH }
+
+    private final long pieceLength;
+    private final int pieceCount;
+    private final long[] fileOffsets;
+    private final long[] fileLengths;
+    private final Priority[] filePriorities;
+    private final byte[] piecePriorities;
+    private final int[] availability;
+    private final Random random = new Random();
+    private List<Integer> deadlinePieces = new ArrayList<>();
+    private final long[] deadlines;
+    private long streamingRate = DEFAULT_STREAMING_RATE;
+
+    public PiecePicker(TorrentFile.Info info, long totalSize) {
+        this.pieceLength = info.getPieceLength();
+        this.pieceCount = (int) ((totalSize + pieceLength - 1) / pieceLength);
+        List<TorrentFile.Info.FileInfo> files = info.getFiles();
+        int fileCount = files == null ? 1 : files.size();
+        this.fileOffsets = new long[fileCount];
+        this.fileLengths = new long[fileCount];
+        long offset = 0;
+        for (int i = 0; i < fileCount; i++) {
+            fileOffsets[i] = offset;
+            fileLengths[i] = files == null ? totalSize : files.get(i).getLength();
+            offset += fileLengths[i];
+        }
+        this.filePriorities = new Priority[fileCount];
+        Arrays.fill(filePriorities, Priority.NORMAL);
+        this.piecePriorities = new byte[pieceCount];
+        Arrays.fill(piecePriorities, (byte) Priority.NORMAL.ordinal());
+        this.availability = new int[pieceCount];
+        this.deadlines = new long[pieceCount];
+    }
+
+    public int getFileCount() {
+        return filePriorities.length;
+    }
+
+    /** Byte offset of a position within a file, relative to the start of the torrent. */
+    public long toTorrentOffset(int fileIndex, long fileOffset) {
+        if (fileIndex < 0 || fileIndex >= fileOffsets.length) {
+            throw new IllegalArgumentException("No file with index " + fileIndex);
+        }
+        return fileOffsets[fileIndex] + Math.max(0, Math.min(fileOffset, fileLengths[fileIndex]));
+    }
+
+    public synchronized void setFilePriority(int fileIndex, Priority priority) {
+        if (fileIndex < 0 || fileIndex >= filePriorities.length) {
+            throw new IllegalArgumentException("No file with index " + fileIndex);
+        }
+        filePriorities[fileIndex] = priority;
+        // A piece shared by several files takes the highest priority among them
+        Arrays.fill(piecePriorities, (byte) Priority.SKIP.ordinal());
+        for (int file = 0; file < filePriorities.length; file++) {
+            if (fileLengths[file] == 0) {
+                continue;
+            }
+            int first = (int) (fileOffsets[file] / pieceLength);
+            int last = (int) ((fileOffsets[file] + fileLengths[file] - 1) / pieceLength);
+            byte filePriority = (byte) filePriorities[file].ordinal();
+            for (int piece = first; piece <= last; piece++) {
+                piecePriorities[piece] = (byte) Math.max(piecePriorities[piece], filePriority);
+            }
+        }
+    }
+
+    public synchronized Priority getFilePriority(int fileIndex) {
+        return filePriorities[fileIndex];
+    }
+
+    public synchronized boolean isWanted(int pieceIndex) {
+        return piecePriorities[pieceIndex] != Priority.SKIP.ordinal();
+    }
+
+    /** Expected consumption rate of a streaming reader, in bytes per second. */
+    public synchronized void setStreamingRate(long bytesPerSecond) {
+        this.streamingRate = Math.max(1, bytesPerSecond);
+    }
+
+    /**
+     * Moves the streaming reader to the given torrent offset, giving each upcoming
+     * piece the time at which the reader will reach it.
+     */
+    public synchronized void setReaderPosition(long offset) {
+        clearReaderPosition();
+        long now = System.currentTimeMillis();
+        for (int piece = (int) (offset / pieceLength); piece < pieceCount; piece++) {
+            long ahead = Math.max(0, piece * pieceLength - offset);
+            long deadline = now + ahead * 1000 / streamingRate;
+            if (deadline - now > READAHEAD_MILLIS) {
+                break;
+            }
+            if (piecePriorities[piece] != Priority.SKIP.ordinal()) {
+                deadlines[piece] = deadline;
+                deadlinePieces.add(piece);
+            }
+        }
+    }
+
+    public synchronized void clearReaderPosition() {
+        for (int piece : deadlinePieces) {
+            deadlines[piece] = 0;
+        }
+        deadlinePieces = new ArrayList<>();
+    }
+
+    /** Pieces with a deadline, earliest first. */
+    public synchronized List<Integer> getDeadlinePieces() {
+        return new ArrayList<>(deadlinePieces);
+    }
+
+    public synchronized boolean isCritical(int pieceIndex, long now) {
+        return deadlines[pieceIndex] != 0 && deadlines[pieceIndex] - now <= CRITICAL_MILLIS;
+    }
+
+    /**
+     * Returns the highest-priority, rarest piece in {@code available} accepted by
+     * {@code candidate}, or -1. Ties are broken by scanning from a random start.
+     */
+    public synchronized int pickRarest(BitSet available, IntPredicate candidate) {
+        int best = -1;
+        int bestPriority = Priority.SKIP.ordinal();
+        int bestAvailability = Integer.MAX_VALUE;
+        int start = pieceCount == 0 ? 0 : random.nextInt(pieceCount);
+        for (int pass = 0; pass < 2; pass++) {
+            int from = pass == 0 ? start : 0;
+            int to = pass == 0 ? pieceCount : start;
+            for (int i = available.nextSetBit(from); i >= 0 && i < to; i = available.nextSetBit(i + 1)) {
+                int priority = piecePriorities[i];
+                if (priority == Priority.SKIP.ordinal() || priority < bestPriority) {
+                    continue;
+                }
+                if (priority == bestPriority && availability[i] >= bestAvailability) {
+                    continue;
+                }
+                if (candidate.test(i)) {
+                    best = i;
+                    bestPriority = priority;
+                    bestAvailability = availability[i];
+                }
+            }
+        }
+        return best;
+    }
+
+    public synchronized int getAvailability(int pieceIndex) {
+        return availability[pieceIndex];
+    }
+
+    @Override
+    public synchronized void onHave(int pieceIndex) {
+        if (pieceIndex >= 0 && pieceIndex < pieceCount) {
+            availability[pieceIndex]++;
+        }
+    }
+
+    @Override
+    public synchronized void onPiecesAdded(BitSet added) {
+        for (int i = added.nextSetBit(0); i >= 0 && i < pieceCount; i = added.nextSetBit(i + 1)) {
+            availability[i]++;
+        }
+    }
+
+    @Override
+    public synchronized void onPiecesRemoved(BitSet removed) {
+        for (int i = removed.nextSetBit(0); i >= 0 && i < pieceCount; i = removed.nextSetBit(i + 1)) {
+            availability[i] = Math.max(0, availability[i] - 1);
+        }
+    }
+}
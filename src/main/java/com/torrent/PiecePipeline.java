@@ -0,0 +1,141 @@
+package com.torrent;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Carries completed pieces through two bounded stages: hash verification on a
+ * pool of threads, then a single writer. Each stage admits a fixed number of
+ * pieces; {@link #submit} blocks while verification is full and the verifier
+ * blocks while the writer is full, so a slow disk holds back hashing, and
+ * {@link #isSaturated()} tells the network side to stop feeding data in.
+ */
+public class PiecePipeline {
+    private static final Logger logger = LoggerFactory.getLogger(PiecePipeline.class);
+
+    private final Handler handler;
+    private final ExecutorService verifyExecutor;
+    private final ExecutorService writeExecutor;
+    private final Semaphore verifySlots;
+    private final Semaphore writeSlots;
+    private final int verifyDepth;
+    private final int writeDepth;
+    private final AtomicLong queuedBytes = new AtomicLong();
+
+    public interface Handler {
+        boolean verify(int pieceIndex, byte[] data) throws Exception;
+
+        void store(int pieceIndex, byte[] data) throws IOException;
+
+        void onStored(int pieceIndex, byte[] data);
+
+        /** Called when verification fails or the piece could not be stored. */
+        void onFailed(int pieceIndex, byte[] data, boolean corrupt);
+    }
+
+    public PiecePipeline(Handler handler, int verifyThreads, int verifyDepth, int writeDepth) {
+        this.handler = handler;
+        this.verifyDepth = verifyDepth;
+        this.writeDepth = writeDepth;
+        this.verifySlots = new Semaphore(verifyDepth);
+        this.writeSlots = new Semaphore(writeDepth);
+        this.verifyExecutor = Executors.newFixedThreadPool(verifyThreads, daemon("piece-verify"));
+        this.writeExecutor = Executors.newSingleThreadExecutor(daemon("piece-write"));
+    }
+
+    /** Queues a fully downloaded piece, waiting while the verify stage is full. */
+    public void submit(int pieceIndex, byte[] data) throws InterruptedException {
+        verifySlots.acquire();
+        queuedBytes.addAndGet(data.length);
+        verifyExecutor.execute(() -> verify(pieceIndex, data));
+    }
+
+    private void verify(int pieceIndex, byte[] data) {
+        boolean valid;
+        try {
+            valid = handler.verify(pieceIndex, data);
+        } catch (Exception e) {
+            logger.error("Error verifying piece {}", pieceIndex, e);
+            valid = false;
+        }
+        if (!valid) {
+            finish(data, verifySlots);
+            handler.onFailed(pieceIndex, data, true);
+            return;
+        }
+        try {
+            writeSlots.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            finish(data, verifySlots);
+            handler.onFailed(pieceIndex, data, false);
+            return;
+        }
+        verifySlots.release();
+        writeExecutor.execute(() -> write(pieceIndex, data));
+    }
+
+    private void write(int pieceIndex, byte[] data) {
+        try {
+            handler.store(pieceIndex, data);
+            finish(data, writeSlots);
+            handler.onStored(pieceIndex, data);
+        } catch (IOException e) {
+            logger.error("Error writing piece {}", pieceIndex, e);
+            finish(data, writeSlots);
+            handler.onFailed(pieceIndex, data, false);
+        }
+    }
+
+    private void finish(byte[] data, Semaphore slots) {
+        queuedBytes.addAndGet(-data.length);
+        slots.release();
+    }
+
+    /** True while either stage is full; receiving more would only queue up in memory. */
+    public boolean isSaturated() {
+        return verifySlots.availablePermits() == 0 || writeSlots.availablePermits() == 0;
+    }
+
+    public int getVerifyQueueDepth() {
+        return verifyDepth - verifySlots.availablePermits();
+    }
+
+    public int getWriteQueueDepth() {
+        return writeDepth - writeSlots.availablePermits();
+    }
+
+    public long getQueuedBytes() {
+        return queuedBytes.get();
+    }
+
+    /** Waits for queued pieces to be verified and written, then stops the stage threads. */
+    public void close() throws InterruptedException {
+        verifyExecutor.shutdown();
+        verifyExecutor.awaitTermination(30, TimeUnit.SECONDS);
+        writeExecutor.shutdown();
+        writeExecutor.awaitTermination(30, TimeUnit.SECONDS);
+    }
+
+    private static ThreadFactory daemon(String name) {
+        return runnable -> {
+            Thread thread = new Thread(runnable, name);
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    @Override
+    public String toString() {
+        return String.format("PiecePipeline[verify=%d/%d, write=%d/%d, queuedBytes=%d]",
+            getVerifyQueueDepth(), verifyDepth, getWriteQueueDepth(), writeDepth, getQueuedBytes());
+    }
+}
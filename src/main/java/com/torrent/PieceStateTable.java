@@ -0,0 +1,228 @@
+package com.torrent;
+
+import java.util.BitSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Download state of every piece, kept in one byte per piece. The low bits hold
+ * the piece state and the rest the number of failed verifications. Per-block
+ * bookkeeping is allocated only while a piece is in progress, so memory tracks
+ * the amount of in-flight work rather than the size of the torrent.
+ *
+ * Not thread-safe; callers synchronize externally.
+ */
+class PieceStateTable {
+    private static final int MISSING = 0;
+    private static final int IN_PROGRESS = 1;
+    private static final int COMPLETE = 2;
+    private static final int STATE_MASK = 0x03;
+    private static final int RETRY_SHIFT = 2;
+    private static final int MAX_RECORDED_RETRIES = 0xFF >>> RETRY_SHIFT;
+
+    private final int pieceCount;
+    private final long pieceLength;
+    private final long totalSize;
+    private final int blockSize;
+    private final byte[] states;
+    // Insertion order lets the picker finish older pieces first
+    private final Map<Integer, Progress> inProgress = new LinkedHashMap<>();
+
+    PieceStateTable(long pieceLength, long totalSize, int blockSize) {
+        this.pieceLength = pieceLength;
+        this.totalSize = totalSize;
+        this.blockSize = blockSize;
+        this.pieceCount = (int) ((totalSize + pieceLength - 1) / pieceLength);
+        this.states = new byte[pieceCount];
+    }
+
+    int getPieceCount() {
+        return pieceCount;
+    }
+
+    int getPieceSize(int piece) {
+        return (int) Math.min(pieceLength, totalSize - piece * pieceLength);
+    }
+
+    int getBlockCount(int piece) {
+        return (getPieceSize(piece) + blockSize - 1) / blockSize;
+    }
+
+    int getBlockSize(int piece, int block) {
+        return Math.min(blockSize, getPieceSize(piece) - block * blockSize);
+    }
+
+    boolean isComplete(int piece) {
+        return (states[piece] & STATE_MASK) == COMPLETE;
+    }
+
+    boolean isInProgress(int piece) {
+        return (states[piece] & STATE_MASK) == IN_PROGRESS;
+    }
+
+    int getRetries(int piece) {
+        return (states[piece] & 0xFF) >>> RETRY_SHIFT;
+    }
+
+    /** Pieces with at least one block requested or downloaded, oldest first. */
+    Set<Integer> getInProgressPieces() {
+        return inProgress.keySet();
+    }
+
+    void setComplete(int piece) {
+        inProgress.remove(piece);
+        setState(piece, COMPLETE);
+    }
+
+    /** Discards all downloaded blocks of a piece that failed verification; returns the new retry count. */
+    int markFailed(int piece) {
+        inProgress.remove(piece);
+        int retries = Math.min(getRetries(piece) + 1, MAX_RECORDED_RETRIES);
+        states[piece] = (byte) (retries << RETRY_SHIFT | MISSING);
+        return retries;
+    }
+
+    /** Lets a piece that exhausted its retries be downloaded again, e.g. once its bad source is banned. */
+    void resetRetries(int piece) {
+        states[piece] &= STATE_MASK;
+    }
+
+    /**
+     * Claims the first block of the piece that is not downloaded and has fewer
+     * than {@code maxRequests} outstanding requests, skipping blocks rejected by
+     * {@code exclude}. Returns the block index, or -1 if none qualifies.
+     */
+    int claimBlock(int piece, int maxRequests, BlockFilter exclude) {
+        if (isComplete(piece)) {
+            return -1;
+        }
+        Progress progress = inProgress.get(piece);
+        int blocks = getBlockCount(piece);
+        for (int block = progress == null ? 0 : progress.downloaded.nextClearBit(0); block < blocks;
+             block = progress == null ? block + 1 : progress.downloaded.nextClearBit(block + 1)) {
+            int requests = progress == null ? 0 : progress.requests[block];
+            if (requests >= maxRequests || (requests > 0 && (exclude.test(piece, block) || progress.lent.get(block)))) {
+                continue;
+            }
+            if (progress == null) {
+                progress = new Progress(blocks);
+                inProgress.put(piece, progress);
+                setState(piece, IN_PROGRESS);
+            }
+            progress.requests[block]++;
+            return block;
+        }
+        return -1;
+    }
+
+    void release(int piece, int block) {
+        Progress progress = inProgress.get(piece);
+        if (progress != null && progress.requests[block] > 0) {
+            progress.requests[block]--;
+            if (progress.requests[block] == 0) {
+                // Only the connection that borrowed a lent block holds a request for it
+                progress.lent.clear(block);
+            }
+        }
+    }
+
+    /**
+     * Marks a block whose payload is being read straight into the piece buffer.
+     * It is not claimed again until the read ends, so no other connection
+     * writes its slot meanwhile.
+     */
+    void lend(int piece, int block) {
+        Progress progress = inProgress.get(piece);
+        if (progress != null) {
+            progress.lent.set(block);
+        }
+    }
+
+    /** The direct read of a lent block finished. */
+    void endLoan(int piece, int block) {
+        Progress progress = inProgress.get(piece);
+        if (progress != null) {
+            progress.lent.clear(block);
+        }
+    }
+
+    boolean isLent(int piece, int block) {
+        Progress progress = inProgress.get(piece);
+        return progress != null && progress.lent.get(block);
+    }
+
+    /** Records a received block; returns false if the piece already had it. */
+    boolean markDownloaded(int piece, int block) {
+        Progress progress = inProgress.get(piece);
+        if (progress == null) {
+            if (isComplete(piece)) {
+                return false;
+            }
+            progress = new Progress(getBlockCount(piece));
+            inProgress.put(piece, progress);
+            setState(piece, IN_PROGRESS);
+        }
+        if (progress.downloaded.get(block)) {
+            return false;
+        }
+        progress.downloaded.set(block);
+        progress.downloadedCount++;
+        return true;
+    }
+
+    /** Forgets a downloaded block that turned out to be corrupt, so it is requested again. */
+    void markBlockMissing(int piece, int block) {
+        Progress progress = inProgress.get(piece);
+        if (progress != null && progress.downloaded.get(block)) {
+            progress.downloaded.clear(block);
+            progress.downloadedCount--;
+            progress.requests[block] = 0;
+            progress.lent.clear(block);
+        }
+    }
+
+    /** The blocks of an in-progress piece received so far. */
+    BitSet getDownloadedBlocks(int piece) {
+        Progress progress = inProgress.get(piece);
+        return progress == null ? new BitSet() : (BitSet) progress.downloaded.clone();
+    }
+
+    boolean isBlockDownloaded(int piece, int block) {
+        if (isComplete(piece)) {
+            return true;
+        }
+        Progress progress = inProgress.get(piece);
+        return progress != null && progress.downloaded.get(block);
+    }
+
+    int getRequests(int piece, int block) {
+        Progress progress = inProgress.get(piece);
+        return progress == null ? 0 : progress.requests[block];
+    }
+
+    boolean isFullyDownloaded(int piece) {
+        Progress progress = inProgress.get(piece);
+        return progress != null && progress.downloadedCount == progress.requests.length;
+    }
+
+    private void setState(int piece, int state) {
+        states[piece] = (byte) ((states[piece] & ~STATE_MASK) | state);
+    }
+
+    interface BlockFilter {
+        boolean test(int piece, int block);
+    }
+
+    private static class Progress {
+        private final BitSet downloaded;
+        private final BitSet lent = new BitSet();
+        private final byte[] requests;
+        private int downloadedCount;
+
+        Progress(int blocks) {
+            this.downloaded = new BitSet(blocks);
+            this.requests = new byte[blocks];
+        }
+    }
+}
@@ -0,0 +1,219 @@
+package com.torrent;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Maps the linear byte space of a torrent onto the files under a directory and
+ * performs positional reads and writes across file boundaries.
+ */
+public class PieceStorage {
+    private static final Logger logger = LoggerFactory.getLogger(PieceStorage.class);
+
+    private final List<FileEntry> entries = new ArrayList<>();
+    private final long pieceLength;
+    private final long totalSize;
+    private final int pieceCount;
+    private final boolean readOnly;
+
+    public PieceStorage(File baseDir, TorrentFile.Info info) {
+        this(baseDir, info, false);
+    }
+
+    public PieceStorage(File baseDir, TorrentFile.Info info, boolean readOnly) {
+        this.readOnly = readOnly;
+        this.pieceLength = info.getPieceLength();
+        long offset = 0;
+        if (info.getFiles() != null) {
+            for (TorrentFile.Info.FileInfo file : info.getFiles()) {
+                File target = new File(baseDir, BencodeParser.fromRaw(String.join(File.separator, file.getPath())));
+                entries.add(new FileEntry(target, offset, file.getLength(), readOnly, file.isPadding()));
+                offset += file.getLength();
+            }
+        } else {
+            File target = new File(baseDir, BencodeParser.fromRaw(info.getName()));
+            entries.add(new FileEntry(target, 0, info.getLength(), readOnly, false));
+            offset = info.getLength();
+        }
+        this.totalSize = offset;
+        this.pieceCount = (int) ((totalSize + pieceLength - 1) / pieceLength);
+    }
+
+    public long getPieceLength() {
+        return pieceLength;
+    }
+
+    public long getTotalSize() {
+        return totalSize;
+    }
+
+    public int getPieceCount() {
+        return pieceCount;
+    }
+
+    public int getPieceSize(int pieceIndex) {
+        return (int) Math.min(pieceLength, totalSize - (long) pieceIndex * pieceLength);
+    }
+
+    public byte[] readPiece(int pieceIndex) throws IOException {
+        byte[] data = new byte[getPieceSize(pieceIndex)];
+        read((long) pieceIndex * pieceLength, ByteBuffer.wrap(data));
+        return data;
+    }
+
+    public void writePiece(int pieceIndex, byte[] data) throws IOException {
+        write((long) pieceIndex * pieceLength, ByteBuffer.wrap(data));
+    }
+
+    /**
+     * Fills {@code dst} from the given torrent offset. Bytes past the end of a
+     * file that has not been written yet read as zeros.
+     */
+    public void read(long offset, ByteBuffer dst) throws IOException {
+        for (FileEntry entry : entries) {
+            if (!dst.hasRemaining()) {
+                break;
+            }
+            if (offset >= entry.offset + entry.length || entry.length == 0) {
+                continue;
+            }
+            long fileOffset = offset - entry.offset;
+            int chunk = (int) Math.min(dst.remaining(), entry.length - fileOffset);
+            if (entry.padding) {
+                for (int i = 0; i < chunk; i++) {
+                    dst.put((byte) 0);
+                }
+                offset += chunk;
+                continue;
+            }
+            int limit = dst.limit();
+            dst.limit(dst.position() + chunk);
+            FileChannel channel = entry.channel();
+            while (dst.hasRemaining()) {
+                int read = channel.read(dst, fileOffset);
+                if (read <= 0) {
+                    // Sparse or short file: the rest of this chunk was never written
+                    while (dst.hasRemaining()) {
+                        dst.put((byte) 0);
+                    }
+                    break;
+                }
+                fileOffset += read;
+            }
+            dst.limit(limit);
+            offset += chunk;
+        }
+    }
+
+    public void write(long offset, ByteBuffer src) throws IOException {
+        if (readOnly) {
+            throw new IOException("Storage is read-only");
+        }
+        for (FileEntry entry : entries) {
+            if (!src.hasRemaining()) {
+                break;
+            }
+            if (offset >= entry.offset + entry.length || entry.length == 0) {
+                continue;
+            }
+            long fileOffset = offset - entry.offset;
+            int chunk = (int) Math.min(src.remaining(), entry.length - fileOffset);
+            if (entry.padding) {
+                // Padding is all zeros by definition and never stored
+                src.position(src.position() + chunk);
+                offset += chunk;
+                continue;
+            }
+            int limit = src.limit();
+            src.limit(src.position() + chunk);
+            FileChannel channel = entry.channel();
+            while (src.hasRemaining()) {
+                fileOffset += channel.write(src, fileOffset);
+            }
+            src.limit(limit);
+            offset += chunk;
+        }
+    }
+
+    /** Whether every file overlapping the range exists and is long enough to hold it. */
+    public boolean isAllocated(long offset, long length) {
+        long end = offset + length;
+        for (FileEntry entry : entries) {
+            if (entry.offset >= end) {
+                break;
+            }
+            if (entry.offset + entry.length <= offset || entry.length == 0 || entry.padding) {
+                continue;
+            }
+            long needed = Math.min(end, entry.offset + entry.length) - entry.offset;
+            if (entry.file.length() < needed) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public boolean hasData() {
+        for (FileEntry entry : entries) {
+            if (!entry.padding && entry.file.length() > 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public void close() {
+        for (FileEntry entry : entries) {
+            entry.close();
+        }
+    }
+
+    private static class FileEntry {
+        private final File file;
+        private final long offset;
+        private final long length;
+        private final boolean readOnly;
+        private final boolean padding;
+        private FileChannel channel;
+
+        FileEntry(File file, long offset, long length, boolean readOnly, boolean padding) {
+            this.file = file;
+            this.offset = offset;
+            this.length = length;
+            this.readOnly = readOnly;
+            this.padding = padding;
+        }
+
+        synchronized FileChannel channel() throws IOException {
+            if (channel == null && readOnly) {
+                channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+            } else if (channel == null) {
+                if (file.getParentFile() != null && !file.getParentFile().exists()) {
+                    file.getParentFile().mkdirs();
+                }
+                channel = FileChannel.open(file.toPath(),
+                    StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            }
+            return channel;
+        }
+
+        synchronized void close() {
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    logger.error("Error closing {}", file, e);
+                }
+                channel = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,165 @@
+package com.torrent;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.BitSet;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Verifies data already on disk against the piece hashes of a torrent.
+ *
+ * The piece range is split recursively on a fork-join pool; each leaf reads its
+ * run of pieces front to back in large sequential reads and hashes them, so disk
+ * access stays sequential per worker while all cores hash.
+ */
+public class PieceVerifier {
+    private static final Logger logger = LoggerFactory.getLogger(PieceVerifier.class);
+    private static final int READ_SIZE = 8 * 1024 * 1024;
+    private static final int MIN_PIECES_PER_TASK = 8;
+
+    public interface ProgressListener {
+        void onProgress(int checked, int total);
+    }
+
+    private final PieceStorage storage;
+    private final byte[] pieceHashes;
+    private final MerkleVerifier merkleVerifier;
+    private final int parallelism;
+
+    public PieceVerifier(PieceStorage storage, String pieceHashes) {
+        this(storage, pieceHashes, null, Runtime.getRuntime().availableProcessors());
+    }
+
+    public PieceVerifier(PieceStorage storage, String pieceHashes, int parallelism) {
+        this(storage, pieceHashes, null, parallelism);
+    }
+
+    /**
+     * @param pieceHashes the v1 SHA-1 piece hashes, or null for a v2-only torrent
+     * @param merkleVerifier checks the v2 hashes of v2 and hybrid torrents, or null
+     */
+    public PieceVerifier(PieceStorage storage, String pieceHashes, MerkleVerifier merkleVerifier, int parallelism) {
+        this.storage = storage;
+        this.pieceHashes = pieceHashes == null ? null : pieceHashes.getBytes(StandardCharsets.ISO_8859_1);
+        this.merkleVerifier = merkleVerifier;
+        this.parallelism = Math.max(1, parallelism);
+    }
+
+    /** Returns the set of pieces whose data on disk matches its hash. */
+    public BitSet verifyAll(ProgressListener listener) {
+        int pieceCount = storage.getPieceCount();
+        BitSet verified = new BitSet(pieceCount);
+        AtomicInteger checked = new AtomicInteger(0);
+        int leafSize = Math.max(MIN_PIECES_PER_TASK, pieceCount / (parallelism * 8));
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            pool.invoke(new VerifyTask(0, pieceCount, leafSize, verified, checked, listener));
+        } finally {
+            pool.shutdown();
+        }
+        return verified;
+    }
+
+    private class VerifyTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final int from;
+        private final int to;
+        private final int leafSize;
+        private final BitSet verified;
+        private final AtomicInteger checked;
+        private final ProgressListener listener;
+
+        VerifyTask(int from, int to, int leafSize, BitSet verified, AtomicInteger checked, ProgressListener listener) {
+            this.from = from;
+            this.to = to;
+            this.leafSize = leafSize;
+            this.verified = verified;
+            this.checked = checked;
+            this.listener = listener;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > leafSize) {
+                int mid = (from + to) >>> 1;
+                invokeAll(new VerifyTask(from, mid, leafSize, verified, checked, listener),
+                    new VerifyTask(mid, to, leafSize, verified, checked, listener));
+                return;
+            }
+            try {
+                verifyRange();
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        private void verifyRange() throws NoSuchAlgorithmException {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            long pieceLength = storage.getPieceLength();
+            int piecesPerRead = (int) Math.max(1, READ_SIZE / pieceLength);
+            ByteBuffer buffer = ByteBuffer.allocateDirect((int) (piecesPerRead * pieceLength));
+            byte[] expected = new byte[20];
+            int piece = from;
+            while (piece < to) {
+                int count = Math.min(piecesPerRead, to - piece);
+                long offset = piece * pieceLength;
+                long length = Math.min(count * pieceLength, storage.getTotalSize() - offset);
+                if (!storage.isAllocated(offset, length)) {
+                    // Some file in range is missing or too short: fall back to per-piece checks
+                    count = 1;
+                    length = storage.getPieceSize(piece);
+                    if (!storage.isAllocated(offset, length)) {
+                        report(1);
+                        piece++;
+                        continue;
+                    }
+                }
+                buffer.clear();
+                buffer.limit((int) length);
+                try {
+                    storage.read(offset, buffer);
+                } catch (IOException e) {
+                    logger.warn("Error reading pieces {}-{} during recheck", piece, piece + count - 1, e);
+                    report(count);
+                    piece += count;
+                    continue;
+                }
+                buffer.flip();
+                for (int i = 0; i < count; i++) {
+                    int index = piece + i;
+                    buffer.limit(buffer.position() + storage.getPieceSize(index));
+                    boolean valid = merkleVerifier == null || merkleVerifier.verifyPiece(index, buffer);
+                    if (pieceHashes != null) {
+                        digest.update(buffer);
+                        System.arraycopy(pieceHashes, index * 20, expected, 0, 20);
+                        valid &= MessageDigest.isEqual(digest.digest(), expected);
+                    }
+                    buffer.position(buffer.limit());
+                    if (valid) {
+                        synchronized (verified) {
+                            verified.set(index);
+                        }
+                    }
+                }
+                report(count);
+                piece += count;
+            }
+        }
+
+        private void report(int count) {
+            int done = checked.addAndGet(count);
+            if (listener != null) {
+                listener.onProgress(done, storage.getPieceCount());
+            }
+        }
+    }
+}
@@ -0,0 +1,161 @@
+package com.torrent;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Smart-ban: remembers which source (a peer's address or a web seed's URL)
+ * sent each block of a piece in progress. When a piece fails its hash check,
+ * the hash of every block of the bad copy is kept together with its source.
+ * Once the piece passes, each block that differs from the good copy names a
+ * source that sent corrupt data.
+ */
+public class SmartBan {
+    private final int blockSize;
+    private final Map<Integer, String[]> sources = new HashMap<>();
+    private final Map<Integer, List<Attempt>> failures = new HashMap<>();
+    private final Set<String> banned = ConcurrentHashMap.newKeySet();
+
+    public SmartBan(int blockSize) {
+        this.blockSize = blockSize;
+    }
+
+    public synchronized void recordBlock(int pieceIndex, int block, int blockCount, String source) {
+        sources.computeIfAbsent(pieceIndex, piece -> new String[blockCount])[block] = source;
+    }
+
+    public synchronized String getSource(int pieceIndex, int block) {
+        String[] pieceSources = sources.get(pieceIndex);
+        return pieceSources == null ? null : pieceSources[block];
+    }
+
+    /** Forgets who sent blocks that are being downloaded again. */
+    public synchronized void clearBlocks(int pieceIndex, BitSet blocks) {
+        String[] pieceSources = sources.get(pieceIndex);
+        if (pieceSources != null) {
+            for (int block = blocks.nextSetBit(0); block >= 0 && block < pieceSources.length;
+                 block = blocks.nextSetBit(block + 1)) {
+                pieceSources[block] = null;
+            }
+        }
+    }
+
+    /** Keeps the block hashes and sources of a copy that failed verification. */
+    public synchronized void onPieceFailed(int pieceIndex, byte[] data) {
+        String[] pieceSources = sources.remove(pieceIndex);
+        if (pieceSources == null) {
+            return;
+        }
+        failures.computeIfAbsent(pieceIndex, piece -> new ArrayList<>())
+            .add(new Attempt(pieceSources, hashBlocks(data)));
+    }
+
+    /**
+     * Compares the verified copy with the failed ones and returns the sources
+     * whose blocks differed.
+     */
+    public synchronized Set<String> onPiecePassed(int pieceIndex, byte[] data) {
+        sources.remove(pieceIndex);
+        List<Attempt> attempts = failures.remove(pieceIndex);
+        Set<String> culprits = new HashSet<>();
+        if (attempts == null) {
+            return culprits;
+        }
+        byte[][] good = hashBlocks(data);
+        for (Attempt attempt : attempts) {
+            for (int block = 0; block < good.length && block < attempt.hashes.length; block++) {
+                String source = attempt.sources[block];
+                if (source != null && !Arrays.equals(good[block], attempt.hashes[block])) {
+                    culprits.add(source);
+                }
+            }
+        }
+        return culprits;
+    }
+
+    /** Whether {@code source} contributed to a failed copy of the piece. */
+    public synchronized boolean isSuspect(int pieceIndex, String source) {
+        List<Attempt> attempts = failures.get(pieceIndex);
+        if (attempts != null) {
+            for (Attempt attempt : attempts) {
+                if (Arrays.asList(attempt.sources).contains(source)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /** Sources that contributed to a failed copy of the piece; they should not supply it again. */
+    public synchronized Set<String> getSuspects(int pieceIndex) {
+        Set<String> suspects = new HashSet<>();
+        List<Attempt> attempts = failures.get(pieceIndex);
+        if (attempts != null) {
+            for (Attempt attempt : attempts) {
+                for (String source : attempt.sources) {
+                    if (source != null) {
+                        suspects.add(source);
+                    }
+                }
+            }
+        }
+        return suspects;
+    }
+
+    /** Pieces whose failed copies contained blocks from {@code source}. */
+    public synchronized Set<Integer> getPiecesFailedBy(String source) {
+        Set<Integer> result = new HashSet<>();
+        for (Map.Entry<Integer, List<Attempt>> entry : failures.entrySet()) {
+            for (Attempt attempt : entry.getValue()) {
+                if (Arrays.asList(attempt.sources).contains(source)) {
+                    result.add(entry.getKey());
+                }
+            }
+        }
+        return result;
+    }
+
+    /** Returns false if the source was already banned. */
+    public boolean ban(String source) {
+        return banned.add(source);
+    }
+
+    public boolean isBanned(String source) {
+        return banned.contains(source);
+    }
+
+    private byte[][] hashBlocks(byte[] data) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        byte[][] hashes = new byte[(data.length + blockSize - 1) / blockSize][];
+        for (int block = 0; block < hashes.length; block++) {
+            int start = block * blockSize;
+            digest.update(data, start, Math.min(blockSize, data.length - start));
+            hashes[block] = digest.digest();
+        }
+        return hashes;
+    }
+
+    private static class Attempt {
+        private final String[] sources;
+        private final byte[][] hashes;
+
+        Attempt(String[] sources, byte[][] hashes) {
+            this.sources = sources;
+            this.hashes = hashes;
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package com.torrent;
+
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.function.IntUnaryOperator;
+
+/**
+ * Super-seeding (BEP 16). Instead of advertising everything, the seed offers
+ * each peer a single rare piece through a {@code have} message and offers it
+ * the next one only after another peer announces the first, i.e. once the
+ * piece has been passed on. Seed upload is spent on pieces the swarm lacks
+ * rather than on the same early pieces over and over.
+ */
+public class SuperSeeder {
+    // A peer that has our piece but nobody else to pass it to gets a new one after this long
+    private static final long PROPAGATION_TIMEOUT_MILLIS = 60_000;
+
+    private final int pieceCount;
+    private final IntUnaryOperator availability;
+    private final int[] outstandingOffers;
+    private final Map<String, Offer> offers = new HashMap<>();
+    private final Random random = new Random();
+
+    /**
+     * @param availability number of connected peers known to have a piece
+     */
+    public SuperSeeder(int pieceCount, IntUnaryOperator availability) {
+        this.pieceCount = pieceCount;
+        this.availability = availability;
+        this.outstandingOffers = new int[pieceCount];
+    }
+
+    /**
+     * Returns the next piece to announce to {@code peer}, or -1 while its last
+     * offer has not propagated yet.
+     */
+    public synchronized int nextOffer(String peer, BitSet peerPieces) {
+        Offer offer = offers.computeIfAbsent(peer, key -> new Offer());
+        if (offer.piece >= 0) {
+            boolean stale = peerPieces.get(offer.piece)
+                && System.currentTimeMillis() - offer.offeredAt > PROPAGATION_TIMEOUT_MILLIS;
+            if (!offer.propagated && !stale) {
+                return -1;
+            }
+            if (!offer.propagated) {
+                outstandingOffers[offer.piece]--;
+            }
+        }
+        int piece = pickRarest(peerPieces);
+        if (piece < 0) {
+            return -1;
+        }
+        offer.piece = piece;
+        offer.propagated = false;
+        offer.offeredAt = System.currentTimeMillis();
+        offer.offered.set(piece);
+        outstandingOffers[piece]++;
+        return piece;
+    }
+
+    /** Pieces nobody has and nobody has been offered come first. */
+    private int pickRarest(BitSet peerPieces) {
+        int best = -1;
+        long bestScore = Long.MAX_VALUE;
+        int start = pieceCount == 0 ? 0 : random.nextInt(pieceCount);
+        for (int n = 0; n < pieceCount; n++) {
+            int piece = (start + n) % pieceCount;
+            if (peerPieces.get(piece)) {
+                continue;
+            }
+            long score = ((long) availability.applyAsInt(piece) << 32) + outstandingOffers[piece];
+            if (score < bestScore) {
+                best = piece;
+                bestScore = score;
+                if (score == 0) {
+                    break;
+                }
+            }
+        }
+        return best;
+    }
+
+    /** Records that {@code peer} announced a piece; it propagates every other peer's offer of it. */
+    public synchronized void onHave(String peer, int piece) {
+        for (Map.Entry<String, Offer> entry : offers.entrySet()) {
+            Offer offer = entry.getValue();
+            if (offer.piece == piece && !offer.propagated && !entry.getKey().equals(peer)) {
+                offer.propagated = true;
+                outstandingOffers[piece]--;
+            }
+        }
+    }
+
+    /** Only offered pieces are served in super-seed mode. */
+    public synchronized boolean isOffered(String peer, int piece) {
+        Offer offer = offers.get(peer);
+        return offer != null && offer.offered.get(piece);
+    }
+
+    public synchronized void remove(String peer) {
+        Offer offer = offers.remove(peer);
+        if (offer != null && offer.piece >= 0 && !offer.propagated) {
+            outstandingOffers[offer.piece]--;
+        }
+    }
+
+    private static class Offer {
+        private final BitSet offered = new BitSet();
+        private int piece = -1;
+        private boolean propagated;
+        private long offeredAt;
+    }
+}
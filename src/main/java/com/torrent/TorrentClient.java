@@ -3,6 +3,11 @@ package com.torrent;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.IOException;
 import java.net.InetSocketAddress;
@@ -19,7 +24,9 @@ import java.nio.channels.SocketChannel;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.nio.file.StandardOpenOption;
+import java.time.Duration;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.*;
@@ -32,22 +39,46 @@ import java.util.function.Supplier;
 public class TorrentClient {
     private static final Logger logger = LoggerFactory.getLogger(TorrentClient.class);
     private static final int BLOCK_SIZE = 16384;
-    private static final int PIECE_SIZE = 262144;
     private static final int MAX_PEERS = 50;
     private static final int CONNECT_TIMEOUT = 5000;
     private static final String PEER_ID = "-JT0001-0123456789AB";
     private static final int MAX_RETRIES = 3;
+    // Time-critical streaming blocks may be outstanding on this many peers at once
+    private static final int MAX_DUPLICATE_REQUESTS = 2;
+    // Piece data held in memory between the network and the disk: partial pieces plus pieces queued to verify/write
+    private static final long MAX_BUFFERED_BYTES = 64 * 1024 * 1024;
+    private static final int MIN_BUFFERED_PIECES = 8;
+    private static final int WRITE_QUEUE_DEPTH = 16;
     private static final int MAX_CONCURRENT_DOWNLOADS = 5;
     private static final int MAX_CONCURRENT_UPLOADS = 5;
+    private static final long READ_CACHE_SIZE = 64L * 1024 * 1024;
+    private static final long DHT_ANNOUNCE_INTERVAL_SECONDS = 15 * 60;
+    // Pieces fetched from each web seed at once
+    private static final int WEB_SEED_CONNECTIONS = 4;
+    private static final long WEB_SEED_IDLE_MILLIS = 1000;
+    private static final long WEB_SEED_RETRY_MILLIS = 10_000;
+    // A piece's leaf hashes are asked of another peer if no answer came within this time
+    private static final long HASH_REQUEST_TIMEOUT_MILLIS = 30_000;
+    // Received blocks of partial pieces are written to disk this often so a restart resumes them
+    private static final long CHECKPOINT_INTERVAL_SECONDS = 30;
 
     private final TorrentFile torrentFile;
     private final File downloadDir;
     private final Map<String, PeerConnection> peerConnections = new ConcurrentHashMap<>();
-    private final Map<Integer, byte[]> pieceData = new ConcurrentHashMap<>();
-    private final Map<Integer, Boolean> pieceStatus = new ConcurrentHashMap<>();
-    private final Map<Integer, List<Block>> pieceBlocks = new ConcurrentHashMap<>();
-    private final Map<Integer, Integer> pieceRetries = new ConcurrentHashMap<>();
+    private final Map<String, TrackerResponse.PeerInfo> candidatePeers = new ConcurrentHashMap<>();
+    private final PieceStateTable pieceStates;
+    private final Map<Integer, byte[]> pieceBuffers = new ConcurrentHashMap<>();
+    private final Map<Integer, PieceDigest> pieceDigests = new ConcurrentHashMap<>();
+    // Blocks of each partial piece buffer already written to disk, guarded by pieceLock
+    private final Map<Integer, Checkpoint> checkpoints = new HashMap<>();
+    // Orders checkpoint writes of partial pieces with the writes of verified ones
+    private final Object storageWriteLock = new Object();
+    private final AtomicLong bufferedBytes = new AtomicLong(0);
+    private final long maxBufferedBytes;
+    private final PiecePipeline piecePipeline;
     private final BitSet pieces;
+    private final PieceStorage storage;
+    private final PieceCache readCache;
     private final byte[] infoHash;
     private final ExecutorService downloadExecutor;
     private final ExecutorService uploadExecutor;
@@ -57,40 +88,79 @@ public class TorrentClient {
     private final Object pieceLock = new Object();
     private final AtomicInteger activeDownloads = new AtomicInteger(0);
     private final AtomicInteger activeUploads = new AtomicInteger(0);
+    private final PiecePicker piecePicker;
+    private final MerkleVerifier merkleVerifier;
+    private final Map<Integer, Long> hashRequestTimes = new HashMap<>();
+    private final SmartBan smartBan = new SmartBan(BLOCK_SIZE);
+    private final PeerExchange peerExchange;
+    private final ScheduledExecutorService dhtExecutor = Executors.newSingleThreadScheduledExecutor();
+    private final ScheduledExecutorService checkpointExecutor = Executors.newSingleThreadScheduledExecutor();
+    private final ExecutorService webSeedExecutor = Executors.newCachedThreadPool();
+    // Shared by tracker announces and web seeds so HTTP connections are reused
+    private final HttpClient httpClient = HttpClient.newBuilder()
+        .connectTimeout(Duration.ofMillis(CONNECT_TIMEOUT))
+        .followRedirects(HttpClient.Redirect.NORMAL)
+        .build();
+    private DhtNode dhtNode;
+    private UtpSocketManager utpManager;
+    private boolean forceRecheck;
+    private volatile SuperSeeder superSeeder;
 
     public TorrentClient(TorrentFile torrentFile, File downloadDir, byte[] infoHash) throws IOException {
         this.torrentFile = torrentFile;
         this.downloadDir = downloadDir;
         this.infoHash = infoHash;
         this.pieces = new BitSet();
+        this.storage = new PieceStorage(downloadDir, torrentFile.getInfo());
+        this.readCache = new PieceCache(storage, READ_CACHE_SIZE, this::hasPiece);
+        this.pieceStates = new PieceStateTable(torrentFile.getInfo().getPieceLength(), storage.getTotalSize(), BLOCK_SIZE);
+        this.piecePicker = new PiecePicker(torrentFile.getInfo(), storage.getTotalSize());
+        this.merkleVerifier = MerkleVerifier.create(torrentFile);
+        this.maxBufferedBytes = Math.max(MAX_BUFFERED_BYTES, MIN_BUFFERED_PIECES * torrentFile.getInfo().getPieceLength());
+        int verifyThreads = Runtime.getRuntime().availableProcessors();
+        this.piecePipeline = new PiecePipeline(pipelineHandler, verifyThreads, 2 * verifyThreads, WRITE_QUEUE_DEPTH);
         this.downloadExecutor = Executors.newFixedThreadPool(MAX_CONCURRENT_DOWNLOADS);
         this.uploadExecutor = Executors.newFixedThreadPool(MAX_CONCURRENT_UPLOADS);
         this.uploadSocket = new ServerSocket(0); // Random port
-        initializePieceBlocks();
+        // Private torrents must only learn peers from their tracker (BEP 27)
+        this.peerExchange = torrentFile.getInfo().isPrivate() ? null : new PeerExchange(
+            uploadSocket.getLocalPort(), this::getConnectedPeers, this::addPeerCandidates, this::removePeerCandidates);
     }
 
-    private void initializePieceBlocks() {
-        int totalPieces = (int) Math.ceil((double) calculateTotalSize() / PIECE_SIZE);
-        for (int i = 0; i < totalPieces; i++) {
-            long pieceSize = Math.min(PIECE_SIZE, calculateTotalSize() - (long) i * PIECE_SIZE);
-            int numBlocks = (int) Math.ceil((double) pieceSize / BLOCK_SIZE);
-            List<Block> blocks = new ArrayList<>();
-            for (int j = 0; j < numBlocks; j++) {
-                long blockSize = Math.min(BLOCK_SIZE, pieceSize - (long) j * BLOCK_SIZE);
-                blocks.add(new Block(j, blockSize));
-            }
-            pieceBlocks.put(i, blocks);
-            pieceStatus.put(i, false);
-            pieceRetries.put(i, 0);
+    public void setForceRecheck(boolean forceRecheck) {
+        this.forceRecheck = forceRecheck;
+    }
+
+    /**
+     * Enables super-seeding (BEP 16) for peers connected from now on. It only
+     * takes effect while we hold every piece; a partial download ignores it.
+     */
+    public void setSuperSeeding(boolean enabled) {
+        superSeeder = enabled ? new SuperSeeder(storage.getPieceCount(), piecePicker::getAvailability) : null;
+    }
+
+    private boolean isSuperSeeding() {
+        synchronized (pieceLock) {
+            return superSeeder != null && pieces.cardinality() == storage.getPieceCount();
         }
     }
 
     public void start() {
-        logger.info("Starting torrent client for: {}", torrentFile.getInfo().getName());
+        logger.info("Starting torrent client for: {}", BencodeParser.fromRaw(torrentFile.getInfo().getName()));
         try {
             initializeFiles();
             loadProgress();
+            checkpointExecutor.scheduleWithFixedDelay(() -> {
+                try {
+                    checkpointPartialPieces();
+                } catch (IOException e) {
+                    logger.error("Error saving partial pieces", e);
+                }
+            }, CHECKPOINT_INTERVAL_SECONDS, CHECKPOINT_INTERVAL_SECONDS, TimeUnit.SECONDS);
             startUploadServer();
+            startUtp();
+            startDht();
+            startWebSeeds();
             connectToTracker();
             startPeerConnections();
         } catch (Exception e) {
@@ -103,7 +173,9 @@ public class TorrentClient {
             while (!uploadSocket.isClosed()) {
                 try {
                     Socket clientSocket = uploadSocket.accept();
-                    if (activeUploads.get() < MAX_CONCURRENT_UPLOADS) {
+                    if (smartBan.isBanned(clientSocket.getInetAddress().getHostAddress())) {
+                        clientSocket.close();
+                    } else if (activeUploads.get() < MAX_CONCURRENT_UPLOADS) {
                         activeUploads.incrementAndGet();
                         uploadExecutor.submit(() -> handleUploadConnection(clientSocket));
                     } else {
@@ -116,6 +188,35 @@ public class TorrentClient {
         }).start();
     }
 
+    /**
+     * Opens uTP on the UDP port matching our TCP listen port, so the port we
+     * announce reaches us over either transport.
+     */
+    private void startUtp() {
+        try {
+            utpManager = new UtpSocketManager(uploadSocket.getLocalPort());
+            utpManager.start();
+        } catch (IOException e) {
+            logger.warn("uTP unavailable, using TCP only", e);
+            utpManager = null;
+            return;
+        }
+        new Thread(() -> {
+            while (!uploadSocket.isClosed()) {
+                try {
+                    UtpConnection connection = utpManager.accept(1000);
+                    if (connection != null) {
+                        // Incoming peer sessions are not served yet, as with the TCP listener
+                        connection.close();
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }, "utp-accept").start();
+    }
+
     private void handleUploadConnection(Socket clientSocket) {
         try {
             // Handle upload request and serve blocks
@@ -138,13 +239,12 @@ public class TorrentClient {
             String query = buildTrackerQuery();
             URL trackerUrl = new URL(announceUrl + "?" + query);
             
-            HttpClient client = HttpClient.newHttpClient();
             HttpRequest request = HttpRequest.newBuilder()
                     .uri(trackerUrl.toURI())
                     .GET()
                     .build();
 
-            HttpResponse<byte[]> response = client.send(request, HttpResponse.BodyHandlers.ofByteArray());
+            HttpResponse<byte[]> response = httpClient.send(request, HttpResponse.BodyHandlers.ofByteArray());
             if (response.statusCode() == 200) {
                 BencodeParser parser = new BencodeParser(response.body());
                 Map<String, Object> dict = (Map<String, Object>) parser.parse();
@@ -158,113 +258,732 @@ public class TorrentClient {
         }
     }
 
+    /**
+     * Joins the DHT unless the torrent is private, bootstrapping from the
+     * torrent's nodes and from PORT messages of connected peers, and periodically
+     * announces to it, feeding found peers into the candidate pool.
+     */
+    private void startDht() {
+        if (torrentFile.getInfo().isPrivate()) {
+            return;
+        }
+        try {
+            // The UDP port matching our listen port belongs to uTP
+            dhtNode = new DhtNode(0);
+            dhtNode.start();
+        } catch (IOException e) {
+            logger.warn("DHT unavailable, continuing with tracker only", e);
+            dhtNode = null;
+            return;
+        }
+        List<InetSocketAddress> bootstrapNodes = new ArrayList<>();
+        if (torrentFile.getNodes() != null) {
+            for (String node : torrentFile.getNodes()) {
+                int separator = node.lastIndexOf(':');
+                bootstrapNodes.add(new InetSocketAddress(node.substring(0, separator),
+                    Integer.parseInt(node.substring(separator + 1))));
+            }
+        }
+        dhtExecutor.execute(() -> dhtNode.bootstrap(bootstrapNodes));
+        dhtExecutor.scheduleWithFixedDelay(() -> {
+            try {
+                List<TrackerResponse.PeerInfo> peers = dhtNode.announce(infoHash, uploadSocket.getLocalPort());
+                logger.info("Received {} peers from DHT", peers.size());
+                addPeerCandidates(peers);
+            } catch (Exception e) {
+                logger.error("Error announcing to DHT", e);
+            }
+        }, 0, DHT_ANNOUNCE_INTERVAL_SECONDS, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Starts downloading from the torrent's web seeds (BEP 19). Each one counts
+     * as a peer holding every piece and is worked by several fetchers, so a new
+     * swarm can fill up at the speed of the HTTP server.
+     */
+    private void startWebSeeds() {
+        List<String> urls = torrentFile.getUrlList();
+        if (urls == null) {
+            return;
+        }
+        BitSet all = new BitSet(storage.getPieceCount());
+        all.set(0, storage.getPieceCount());
+        for (String url : urls) {
+            WebSeed seed;
+            try {
+                seed = new WebSeed(url, torrentFile.getInfo(), httpClient);
+            } catch (IllegalArgumentException e) {
+                logger.warn("Ignoring malformed web seed {}", url, e);
+                continue;
+            }
+            logger.info("Using web seed {}", url);
+            piecePicker.onPiecesAdded(all);
+            for (int i = 0; i < WEB_SEED_CONNECTIONS; i++) {
+                webSeedExecutor.execute(() -> runWebSeed(seed));
+            }
+        }
+    }
+
+    private void runWebSeed(WebSeed seed) {
+        try {
+            while (!webSeedExecutor.isShutdown() && !smartBan.isBanned(seed.getUrl())) {
+                int piece = claimWebSeedPiece(seed.getUrl());
+                if (piece < 0) {
+                    synchronized (pieceLock) {
+                        if (pieces.cardinality() == storage.getPieceCount()) {
+                            return;
+                        }
+                    }
+                    Thread.sleep(WEB_SEED_IDLE_MILLIS);
+                    continue;
+                }
+                byte[] data = allocatePieceBuffer(piece);
+                try {
+                    seed.fetch(piece, data);
+                } catch (IOException e) {
+                    bufferedBytes.addAndGet(-data.length);
+                    releaseWebSeedPiece(piece);
+                    if (Thread.currentThread().isInterrupted()) {
+                        return;
+                    }
+                    logger.warn("Web seed {} failed on piece {}: {}", seed.getUrl(), piece, e.getMessage());
+                    Thread.sleep(WEB_SEED_RETRY_MILLIS);
+                    continue;
+                }
+                handleWebSeedPiece(seed.getUrl(), piece, data);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Claims every block of a piece no peer is working on, deadlines first, so
+     * a web seed downloads whole pieces without competing with peers.
+     */
+    private int claimWebSeedPiece(String source) {
+        synchronized (pieceLock) {
+            if (isBackpressured()) {
+                return -1;
+            }
+            int piece = -1;
+            for (int deadline : piecePicker.getDeadlinePieces()) {
+                if (isPickable(deadline) && isIdle(deadline) && !smartBan.isSuspect(deadline, source)) {
+                    piece = deadline;
+                    break;
+                }
+            }
+            if (piece < 0) {
+                BitSet all = new BitSet(storage.getPieceCount());
+                all.set(0, storage.getPieceCount());
+                piece = piecePicker.pickRarest(all, i -> isPickable(i) && isIdle(i) && !smartBan.isSuspect(i, source));
+            }
+            if (piece >= 0) {
+                for (int block = 0; block < pieceStates.getBlockCount(piece); block++) {
+                    pieceStates.claimBlock(piece, 1, (p, b) -> false);
+                }
+            }
+            return piece;
+        }
+    }
+
+    /** Whether no block of the piece is requested, e.g. one abandoned by a failed fetch. */
+    private boolean isIdle(int piece) {
+        if (!pieceStates.isInProgress(piece)) {
+            return true;
+        }
+        for (int block = 0; block < pieceStates.getBlockCount(piece); block++) {
+            if (pieceStates.getRequests(piece, block) > 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void releaseWebSeedPiece(int piece) {
+        synchronized (pieceLock) {
+            for (int block = 0; block < pieceStates.getBlockCount(piece); block++) {
+                pieceStates.release(piece, block);
+            }
+        }
+    }
+
+    private void handleWebSeedPiece(String source, int piece, byte[] data) {
+        synchronized (pieceLock) {
+            boolean fresh = false;
+            for (int block = 0; block < pieceStates.getBlockCount(piece); block++) {
+                fresh |= pieceStates.markDownloaded(piece, block);
+            }
+            if (!fresh || !pieceStates.isFullyDownloaded(piece)) {
+                bufferedBytes.addAndGet(-data.length);
+                return;
+            }
+            // Blocks a peer delivered alongside us are superseded by the whole piece
+            byte[] partial = pieceBuffers.remove(piece);
+            if (partial != null) {
+                bufferedBytes.addAndGet(-partial.length);
+            }
+            int blocks = pieceStates.getBlockCount(piece);
+            for (int block = 0; block < blocks; block++) {
+                smartBan.recordBlock(piece, block, blocks, source);
+            }
+        }
+        handlePieceComplete(piece, data);
+    }
+
     private void handleTrackerResponse(TrackerResponse response) {
         logger.info("Received {} peers from tracker", response.getPeers().size());
-        for (TrackerResponse.PeerInfo peer : response.getPeers()) {
-            if (peerConnections.size() >= MAX_PEERS) {
-                break;
-            }
+        addPeerCandidates(response.getPeers());
+    }
+
+    private void addPeerCandidates(List<TrackerResponse.PeerInfo> peers) {
+        for (TrackerResponse.PeerInfo peer : peers) {
             String peerKey = peer.getIp() + ":" + peer.getPort();
-            if (!peerConnections.containsKey(peerKey)) {
-                PeerConnection connection = new PeerConnection(
-                    peer.getIp(),
-                    peer.getPort(),
-                    infoHash,
-                    PEER_ID,
-                    pieces,
-                    this::handlePieceComplete,
-                    this::getNextBlock
-                );
-                peerConnections.put(peerKey, connection);
-                if (activeDownloads.get() < MAX_CONCURRENT_DOWNLOADS) {
-                    activeDownloads.incrementAndGet();
-                    downloadExecutor.submit(() -> {
-                        try {
-                            connection.run();
-                        } finally {
-                            activeDownloads.decrementAndGet();
-                        }
-                    });
+            if (!peerConnections.containsKey(peerKey) && !smartBan.isBanned(peer.getIp())) {
+                candidatePeers.putIfAbsent(peerKey, peer);
+            }
+        }
+        connectToCandidates();
+    }
+
+    private void removePeerCandidates(List<TrackerResponse.PeerInfo> peers) {
+        for (TrackerResponse.PeerInfo peer : peers) {
+            candidatePeers.remove(peer.getIp() + ":" + peer.getPort());
+        }
+    }
+
+    private Set<String> getConnectedPeers() {
+        Set<String> connected = new HashSet<>();
+        for (Map.Entry<String, PeerConnection> entry : peerConnections.entrySet()) {
+            if (entry.getValue().isConnected()) {
+                connected.add(entry.getKey());
+            }
+        }
+        return connected;
+    }
+
+    private synchronized void connectToCandidates() {
+        Iterator<Map.Entry<String, TrackerResponse.PeerInfo>> it = candidatePeers.entrySet().iterator();
+        while (it.hasNext() && peerConnections.size() < MAX_PEERS
+                && activeDownloads.get() < MAX_CONCURRENT_DOWNLOADS) {
+            Map.Entry<String, TrackerResponse.PeerInfo> candidate = it.next();
+            it.remove();
+            String peerKey = candidate.getKey();
+            TrackerResponse.PeerInfo peer = candidate.getValue();
+            if (peerConnections.containsKey(peerKey) || downloadExecutor.isShutdown()) {
+                continue;
+            }
+            PeerConnection connection = new PeerConnection(
+                peer.getIp(),
+                peer.getPort(),
+                infoHash,
+                PEER_ID,
+                pieces,
+                storage.getPieceCount(),
+                blockHandler,
+                this::getNextBlock,
+                this::releaseBlock,
+                readCache::getBlock
+            );
+            connection.setPeerExchange(peerExchange);
+            connection.setDhtNode(dhtNode);
+            connection.setUtpManager(utpManager);
+            connection.setAvailabilityListener(piecePicker);
+            connection.setReceivePaused(piecePipeline::isSaturated);
+            if (merkleVerifier != null) {
+                connection.setHashExchange(hashExchange);
+            }
+            if (isSuperSeeding()) {
+                connection.setSuperSeeder(superSeeder);
+            }
+            peerConnections.put(peerKey, connection);
+            activeDownloads.incrementAndGet();
+            downloadExecutor.submit(() -> {
+                try {
+                    connection.run();
+                } finally {
+                    peerConnections.remove(peerKey);
+                    activeDownloads.decrementAndGet();
+                    connectToCandidates();
                 }
+            });
+        }
+    }
+
+    private final PeerConnection.BlockHandler blockHandler = new PeerConnection.BlockHandler() {
+        @Override
+        public ByteBuffer reserve(int pieceIndex, int begin, int length) {
+            return reserveBlock(pieceIndex, begin, length);
+        }
+
+        @Override
+        public void onBlockWritten(PeerConnection peer, int pieceIndex, int begin, ByteBuffer region) {
+            handleBlockWritten(peer.getIp(), pieceIndex, begin, region);
+        }
+
+        @Override
+        public void onBlock(PeerConnection peer, int pieceIndex, int begin, byte[] data) {
+            handleBlock(peer.getIp(), pieceIndex, begin, data);
+        }
+    };
+
+    /**
+     * Lends out the block's slot in its piece buffer so the payload can be read
+     * straight into it. Only a block requested from a single peer is lent, and
+     * a lent block is not requested again until its read ends, so two
+     * connections never write the same slot.
+     */
+    private ByteBuffer reserveBlock(int pieceIndex, int begin, int length) {
+        synchronized (pieceLock) {
+            int block = begin / BLOCK_SIZE;
+            if (pieceIndex < 0 || pieceIndex >= pieceStates.getPieceCount() || begin % BLOCK_SIZE != 0
+                    || block >= pieceStates.getBlockCount(pieceIndex)
+                    || length != pieceStates.getBlockSize(pieceIndex, block)
+                    || pieceStates.isBlockDownloaded(pieceIndex, block)
+                    || pieceStates.isLent(pieceIndex, block)
+                    || pieceStates.getRequests(pieceIndex, block) != 1) {
+                return null;
             }
+            pieceStates.lend(pieceIndex, block);
+            byte[] buffer = pieceBuffers.computeIfAbsent(pieceIndex, this::allocatePieceBuffer);
+            return ByteBuffer.wrap(buffer, begin, length).slice();
         }
     }
 
-    private void handlePieceComplete(int pieceIndex, byte[] data) {
+    private void handleBlockWritten(String source, int pieceIndex, int begin, ByteBuffer region) {
+        // A corrupt block is released, which also ends its loan
+        if (!verifyBlock(source, pieceIndex, begin, region)) {
+            return;
+        }
+        byte[] completed = null;
+        PieceDigest digest;
         synchronized (pieceLock) {
-            if (pieceStatus.get(pieceIndex)) {
+            pieceStates.endLoan(pieceIndex, begin / BLOCK_SIZE);
+            // A piece that failed verification meanwhile starts over with a fresh buffer
+            if (pieceBuffers.get(pieceIndex) != region.array()
+                    || !pieceStates.markDownloaded(pieceIndex, begin / BLOCK_SIZE)) {
                 return;
             }
+            smartBan.recordBlock(pieceIndex, begin / BLOCK_SIZE, pieceStates.getBlockCount(pieceIndex), source);
+            digest = getPieceDigest(pieceIndex, region.array());
+            if (pieceStates.isFullyDownloaded(pieceIndex)) {
+                completed = pieceBuffers.remove(pieceIndex);
+            }
+        }
+        if (digest != null) {
+            digest.onBlock(begin / BLOCK_SIZE);
+        }
+        if (completed != null) {
+            handlePieceComplete(pieceIndex, completed);
+        }
+    }
 
+    private void handleBlock(String source, int pieceIndex, int begin, byte[] data) {
+        if (!verifyBlock(source, pieceIndex, begin, ByteBuffer.wrap(data))) {
+            return;
+        }
+        byte[] completed = null;
+        PieceDigest digest;
+        synchronized (pieceLock) {
+            // A slot still being read into directly is left alone; that copy is the one hashed
+            if (pieceStates.isLent(pieceIndex, begin / BLOCK_SIZE)
+                    || !pieceStates.markDownloaded(pieceIndex, begin / BLOCK_SIZE)) {
+                return;
+            }
+            smartBan.recordBlock(pieceIndex, begin / BLOCK_SIZE, pieceStates.getBlockCount(pieceIndex), source);
+            byte[] buffer = pieceBuffers.computeIfAbsent(pieceIndex, this::allocatePieceBuffer);
+            System.arraycopy(data, 0, buffer, begin, data.length);
+            digest = getPieceDigest(pieceIndex, buffer);
+            if (pieceStates.isFullyDownloaded(pieceIndex)) {
+                completed = pieceBuffers.remove(pieceIndex);
+            }
+        }
+        if (digest != null) {
+            digest.onBlock(begin / BLOCK_SIZE);
+        }
+        if (completed != null) {
+            handlePieceComplete(pieceIndex, completed);
+        }
+    }
+
+    /**
+     * The SHA-1 being computed over {@code buffer} as its blocks arrive, or null
+     * for v2-only torrents. Called with {@code pieceLock} held.
+     */
+    private PieceDigest getPieceDigest(int pieceIndex, byte[] buffer) {
+        if (torrentFile.getInfo().getPieces() == null) {
+            return null;
+        }
+        PieceDigest digest = pieceDigests.get(pieceIndex);
+        if (digest == null || !digest.isFor(buffer)) {
+            digest = new PieceDigest(buffer, BLOCK_SIZE);
+            pieceDigests.put(pieceIndex, digest);
+        }
+        return digest;
+    }
+
+    /**
+     * Checks a block against its leaf hash when those are known (v2 torrents).
+     * A corrupt block is dropped and requested again, and its sender banned.
+     */
+    private boolean verifyBlock(String source, int pieceIndex, int begin, ByteBuffer data) {
+        if (merkleVerifier == null || merkleVerifier.verifyBlock(pieceIndex, begin / BLOCK_SIZE, data)) {
+            return true;
+        }
+        logger.warn("Block {}:{} from {} failed its merkle hash check", pieceIndex, begin, source);
+        synchronized (pieceLock) {
+            pieceStates.release(pieceIndex, begin / BLOCK_SIZE);
+        }
+        banPeer(source);
+        return false;
+    }
+
+    /**
+     * Stops using a source caught sending corrupt data: its connections are
+     * closed, it is never reconnected, and pieces it made fail are retried.
+     */
+    private void banPeer(String source) {
+        if (source == null || !smartBan.ban(source)) {
+            return;
+        }
+        logger.warn("Banning {} for sending corrupt data", source);
+        for (PeerConnection connection : peerConnections.values()) {
+            if (connection.getIp().equals(source)) {
+                connection.close();
+            }
+        }
+        candidatePeers.values().removeIf(peer -> peer.getIp().equals(source));
+        synchronized (pieceLock) {
+            for (int piece : smartBan.getPiecesFailedBy(source)) {
+                pieceStates.resetRetries(piece);
+            }
+        }
+    }
+
+    private byte[] allocatePieceBuffer(int pieceIndex) {
+        int size = storage.getPieceSize(pieceIndex);
+        bufferedBytes.addAndGet(size);
+        return new byte[size];
+    }
+
+    /** Hands a fully downloaded piece to the verify and write stages. */
+    private void handlePieceComplete(int pieceIndex, byte[] data) {
+        try {
+            piecePipeline.submit(pieceIndex, data);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            bufferedBytes.addAndGet(-data.length);
+            synchronized (pieceLock) {
+                pieceStates.markFailed(pieceIndex);
+            }
+        }
+    }
+
+    private final PeerConnection.HashExchange hashExchange = new PeerConnection.HashExchange() {
+        @Override
+        public MerkleVerifier.HashRequest nextRequest(BitSet peerPieces) {
+            return nextHashRequest(peerPieces);
+        }
+
+        @Override
+        public byte[] serve(MerkleVerifier.HashRequest request) {
+            return merkleVerifier.getHashes(request, this::readPiece);
+        }
+
+        private byte[] readPiece(int pieceIndex) {
+            synchronized (pieceLock) {
+                if (!pieces.get(pieceIndex)) {
+                    return null;
+                }
+            }
             try {
-                if (verifyPiece(pieceIndex, data)) {
-                    pieceData.put(pieceIndex, data);
-                    pieceStatus.put(pieceIndex, true);
-                    pieces.set(pieceIndex);
-                    downloadedBytes.addAndGet(data.length);
-                    savePieceToFile(pieceIndex, data);
+                return readCache.getBlock(pieceIndex, 0, storage.getPieceSize(pieceIndex));
+            } catch (IOException e) {
+                logger.error("Error reading piece {} for hash request", pieceIndex, e);
+                return null;
+            }
+        }
+
+        @Override
+        public void onHashes(MerkleVerifier.HashRequest request, byte[] hashes) {
+            int pieceIndex = merkleVerifier.onHashes(request, hashes);
+            if (pieceIndex < 0) {
+                logger.warn("Discarding invalid hashes for {}", request);
+            } else {
+                logger.debug("Received block hashes for piece {}", pieceIndex);
+            }
+        }
+
+        @Override
+        public void onRejected(MerkleVerifier.HashRequest request) {
+            int pieceIndex = merkleVerifier.getPieceIndex(request);
+            synchronized (pieceLock) {
+                // Let the next peer be asked right away
+                hashRequestTimes.remove(pieceIndex);
+            }
+        }
+    };
+
+    /**
+     * Picks an in-progress piece the peer has whose leaf hashes we lack and have
+     * not asked anyone for recently, so its blocks can be checked as they arrive.
+     */
+    private MerkleVerifier.HashRequest nextHashRequest(BitSet peerPieces) {
+        synchronized (pieceLock) {
+            long now = System.currentTimeMillis();
+            for (int piece : pieceStates.getInProgressPieces()) {
+                Long requested = hashRequestTimes.get(piece);
+                if (!peerPieces.get(piece) || (requested != null && now - requested < HASH_REQUEST_TIMEOUT_MILLIS)) {
+                    continue;
+                }
+                MerkleVerifier.HashRequest request = merkleVerifier.getHashRequest(piece);
+                if (request != null) {
+                    hashRequestTimes.put(piece, now);
+                    return request;
+                }
+            }
+            return null;
+        }
+    }
+
+    private final PiecePipeline.Handler pipelineHandler = new PiecePipeline.Handler() {
+        @Override
+        public boolean verify(int pieceIndex, byte[] data) throws NoSuchAlgorithmException {
+            return verifyPiece(pieceIndex, data);
+        }
+
+        @Override
+        public void store(int pieceIndex, byte[] data) throws IOException {
+            savePieceToFile(pieceIndex, data);
+        }
+
+        @Override
+        public void onStored(int pieceIndex, byte[] data) {
+            bufferedBytes.addAndGet(-data.length);
+            synchronized (pieceLock) {
+                pieceStates.setComplete(pieceIndex);
+                hashRequestTimes.remove(pieceIndex);
+                pieces.set(pieceIndex);
+                downloadedBytes.addAndGet(data.length);
+                readCache.put(pieceIndex, data);
+                try {
                     saveProgress();
-                    logger.info("Piece {} completed", pieceIndex);
+                } catch (IOException e) {
+                    logger.error("Error saving progress", e);
+                }
+            }
+            if (merkleVerifier != null) {
+                merkleVerifier.discard(pieceIndex);
+            }
+            // Blocks of earlier failed copies that differ from this one name the culprits
+            for (String culprit : smartBan.onPiecePassed(pieceIndex, data)) {
+                banPeer(culprit);
+            }
+            logger.info("Piece {} completed", pieceIndex);
+        }
+
+        @Override
+        public void onFailed(int pieceIndex, byte[] data, boolean corrupt) {
+            bufferedBytes.addAndGet(-data.length);
+            BitSet corruptBlocks = corrupt && merkleVerifier != null
+                ? merkleVerifier.findCorruptBlocks(pieceIndex, data) : null;
+            Set<String> culprits = new HashSet<>();
+            synchronized (pieceLock) {
+                if (corruptBlocks != null && !corruptBlocks.isEmpty()) {
+                    // Keep the good blocks and fetch only the corrupt ones again
+                    logger.warn("Piece {} verification failed in {} block(s)", pieceIndex, corruptBlocks.cardinality());
+                    for (int block = corruptBlocks.nextSetBit(0); block >= 0; block = corruptBlocks.nextSetBit(block + 1)) {
+                        pieceStates.markBlockMissing(pieceIndex, block);
+                        culprits.add(smartBan.getSource(pieceIndex, block));
+                    }
+                    smartBan.clearBlocks(pieceIndex, corruptBlocks);
+                    Checkpoint checkpoint = checkpoints.get(pieceIndex);
+                    if (checkpoint != null) {
+                        checkpoint.written.andNot(corruptBlocks);
+                    }
+                    bufferedBytes.addAndGet(data.length);
+                    pieceBuffers.put(pieceIndex, data);
                 } else {
-                    logger.warn("Piece {} verification failed", pieceIndex);
-                    int retries = pieceRetries.get(pieceIndex);
-                    if (retries < MAX_RETRIES) {
-                        pieceRetries.put(pieceIndex, retries + 1);
-                        pieceStatus.put(pieceIndex, false);
-                    } else {
+                    if (corrupt) {
+                        logger.warn("Piece {} verification failed", pieceIndex);
+                        smartBan.onPieceFailed(pieceIndex, data);
+                    }
+                    int retries = pieceStates.markFailed(pieceIndex);
+                    if (retries > MAX_RETRIES) {
                         logger.error("Piece {} failed after {} retries", pieceIndex, MAX_RETRIES);
                     }
                 }
-            } catch (Exception e) {
-                logger.error("Error handling piece completion", e);
             }
+            culprits.forEach(TorrentClient.this::banPeer);
         }
+    };
+
+    /**
+     * Whether the verify/write stages or the buffered piece data are at their
+     * limit. While they are, no new pieces are started.
+     */
+    private boolean isBackpressured() {
+        return piecePipeline.isSaturated() || bufferedBytes.get() >= maxBufferedBytes;
     }
 
     private boolean verifyPiece(int pieceIndex, byte[] data) throws NoSuchAlgorithmException {
-        MessageDigest digest = MessageDigest.getInstance("SHA-1");
-        byte[] hash = digest.digest(data);
-        String pieceHash = torrentFile.getInfo().getPieces().substring(pieceIndex * 40, (pieceIndex + 1) * 40);
+        // Whatever the outcome, a piece downloaded again is hashed from scratch
+        PieceDigest pieceDigest = pieceDigests.remove(pieceIndex);
+        if (merkleVerifier != null && !merkleVerifier.verifyPiece(pieceIndex, ByteBuffer.wrap(data))) {
+            return false;
+        }
+        if (torrentFile.getInfo().getPieces() == null) {
+            // v2-only torrent
+            return merkleVerifier != null;
+        }
+        byte[] hash;
+        if (pieceDigest != null && pieceDigest.isFor(data)) {
+            hash = pieceDigest.finish();
+        } else {
+            // Pieces from web seeds arrive whole
+            hash = MessageDigest.getInstance("SHA-1").digest(data);
+        }
+        String pieceHash = torrentFile.getInfo().getPieces().substring(pieceIndex * 20, (pieceIndex + 1) * 20);
         return java.util.Arrays.equals(hash, pieceHash.getBytes(StandardCharsets.ISO_8859_1));
     }
 
     private void savePieceToFile(int pieceIndex, byte[] data) throws IOException {
-        if (torrentFile.getInfo().getFiles() != null) {
-            long offset = (long) pieceIndex * PIECE_SIZE;
-            for (TorrentFile.Info.FileInfo file : torrentFile.getInfo().getFiles()) {
-                if (offset >= file.getLength()) {
-                    offset -= file.getLength();
-                    continue;
-                }
-                File targetFile = new File(downloadDir, String.join(File.separator, file.getPath()));
-                long fileOffset = Math.max(0, offset);
-                long pieceOffset = Math.max(0, -offset);
-                long length = Math.min(data.length - pieceOffset, file.getLength() - fileOffset);
-                Files.write(targetFile.toPath(), 
-                    java.util.Arrays.copyOfRange(data, (int) pieceOffset, (int) (pieceOffset + length)),
-                    StandardOpenOption.WRITE);
-                offset += length;
-            }
-        } else {
-            File targetFile = new File(downloadDir, torrentFile.getInfo().getName());
-            Files.write(targetFile.toPath(), data, StandardOpenOption.WRITE);
+        synchronized (storageWriteLock) {
+            storage.writePiece(pieceIndex, data);
         }
     }
 
-    private PeerConnection.Block getNextBlock() {
+    /**
+     * Picks the next block to request from {@code peer}. Streaming deadlines come
+     * first, then pieces already in progress, then the rarest wanted piece.
+     * Time-critical pieces are left to fast peers, which may duplicate requests
+     * still outstanding on slower ones.
+     */
+    private PeerConnection.Block getNextBlock(PeerConnection peer, BitSet available) {
         synchronized (pieceLock) {
-            for (int i = 0; i < pieces.length(); i++) {
-                if (!pieceStatus.get(i)) {
-                    List<Block> blocks = pieceBlocks.get(i);
-                    for (Block block : blocks) {
-                        if (!block.isDownloaded()) {
-                            return new PeerConnection.Block(block.getIndex(), block.getSize());
-                        }
+            long now = System.currentTimeMillis();
+            boolean fastPeer = isFastPeer(peer);
+            // Under backpressure only pieces that already hold a buffer are continued
+            boolean startNew = !isBackpressured();
+            for (int piece : piecePicker.getDeadlinePieces()) {
+                if (!available.get(piece) || !isPickable(piece) || (!startNew && !pieceStates.isInProgress(piece))) {
+                    continue;
+                }
+                boolean critical = piecePicker.isCritical(piece, now);
+                if (critical && !fastPeer) {
+                    continue;
+                }
+                PeerConnection.Block block = claimBlock(peer, piece, critical ? MAX_DUPLICATE_REQUESTS : 1);
+                if (block != null) {
+                    return block;
+                }
+            }
+            for (int piece : pieceStates.getInProgressPieces()) {
+                if (available.get(piece) && isPickable(piece)) {
+                    PeerConnection.Block block = claimBlock(peer, piece, 1);
+                    if (block != null) {
+                        return block;
                     }
                 }
             }
+            if (!startNew) {
+                return null;
+            }
+            int piece = piecePicker.pickRarest(available, i -> isPickable(i) && !pieceStates.isInProgress(i));
+            return piece < 0 ? null : claimBlock(peer, piece, 1);
+        }
+    }
+
+    private boolean isPickable(int piece) {
+        return !pieceStates.isComplete(piece) && pieceStates.getRetries(piece) <= MAX_RETRIES
+            && piecePicker.isWanted(piece);
+    }
+
+    private PeerConnection.Block claimBlock(PeerConnection peer, int piece, int maxRequests) {
+        if (isSuspect(peer, piece)) {
+            return null;
+        }
+        int block = pieceStates.claimBlock(piece, maxRequests, (p, b) -> peer.isPending(p, b * BLOCK_SIZE));
+        if (block < 0) {
             return null;
         }
+        return new PeerConnection.Block(piece, block * BLOCK_SIZE, pieceStates.getBlockSize(piece, block));
+    }
+
+    /**
+     * A peer that contributed to a failed copy of the piece does not supply it
+     * again while other peers can, so the next copy tells who sent bad data.
+     */
+    private boolean isSuspect(PeerConnection peer, int piece) {
+        return smartBan.isSuspect(piece, peer.getIp())
+            && peerConnections.size() > smartBan.getSuspects(piece).size();
+    }
+
+    /** A peer is fast when it is in the faster half of connected peers by download rate. */
+    private boolean isFastPeer(PeerConnection peer) {
+        long rate = peer.getDownloadRate();
+        if (rate == 0) {
+            return false;
+        }
+        int slower = 0;
+        int total = 0;
+        for (PeerConnection other : peerConnections.values()) {
+            total++;
+            if (other.getDownloadRate() < rate) {
+                slower++;
+            }
+        }
+        return slower * 2 >= total - 1;
+    }
+
+    private void releaseBlock(PeerConnection.Block released) {
+        synchronized (pieceLock) {
+            pieceStates.release(released.getIndex(), released.getBegin() / BLOCK_SIZE);
+        }
+    }
+
+    private boolean hasPiece(int pieceIndex) {
+        synchronized (pieceLock) {
+            return pieces.get(pieceIndex);
+        }
+    }
+
+    /** Sets the download priority of a file; {@link PiecePicker.Priority#SKIP} excludes it. */
+    public void setFilePriority(int fileIndex, PiecePicker.Priority priority) {
+        piecePicker.setFilePriority(fileIndex, priority);
+    }
+
+    /** Expected read rate of a streaming consumer, in bytes per second. */
+    public void setStreamingRate(long bytesPerSecond) {
+        piecePicker.setStreamingRate(bytesPerSecond);
+    }
+
+    /**
+     * Enables streaming: the pieces following this position in the file get
+     * deadlines and are fetched ahead of everything else. Call it again as the
+     * reader advances.
+     */
+    public void setReadPosition(int fileIndex, long offset) {
+        piecePicker.setReaderPosition(piecePicker.toTorrentOffset(fileIndex, offset));
+    }
+
+    public void clearReadPosition() {
+        piecePicker.clearReaderPosition();
+    }
+
+    /** Whether the given range of a file has been downloaded and verified. */
+    public boolean isRangeAvailable(int fileIndex, long offset, long length) {
+        long start = piecePicker.toTorrentOffset(fileIndex, offset);
+        long end = piecePicker.toTorrentOffset(fileIndex, offset + length);
+        if (end <= start) {
+            return true;
+        }
+        long pieceLength = torrentFile.getInfo().getPieceLength();
+        int first = (int) (start / pieceLength);
+        int last = (int) ((end - 1) / pieceLength);
+        synchronized (pieceLock) {
+            return pieces.nextClearBit(first) > last;
+        }
     }
 
     private String buildTrackerQuery() throws IOException {
@@ -274,23 +993,11 @@ public class TorrentClient {
         query.append("&port=").append(uploadSocket.getLocalPort());
         query.append("&uploaded=").append(uploadedBytes.get());
         query.append("&downloaded=").append(downloadedBytes.get());
-        query.append("&left=").append(calculateTotalSize() - downloadedBytes.get());
+        query.append("&left=").append(storage.getTotalSize() - downloadedBytes.get());
         query.append("&compact=").append(1);
         return query.toString();
     }
 
-    private long calculateTotalSize() {
-        long totalSize = 0;
-        if (torrentFile.getInfo().getFiles() != null) {
-            for (TorrentFile.Info.FileInfo file : torrentFile.getInfo().getFiles()) {
-                totalSize += file.getLength();
-            }
-        } else {
-            totalSize = torrentFile.getInfo().getPieceLength();
-        }
-        return totalSize;
-    }
-
     private void startPeerConnections() {
         // Peer connections are started in handleTrackerResponse
     }
@@ -300,7 +1007,23 @@ public class TorrentClient {
         try {
             downloadExecutor.shutdown();
             uploadExecutor.shutdown();
+            webSeedExecutor.shutdownNow();
+            dhtExecutor.shutdownNow();
+            if (dhtNode != null) {
+                dhtNode.stop();
+            }
+            if (utpManager != null) {
+                utpManager.close();
+            }
             uploadSocket.close();
+            piecePipeline.close();
+            // Not interrupted: that would close the storage channels mid-write
+            checkpointExecutor.shutdown();
+            checkpointExecutor.awaitTermination(30, TimeUnit.SECONDS);
+            checkpointPartialPieces();
+            logger.info("Read cache: {}", readCache);
+            readCache.close();
+            storage.close();
             if (!downloadExecutor.awaitTermination(5, TimeUnit.SECONDS)) {
                 downloadExecutor.shutdownNow();
             }
@@ -319,7 +1042,11 @@ public class TorrentClient {
 
         if (torrentFile.getInfo().getFiles() != null) {
             for (TorrentFile.Info.FileInfo file : torrentFile.getInfo().getFiles()) {
-                File targetFile = new File(downloadDir, String.join(File.separator, file.getPath()));
+                if (file.isPadding()) {
+                    continue;
+                }
+                String path = BencodeParser.fromRaw(String.join(File.separator, file.getPath()));
+                File targetFile = new File(downloadDir, path);
                 if (!targetFile.getParentFile().exists()) {
                     targetFile.getParentFile().mkdirs();
                 }
@@ -328,7 +1055,7 @@ public class TorrentClient {
                 }
             }
         } else {
-            File targetFile = new File(downloadDir, torrentFile.getInfo().getName());
+            File targetFile = new File(downloadDir, BencodeParser.fromRaw(torrentFile.getInfo().getName()));
             if (!targetFile.exists()) {
                 targetFile.createNewFile();
             }
@@ -337,15 +1064,165 @@ public class TorrentClient {
 
     private void loadProgress() throws IOException {
         File progressFile = new File(downloadDir, ".progress");
-        if (progressFile.exists()) {
-            byte[] data = Files.readAllBytes(progressFile.toPath());
+        byte[] data = progressFile.exists() ? Files.readAllBytes(progressFile.toPath()) : null;
+        // saveProgress writes at most one byte per piece; anything longer did not come from us
+        boolean suspect = data == null || data.length > storage.getPieceCount();
+        if (forceRecheck || (suspect && storage.hasData())) {
+            recheck();
+            return;
+        }
+        if (data != null) {
             for (int i = 0; i < data.length; i++) {
                 if (data[i] == 1) {
                     pieces.set(i);
-                    pieceStatus.put(i, true);
+                    pieceStates.setComplete(i);
+                }
+            }
+        }
+        loadPartialPieces();
+    }
+
+    /**
+     * Writes the blocks of partial pieces received since the last checkpoint
+     * to their place on disk, then records which blocks each partial piece has,
+     * so a restart resumes them instead of downloading them again.
+     */
+    private void checkpointPartialPieces() throws IOException {
+        List<Checkpoint> partial = new ArrayList<>();
+        synchronized (pieceLock) {
+            checkpoints.keySet().retainAll(pieceBuffers.keySet());
+            for (Map.Entry<Integer, byte[]> entry : pieceBuffers.entrySet()) {
+                int piece = entry.getKey();
+                Checkpoint checkpoint = checkpoints.get(piece);
+                if (checkpoint == null || checkpoint.buffer != entry.getValue()) {
+                    checkpoint = new Checkpoint(piece, entry.getValue());
+                    checkpoints.put(piece, checkpoint);
+                }
+                BitSet downloaded = pieceStates.getDownloadedBlocks(piece);
+                if (!downloaded.isEmpty()) {
+                    partial.add(checkpoint.snapshot(downloaded));
                 }
             }
         }
+        long pieceLength = torrentFile.getInfo().getPieceLength();
+        Map<Integer, BitSet> saved = new TreeMap<>();
+        synchronized (storageWriteLock) {
+            for (Checkpoint snapshot : partial) {
+                // A piece completed meanwhile is already queued for its verified write
+                if (pieceBuffers.get(snapshot.piece) != snapshot.buffer) {
+                    continue;
+                }
+                BitSet pending = (BitSet) snapshot.downloaded.clone();
+                pending.andNot(snapshot.written);
+                for (int block = pending.nextSetBit(0); block >= 0; block = pending.nextSetBit(block + 1)) {
+                    int begin = block * BLOCK_SIZE;
+                    storage.write(snapshot.piece * pieceLength + begin,
+                        ByteBuffer.wrap(snapshot.buffer, begin, pieceStates.getBlockSize(snapshot.piece, block)));
+                }
+                saved.put(snapshot.piece, snapshot.downloaded);
+            }
+        }
+        synchronized (pieceLock) {
+            for (Checkpoint snapshot : partial) {
+                Checkpoint checkpoint = checkpoints.get(snapshot.piece);
+                if (checkpoint != null && checkpoint.buffer == snapshot.buffer && saved.containsKey(snapshot.piece)) {
+                    checkpoint.written.or(snapshot.downloaded);
+                }
+            }
+            // Data on disk without a progress file would be taken for foreign data and rechecked
+            saveProgress();
+        }
+        savePartialPieces(saved);
+    }
+
+    private void savePartialPieces(Map<Integer, BitSet> partial) throws IOException {
+        Path partialFile = new File(downloadDir, ".partial").toPath();
+        if (partial.isEmpty()) {
+            Files.deleteIfExists(partialFile);
+            return;
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(partial.size());
+            for (Map.Entry<Integer, BitSet> entry : partial.entrySet()) {
+                byte[] bitmap = entry.getValue().toByteArray();
+                out.writeInt(entry.getKey());
+                out.writeInt(bitmap.length);
+                out.write(bitmap);
+            }
+        }
+        // Replaced atomically so a crash never leaves a bitmap claiming blocks we lack
+        Path tempFile = new File(downloadDir, ".partial.tmp").toPath();
+        Files.write(tempFile, bytes.toByteArray());
+        Files.move(tempFile, partialFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /** Reloads the blocks of partial pieces recorded by the last checkpoint; they are verified once complete. */
+    private void loadPartialPieces() throws IOException {
+        File partialFile = new File(downloadDir, ".partial");
+        if (!partialFile.exists()) {
+            return;
+        }
+        long pieceLength = torrentFile.getInfo().getPieceLength();
+        int restored = 0;
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(Files.readAllBytes(partialFile.toPath())))) {
+            int count = in.readInt();
+            for (int n = 0; n < count; n++) {
+                int piece = in.readInt();
+                int length = in.readInt();
+                if (piece < 0 || piece >= storage.getPieceCount() || length < 0 || length > in.available()) {
+                    logger.warn("Ignoring malformed partial piece data");
+                    return;
+                }
+                byte[] bitmap = new byte[length];
+                in.readFully(bitmap);
+                BitSet blocks = BitSet.valueOf(bitmap);
+                if (pieces.get(piece) || blocks.isEmpty() || blocks.length() > pieceStates.getBlockCount(piece)) {
+                    continue;
+                }
+                byte[] buffer = allocatePieceBuffer(piece);
+                for (int block = blocks.nextSetBit(0); block >= 0; block = blocks.nextSetBit(block + 1)) {
+                    int begin = block * BLOCK_SIZE;
+                    storage.read(piece * pieceLength + begin,
+                        ByteBuffer.wrap(buffer, begin, pieceStates.getBlockSize(piece, block)));
+                    pieceStates.markDownloaded(piece, block);
+                }
+                Checkpoint checkpoint = new Checkpoint(piece, buffer);
+                checkpoint.written.or(blocks);
+                checkpoints.put(piece, checkpoint);
+                restored++;
+                if (pieceStates.isFullyDownloaded(piece)) {
+                    handlePieceComplete(piece, buffer);
+                } else {
+                    pieceBuffers.put(piece, buffer);
+                }
+            }
+        } catch (EOFException e) {
+            logger.warn("Ignoring truncated partial piece data");
+        }
+        logger.info("Resuming {} partial pieces", restored);
+    }
+
+    private void recheck() throws IOException {
+        int total = storage.getPieceCount();
+        int step = Math.max(1, total / 20);
+        logger.info("Rechecking {} pieces against existing data", total);
+        long start = System.nanoTime();
+        BitSet verified = new PieceVerifier(storage, torrentFile.getInfo().getPieces(), merkleVerifier,
+            Runtime.getRuntime().availableProcessors()).verifyAll((checked, count) -> {
+            if (checked % step == 0 || checked == count) {
+                logger.info("Recheck progress: {}/{} pieces", checked, count);
+            }
+        });
+        synchronized (pieceLock) {
+            for (int i = verified.nextSetBit(0); i >= 0; i = verified.nextSetBit(i + 1)) {
+                pieces.set(i);
+                pieceStates.setComplete(i);
+            }
+            saveProgress();
+        }
+        logger.info("Recheck found {}/{} pieces complete in {} ms",
+            verified.cardinality(), total, (System.nanoTime() - start) / 1_000_000);
     }
 
     private void saveProgress() throws IOException {
@@ -357,9 +1234,44 @@ public class TorrentClient {
         Files.write(progressFile.toPath(), data);
     }
 
+    /** Blocks of a partial piece buffer that are on disk; a snapshot also holds those downloaded. */
+    private static class Checkpoint {
+        private final int piece;
+        private final byte[] buffer;
+        private final BitSet written;
+        private final BitSet downloaded;
+
+        Checkpoint(int piece, byte[] buffer) {
+            this(piece, buffer, new BitSet(), null);
+        }
+
+        private Checkpoint(int piece, byte[] buffer, BitSet written, BitSet downloaded) {
+            this.piece = piece;
+            this.buffer = buffer;
+            this.written = written;
+            this.downloaded = downloaded;
+        }
+
+        Checkpoint snapshot(BitSet downloaded) {
+            return new Checkpoint(piece, buffer, (BitSet) written.clone(), downloaded);
+        }
+    }
+
     public static void main(String[] args) {
-        if (args.length != 2) {
-            System.out.println("Usage: java TorrentClient <torrent_file> <download_directory>");
+        boolean recheck = false;
+        boolean superSeed = false;
+        boolean valid = args.length >= 2;
+        for (int i = 2; i < args.length; i++) {
+            if (args[i].equals("--recheck")) {
+                recheck = true;
+            } else if (args[i].equals("--super-seed")) {
+                superSeed = true;
+            } else {
+                valid = false;
+            }
+        }
+        if (!valid) {
+            System.out.println("Usage: java TorrentClient <torrent_file> <download_directory> [--recheck] [--super-seed]");
             return;
         }
 
@@ -379,6 +1291,8 @@ public class TorrentClient {
             TorrentFile parsedTorrent = TorrentFileParser.parse(torrentFile);
             byte[] infoHash = TorrentFileParser.calculateInfoHash(torrentFile);
             TorrentClient client = new TorrentClient(parsedTorrent, downloadDir, infoHash);
+            client.setForceRecheck(recheck);
+            client.setSuperSeeding(superSeed);
             
             Runtime.getRuntime().addShutdownHook(new Thread(client::shutdown));
             client.start();
@@ -386,32 +1300,4 @@ public class TorrentClient {
             logger.error("Error starting torrent client", e);
         }
     }
-
-    private static class Block {
-        private final int index;
-        private final long size;
-        private boolean downloaded;
-
-        public Block(int index, long size) {
-            this.index = index;
-            this.size = size;
-            this.downloaded = false;
-        }
-
-        public int getIndex() {
-            return index;
-        }
-
-        public long getSize() {
-            return size;
-        }
-
-        public boolean isDownloaded() {
-            return downloaded;
-        }
-
-        public void setDownloaded(boolean downloaded) {
-            this.downloaded = downloaded;
-        }
-    }
-} 
\ No newline at end of file
+}
@@ -0,0 +1,306 @@
+package com.torrent;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Builds a {@link TorrentFile} from a file or directory, hashing pieces on all
+ * cores with positional reads, and writes it out as a .torrent.
+ */
+public class TorrentCreator {
+    private static final Logger logger = LoggerFactory.getLogger(TorrentCreator.class);
+    private static final String CREATED_BY = "simple-torrent 1.0";
+    private static final long MIN_PIECE_LENGTH = 16 * 1024;
+    private static final long MAX_PIECE_LENGTH = 16 * 1024 * 1024;
+    private static final long TARGET_PIECE_COUNT = 2000;
+    // Each worker claims this many consecutive pieces so reads stay sequential per thread
+    private static final int PIECES_PER_TASK = 16;
+
+    private final File source;
+    private String announce;
+    private String comment;
+    private List<String> webSeeds;
+    private boolean isPrivate;
+    private long pieceLength;
+    private int threads = Runtime.getRuntime().availableProcessors();
+
+    public TorrentCreator(File source) {
+        this.source = source;
+    }
+
+    public TorrentCreator setAnnounce(String announce) {
+        this.announce = announce;
+        return this;
+    }
+
+    public TorrentCreator setComment(String comment) {
+        this.comment = comment;
+        return this;
+    }
+
+    /** Base URLs of HTTP servers holding the same files (BEP 19). */
+    public TorrentCreator setWebSeeds(List<String> webSeeds) {
+        this.webSeeds = webSeeds;
+        return this;
+    }
+
+    public TorrentCreator setPrivate(boolean isPrivate) {
+        this.isPrivate = isPrivate;
+        return this;
+    }
+
+    public TorrentCreator setPieceLength(long pieceLength) {
+        this.pieceLength = pieceLength;
+        return this;
+    }
+
+    public TorrentCreator setThreads(int threads) {
+        this.threads = Math.max(1, threads);
+        return this;
+    }
+
+    public TorrentFile create() throws IOException {
+        if (!source.exists()) {
+            throw new IOException("Source does not exist: " + source.getAbsolutePath());
+        }
+
+        TorrentFile.Info info = new TorrentFile.Info();
+        info.setName(BencodeParser.toRaw(source.getName()));
+        info.setPrivate(isPrivate);
+        File baseDir;
+        long totalSize;
+        if (source.isDirectory()) {
+            baseDir = source;
+            List<TorrentFile.Info.FileInfo> files = listFiles(source.toPath());
+            if (files.isEmpty()) {
+                throw new IOException("No files found under " + source.getAbsolutePath());
+            }
+            info.setFiles(files);
+            totalSize = files.stream().mapToLong(TorrentFile.Info.FileInfo::getLength).sum();
+        } else {
+            baseDir = source.getAbsoluteFile().getParentFile();
+            totalSize = source.length();
+            info.setLength(totalSize);
+        }
+        info.setPieceLength(pieceLength > 0 ? pieceLength : choosePieceLength(totalSize));
+
+        long start = System.nanoTime();
+        PieceStorage storage = new PieceStorage(baseDir, info, true);
+        try {
+            info.setPieces(new String(hashPieces(storage), StandardCharsets.ISO_8859_1));
+        } finally {
+            storage.close();
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        logger.info("Hashed {} pieces ({} bytes) in {}s at {} MB/s using {} threads",
+            storage.getPieceCount(), totalSize, String.format("%.2f", seconds),
+            String.format("%.1f", totalSize / 1e6 / Math.max(seconds, 1e-9)), threads);
+
+        TorrentFile torrent = new TorrentFile();
+        torrent.setAnnounce(announce);
+        torrent.setComment(comment == null ? null : BencodeParser.toRaw(comment));
+        torrent.setUrlList(webSeeds);
+        torrent.setCreatedBy(CREATED_BY);
+        torrent.setCreationDate(System.currentTimeMillis() / 1000);
+        torrent.setEncoding("UTF-8");
+        torrent.setInfo(info);
+        return torrent;
+    }
+
+    /**
+     * Picks the smallest power of two that keeps the piece count near
+     * {@link #TARGET_PIECE_COUNT}, clamped to [16 KiB, 16 MiB].
+     */
+    public static long choosePieceLength(long totalSize) {
+        long length = MIN_PIECE_LENGTH;
+        while (length < MAX_PIECE_LENGTH && totalSize / length > TARGET_PIECE_COUNT) {
+            length <<= 1;
+        }
+        return length;
+    }
+
+    private byte[] hashPieces(PieceStorage storage) throws IOException {
+        int pieceCount = storage.getPieceCount();
+        byte[] hashes = new byte[pieceCount * 20];
+        AtomicInteger nextPiece = new AtomicInteger(0);
+        AtomicInteger hashed = new AtomicInteger(0);
+        int workers = Math.min(threads, Math.max(1, (pieceCount + PIECES_PER_TASK - 1) / PIECES_PER_TASK));
+        ExecutorService executor = Executors.newFixedThreadPool(workers);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int w = 0; w < workers; w++) {
+                futures.add(executor.submit(() -> {
+                    hashWorker(storage, hashes, nextPiece, hashed, pieceCount);
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while hashing", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Error hashing pieces", e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+        return hashes;
+    }
+
+    private static void hashWorker(PieceStorage storage, byte[] hashes, AtomicInteger nextPiece,
+                                   AtomicInteger hashed, int pieceCount) throws IOException, NoSuchAlgorithmException {
+        MessageDigest digest = MessageDigest.getInstance("SHA-1");
+        ByteBuffer buffer = ByteBuffer.allocateDirect((int) storage.getPieceLength());
+        int progressStep = Math.max(1, pieceCount / 20);
+        while (true) {
+            int first = nextPiece.getAndAdd(PIECES_PER_TASK);
+            if (first >= pieceCount) {
+                return;
+            }
+            int last = Math.min(pieceCount, first + PIECES_PER_TASK);
+            for (int piece = first; piece < last; piece++) {
+                buffer.clear();
+                buffer.limit(storage.getPieceSize(piece));
+                storage.read(piece * storage.getPieceLength(), buffer);
+                buffer.flip();
+                digest.update(buffer);
+                byte[] hash = digest.digest();
+                System.arraycopy(hash, 0, hashes, piece * 20, 20);
+                int done = hashed.incrementAndGet();
+                if (done % progressStep == 0) {
+                    logger.info("Hashed {}/{} pieces", done, pieceCount);
+                }
+            }
+        }
+    }
+
+    private static List<TorrentFile.Info.FileInfo> listFiles(Path root) throws IOException {
+        List<Path> paths;
+        try (Stream<Path> walk = Files.walk(root)) {
+            paths = walk.filter(Files::isRegularFile).sorted().collect(Collectors.toList());
+        }
+        List<TorrentFile.Info.FileInfo> files = new ArrayList<>();
+        for (Path path : paths) {
+            List<String> components = new ArrayList<>();
+            for (Path part : root.relativize(path)) {
+                components.add(BencodeParser.toRaw(part.toString()));
+            }
+            TorrentFile.Info.FileInfo file = new TorrentFile.Info.FileInfo();
+            file.setLength(Files.size(path));
+            file.setPath(components);
+            files.add(file);
+        }
+        return files;
+    }
+
+    public static Map<String, Object> toBencode(TorrentFile torrent) {
+        Map<String, Object> dict = new LinkedHashMap<>();
+        if (torrent.getAnnounce() != null) {
+            dict.put("announce", torrent.getAnnounce());
+        }
+        if (torrent.getAnnounceList() != null) {
+            dict.put("announce-list", torrent.getAnnounceList());
+        }
+        if (torrent.getNodes() != null) {
+            List<List<Object>> nodes = new ArrayList<>();
+            for (String node : torrent.getNodes()) {
+                int separator = node.lastIndexOf(':');
+                nodes.add(List.of(node.substring(0, separator), Long.parseLong(node.substring(separator + 1))));
+            }
+            dict.put("nodes", nodes);
+        }
+        if (torrent.getUrlList() != null) {
+            dict.put("url-list", torrent.getUrlList());
+        }
+        if (torrent.getComment() != null) {
+            dict.put("comment", torrent.getComment());
+        }
+        if (torrent.getCreatedBy() != null) {
+            dict.put("created by", torrent.getCreatedBy());
+        }
+        dict.put("creation date", torrent.getCreationDate());
+        if (torrent.getEncoding() != null) {
+            dict.put("encoding", torrent.getEncoding());
+        }
+        dict.put("info", infoToBencode(torrent.getInfo()));
+        return dict;
+    }
+
+    public static Map<String, Object> infoToBencode(TorrentFile.Info info) {
+        Map<String, Object> dict = new LinkedHashMap<>();
+        dict.put("name", info.getName());
+        dict.put("piece length", info.getPieceLength());
+        dict.put("pieces", info.getPieces());
+        if (info.isPrivate()) {
+            dict.put("private", 1L);
+        }
+        if (info.getFiles() != null) {
+            List<Map<String, Object>> files = new ArrayList<>();
+            for (TorrentFile.Info.FileInfo file : info.getFiles()) {
+                Map<String, Object> entry = new LinkedHashMap<>();
+                entry.put("length", file.getLength());
+                entry.put("path", file.getPath());
+                if (file.getAttr() != null) {
+                    entry.put("attr", file.getAttr());
+                }
+                files.add(entry);
+            }
+            dict.put("files", files);
+        } else {
+            dict.put("length", info.getLength());
+        }
+        return dict;
+    }
+
+    public static byte[] calculateInfoHash(TorrentFile.Info info) throws NoSuchAlgorithmException {
+        MessageDigest digest = MessageDigest.getInstance("SHA-1");
+        return digest.digest(BencodeParser.encode(infoToBencode(info)));
+    }
+
+    public static void write(TorrentFile torrent, File output) throws IOException {
+        Files.write(output.toPath(), BencodeParser.encode(toBencode(torrent)));
+    }
+
+    public static void main(String[] args) {
+        if (args.length < 3 || args.length > 4) {
+            System.out.println("Usage: java TorrentCreator <source> <announce_url> <output_torrent> [piece_length]");
+            return;
+        }
+
+        try {
+            TorrentCreator creator = new TorrentCreator(new File(args[0])).setAnnounce(args[1]);
+            if (args.length == 4) {
+                creator.setPieceLength(Long.parseLong(args[3]));
+            }
+            TorrentFile torrent = creator.create();
+            write(torrent, new File(args[2]));
+            logger.info("Wrote {} (piece length {})", args[2], torrent.getInfo().getPieceLength());
+        } catch (Exception e) {
+            logger.error("Error creating torrent", e);
+        }
+    }
+}
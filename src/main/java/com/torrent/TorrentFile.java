@@ -7,10 +7,13 @@ import java.util.Map;
 public class TorrentFile {
     private String announce;
     private List<List<String>> announceList;
+    private List<String> nodes;
+    private List<String> urlList;
     private String comment;
     private String createdBy;
     private long creationDate;
     private String encoding;
+    private Map<String, String> pieceLayers;
     private Info info;
 
     public static class Info {
@@ -18,11 +21,16 @@ public class TorrentFile {
         private String pieces;
         private boolean isPrivate;
         private String name;
+        private long length;
         private List<FileInfo> files;
+        private int metaVersion = 1;
+        private List<FileInfo> fileTree;
 
         public static class FileInfo {
             private long length;
             private List<String> path;
+            private String attr;
+            private String piecesRoot;
 
             public long getLength() {
                 return length;
@@ -39,6 +47,29 @@ public class TorrentFile {
             public void setPath(List<String> path) {
                 this.path = path;
             }
+
+            /** BEP 47 attributes, e.g. "p" for a padding file. */
+            public String getAttr() {
+                return attr;
+            }
+
+            public void setAttr(String attr) {
+                this.attr = attr;
+            }
+
+            /** Padding files align the next file to a piece boundary and are never stored. */
+            public boolean isPadding() {
+                return attr != null && attr.indexOf('p') >= 0;
+            }
+
+            /** Root of the file's SHA-256 merkle tree (BEP 52); null for v1 files and empty files. */
+            public String getPiecesRoot() {
+                return piecesRoot;
+            }
+
+            public void setPiecesRoot(String piecesRoot) {
+                this.piecesRoot = piecesRoot;
+            }
         }
 
         public long getPieceLength() {
@@ -73,6 +104,14 @@ public class TorrentFile {
             this.name = name;
         }
 
+        public long getLength() {
+            return length;
+        }
+
+        public void setLength(long length) {
+            this.length = length;
+        }
+
         public List<FileInfo> getFiles() {
             return files;
         }
@@ -80,6 +119,24 @@ public class TorrentFile {
         public void setFiles(List<FileInfo> files) {
             this.files = files;
         }
+
+        /** 2 for v2 and hybrid torrents (BEP 52). */
+        public int getMetaVersion() {
+            return metaVersion;
+        }
+
+        public void setMetaVersion(int metaVersion) {
+            this.metaVersion = metaVersion;
+        }
+
+        /** Files of the v2 file tree in order, each with its pieces root; null for v1 torrents. */
+        public List<FileInfo> getFileTree() {
+            return fileTree;
+        }
+
+        public void setFileTree(List<FileInfo> fileTree) {
+            this.fileTree = fileTree;
+        }
     }
 
     public String getAnnounce() {
@@ -98,6 +155,23 @@ public class TorrentFile {
         this.announceList = announceList;
     }
 
+    public List<String> getNodes() {
+        return nodes;
+    }
+
+    public void setNodes(List<String> nodes) {
+        this.nodes = nodes;
+    }
+
+    /** Web seed base URLs (BEP 19). */
+    public List<String> getUrlList() {
+        return urlList;
+    }
+
+    public void setUrlList(List<String> urlList) {
+        this.urlList = urlList;
+    }
+
     public String getComment() {
         return comment;
     }
@@ -130,6 +204,15 @@ public class TorrentFile {
         this.encoding = encoding;
     }
 
+    /** Piece-layer hashes of each file larger than one piece, keyed by pieces root (BEP 52). */
+    public Map<String, String> getPieceLayers() {
+        return pieceLayers;
+    }
+
+    public void setPieceLayers(Map<String, String> pieceLayers) {
+        this.pieceLayers = pieceLayers;
+    }
+
     public Info getInfo() {
         return info;
     }
@@ -10,8 +10,11 @@ import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
 
 public class TorrentFileParser {
     private static final Logger logger = LoggerFactory.getLogger(TorrentFileParser.class);
@@ -24,10 +27,13 @@ public class TorrentFileParser {
         TorrentFile result = new TorrentFile();
         result.setAnnounce((String) dict.get("announce"));
         result.setAnnounceList(parseAnnounceList(dict.get("announce-list")));
+        result.setNodes(parseNodes(dict.get("nodes")));
+        result.setUrlList(parseUrlList(dict.get("url-list")));
         result.setComment((String) dict.get("comment"));
         result.setCreatedBy((String) dict.get("created by"));
         result.setCreationDate((Long) dict.get("creation date"));
         result.setEncoding((String) dict.get("encoding"));
+        result.setPieceLayers(parsePieceLayers(dict.get("piece layers")));
 
         Map<String, Object> info = (Map<String, Object>) dict.get("info");
         TorrentFile.Info torrentInfo = new TorrentFile.Info();
@@ -35,6 +41,9 @@ public class TorrentFileParser {
         torrentInfo.setPieces((String) info.get("pieces"));
         torrentInfo.setPrivate(info.containsKey("private") && (Long) info.get("private") == 1);
         torrentInfo.setName((String) info.get("name"));
+        if (info.containsKey("length")) {
+            torrentInfo.setLength((Long) info.get("length"));
+        }
 
         if (info.containsKey("files")) {
             List<TorrentFile.Info.FileInfo> files = new ArrayList<>();
@@ -43,11 +52,24 @@ public class TorrentFileParser {
                 TorrentFile.Info.FileInfo file = new TorrentFile.Info.FileInfo();
                 file.setLength((Long) fileInfo.get("length"));
                 file.setPath((List<String>) fileInfo.get("path"));
+                file.setAttr((String) fileInfo.get("attr"));
                 files.add(file);
             }
             torrentInfo.setFiles(files);
         }
 
+        if (info.containsKey("meta version")) {
+            torrentInfo.setMetaVersion(((Long) info.get("meta version")).intValue());
+        }
+        if (info.get("file tree") instanceof Map) {
+            List<TorrentFile.Info.FileInfo> tree = new ArrayList<>();
+            parseFileTree((Map<?, ?>) info.get("file tree"), new ArrayList<>(), tree);
+            torrentInfo.setFileTree(tree);
+            if (!info.containsKey("files") && !info.containsKey("length")) {
+                alignFiles(torrentInfo, tree);
+            }
+        }
+
         result.setInfo(torrentInfo);
         return result;
     }
@@ -64,13 +86,105 @@ public class TorrentFileParser {
         return result;
     }
 
+    // DHT bootstrap nodes (BEP 5) as "host:port"
+    private static List<String> parseNodes(Object nodes) {
+        if (!(nodes instanceof List)) {
+            return null;
+        }
+        List<String> result = new ArrayList<>();
+        for (Object node : (List<?>) nodes) {
+            if (node instanceof List && ((List<?>) node).size() == 2) {
+                List<?> hostPort = (List<?>) node;
+                result.add(hostPort.get(0) + ":" + hostPort.get(1));
+            }
+        }
+        return result;
+    }
+
+    // Web seeds (BEP 19): a single URL or a list of them
+    private static List<String> parseUrlList(Object urlList) {
+        List<String> result = new ArrayList<>();
+        if (urlList instanceof String) {
+            result.add((String) urlList);
+        } else if (urlList instanceof List) {
+            for (Object url : (List<?>) urlList) {
+                if (url instanceof String) {
+                    result.add((String) url);
+                }
+            }
+        }
+        result.removeIf(String::isEmpty);
+        return result.isEmpty() ? null : result;
+    }
+
+    // BEP 52 file tree: nested directories, each file a dict under the empty key
+    private static void parseFileTree(Map<?, ?> node, List<String> path,
+                                      List<TorrentFile.Info.FileInfo> result) {
+        // Files are laid out in raw byte order of their names
+        for (Object name : new TreeMap<>(node).keySet()) {
+            Map<?, ?> child = (Map<?, ?>) node.get(name);
+            List<String> childPath = new ArrayList<>(path);
+            childPath.add((String) name);
+            Map<?, ?> leaf = (Map<?, ?>) child.get("");
+            if (leaf != null) {
+                TorrentFile.Info.FileInfo file = new TorrentFile.Info.FileInfo();
+                file.setLength((Long) leaf.get("length"));
+                file.setPath(childPath);
+                file.setPiecesRoot((String) leaf.get("pieces root"));
+                result.add(file);
+            } else {
+                parseFileTree(child, childPath, result);
+            }
+        }
+    }
+
+    /**
+     * Gives a v2-only torrent the layout a hybrid torrent would have: every
+     * file starts on a piece boundary, with padding files in between.
+     */
+    private static void alignFiles(TorrentFile.Info info, List<TorrentFile.Info.FileInfo> tree) {
+        if (tree.size() == 1 && tree.get(0).getPath().equals(List.of(info.getName()))) {
+            info.setLength(tree.get(0).getLength());
+            return;
+        }
+        List<TorrentFile.Info.FileInfo> files = new ArrayList<>();
+        for (int i = 0; i < tree.size(); i++) {
+            TorrentFile.Info.FileInfo file = tree.get(i);
+            files.add(file);
+            long tail = file.getLength() % info.getPieceLength();
+            if (tail != 0 && i < tree.size() - 1) {
+                TorrentFile.Info.FileInfo pad = new TorrentFile.Info.FileInfo();
+                pad.setLength(info.getPieceLength() - tail);
+                pad.setPath(List.of(".pad", Long.toString(info.getPieceLength() - tail)));
+                pad.setAttr("p");
+                files.add(pad);
+            }
+        }
+        info.setFiles(files);
+    }
+
+    private static Map<String, String> parsePieceLayers(Object pieceLayers) {
+        if (!(pieceLayers instanceof Map)) {
+            return null;
+        }
+        Map<String, String> result = new HashMap<>();
+        for (Map.Entry<?, ?> entry : ((Map<?, ?>) pieceLayers).entrySet()) {
+            result.put((String) entry.getKey(), (String) entry.getValue());
+        }
+        return result;
+    }
+
     public static byte[] calculateInfoHash(File torrentFile) throws IOException, NoSuchAlgorithmException {
         byte[] data = FileUtils.readFileToByteArray(torrentFile);
         BencodeParser parser = new BencodeParser(data);
         Map<String, Object> dict = (Map<String, Object>) parser.parse();
         Map<String, Object> info = (Map<String, Object>) dict.get("info");
         byte[] infoBytes = BencodeParser.encode(info);
-        
+
+        if (!info.containsKey("pieces")) {
+            // v2-only torrents are identified by the SHA-256 info hash, truncated for the wire (BEP 52)
+            return Arrays.copyOf(MessageDigest.getInstance("SHA-256").digest(infoBytes), 20);
+        }
         MessageDigest digest = MessageDigest.getInstance("SHA-1");
         return digest.digest(infoBytes);
     }
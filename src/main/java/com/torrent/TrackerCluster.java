@@ -0,0 +1,131 @@
+package com.torrent;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Membership and shard ownership of a tracker cluster. Nodes are
+ * {@code host:port} strings from static configuration; each owns the parts of
+ * a consistent-hash ring where its virtual nodes fall, and an info hash
+ * belongs to the first virtual node at or after its position. Only live
+ * members are on the ring, so when a node leaves or joins just the shards
+ * next to its virtual nodes change owner.
+ *
+ * Not thread-safe; the tracker uses it from its event loop only.
+ */
+class TrackerCluster {
+    private static final int VIRTUAL_NODES = 128;
+
+    private final String self;
+    private final List<String> members;
+    private final Set<String> memberIps = new HashSet<>();
+    private final Set<String> live = new LinkedHashSet<>();
+    private TreeMap<Long, String> ring = new TreeMap<>();
+
+    /**
+     * @param self this node's address as it appears in {@code members}
+     */
+    TrackerCluster(String self, List<String> members) throws UnknownHostException {
+        if (!members.contains(self)) {
+            throw new IllegalArgumentException("Cluster members " + members + " do not include " + self);
+        }
+        this.self = self;
+        this.members = Collections.unmodifiableList(new ArrayList<>(members));
+        for (String member : members) {
+            memberIps.add(InetAddress.getByName(host(member)).getHostAddress());
+        }
+        // Others join the ring once they answer a ping, so requests never go to a node that is down
+        live.add(self);
+        rebuildRing();
+    }
+
+    String getSelf() {
+        return self;
+    }
+
+    List<String> getMembers() {
+        return members;
+    }
+
+    List<String> getLiveMembers() {
+        return new ArrayList<>(live);
+    }
+
+    /** Whether a request came from another node, which may then speak for the client it forwards. */
+    boolean isMemberAddress(String ip) {
+        return memberIps.contains(ip);
+    }
+
+    String ownerOf(String infoHash) {
+        Map.Entry<Long, String> entry = ring.ceilingEntry(hash(infoHash));
+        return entry != null ? entry.getValue() : ring.firstEntry().getValue();
+    }
+
+    boolean isLocal(String node) {
+        return self.equals(node);
+    }
+
+    /** Marks a member up or down; returns true if shard ownership changed. */
+    boolean setAlive(String node, boolean alive) {
+        if (!members.contains(node) || node.equals(self)) {
+            return false;
+        }
+        boolean changed = alive ? live.add(node) : live.remove(node);
+        if (changed) {
+            rebuildRing();
+        }
+        return changed;
+    }
+
+    /**
+     * Takes this node off the ring before it shuts down, so its shards can be
+     * handed to their next owners. Returns false if no other node is up.
+     */
+    boolean leave() {
+        live.remove(self);
+        rebuildRing();
+        return !live.isEmpty();
+    }
+
+    private void rebuildRing() {
+        TreeMap<Long, String> next = new TreeMap<>();
+        for (String node : live) {
+            for (int i = 0; i < VIRTUAL_NODES; i++) {
+                next.put(hash(node + "#" + i), node);
+            }
+        }
+        ring = next;
+    }
+
+    static String host(String node) {
+        return node.substring(0, node.lastIndexOf(':'));
+    }
+
+    static int port(String node) {
+        return Integer.parseInt(node.substring(node.lastIndexOf(':') + 1));
+    }
+
+    /** 64-bit FNV-1a with a final avalanche, so nearby keys land far apart on the ring. */
+    private static long hash(String key) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : key.getBytes(StandardCharsets.ISO_8859_1)) {
+            hash ^= b & 0xFF;
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
@@ -0,0 +1,515 @@
+package com.torrent;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Durable tracker state: a write-ahead log of uploads and announces plus
+ * periodic snapshots.
+ *
+ * Records are encoded on the request thread and queued; a log thread writes
+ * whatever has queued up with one write and one fsync (group commit), so
+ * requests never wait on the disk. At most the last batch is lost in a crash.
+ * The log is split into segments. Every snapshot interval the current segment
+ * is closed and a background thread folds the closed segments into a new
+ * snapshot, working from the files alone rather than the live state. A restart
+ * loads the snapshot and replays only the segments written after it.
+ */
+class TrackerLog {
+    private static final Logger logger = LoggerFactory.getLogger(TrackerLog.class);
+    private static final int SNAPSHOT_MAGIC = 0x54524B53; // "TRKS"
+    private static final byte UPLOAD = 1;
+    private static final byte ANNOUNCE = 2;
+    private static final byte FILE = 3;
+    private static final byte DOWNLOADED = 4;
+    private static final byte REMOVE_SWARM = 5;
+    private static final byte STOPPED = 6;
+    private static final String SNAPSHOT_FILE = "snapshot.dat";
+    private static final String SEGMENT_PREFIX = "wal-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    // Tells the log thread to commit what is queued and stop
+    private static final byte[] CLOSE = new byte[0];
+
+    private final File dir;
+    private final long peerTtlMillis;
+    private final long snapshotIntervalMillis;
+    private final BlockingQueue<byte[]> pending = new LinkedBlockingQueue<>();
+    private final ExecutorService snapshotExecutor = Executors.newSingleThreadExecutor(daemon("tracker-snapshot"));
+    private Thread writer;
+    private FileChannel segment;
+    private long segmentSeq;
+    private long segmentBytes;
+
+    /**
+     * @param peerTtlMillis peers that have not announced for this long are dropped on load
+     */
+    TrackerLog(File dir, long peerTtlMillis, long snapshotIntervalMillis) {
+        this.dir = dir;
+        this.peerTtlMillis = peerTtlMillis;
+        this.snapshotIntervalMillis = snapshotIntervalMillis;
+    }
+
+    /**
+     * Restores the state saved by a previous run into the given maps, with
+     * swarm counters to match, and starts logging. Peers whose TTL expired
+     * while the tracker was down are left out.
+     */
+    void open(Map<String, TrackerServer.FileInfo> fileInfo,
+              Map<String, List<TrackerServer.PeerInfo>> filePeers,
+              Map<String, TrackerServer.SwarmStats> swarmStats) throws IOException {
+        if (!dir.exists() && !dir.mkdirs()) {
+            throw new IOException("Cannot create tracker state directory " + dir);
+        }
+        long start = System.currentTimeMillis();
+        State state = readSnapshot();
+        long lastSeq = state.lastSegment;
+        for (long seq : listSegments()) {
+            if (seq <= state.lastSegment) {
+                // Already in the snapshot; left behind by a crash before cleanup
+                Files.deleteIfExists(segmentFile(seq).toPath());
+            } else {
+                replay(seq, state);
+                lastSeq = seq;
+            }
+        }
+        int expired = state.dropExpired(start - peerTtlMillis);
+        fileInfo.putAll(state.files);
+        int peerCount = 0;
+        for (Map.Entry<String, Integer> entry : state.downloaded.entrySet()) {
+            swarmStats.put(entry.getKey(), new TrackerServer.SwarmStats(entry.getValue()));
+        }
+        for (Map.Entry<String, Map<String, TrackerServer.PeerInfo>> swarm : state.peers.entrySet()) {
+            filePeers.put(swarm.getKey(), new ArrayList<>(swarm.getValue().values()));
+            TrackerServer.SwarmStats stats = swarmStats.computeIfAbsent(swarm.getKey(), k -> new TrackerServer.SwarmStats(0));
+            for (TrackerServer.PeerInfo peer : swarm.getValue().values()) {
+                stats.onTransition(null, peer);
+            }
+            peerCount += swarm.getValue().size();
+        }
+        logger.info("Restored {} files and {} peers ({} expired) in {} ms",
+            state.files.size(), peerCount, expired, System.currentTimeMillis() - start);
+
+        // A segment may end in a torn record, so new records always go to a fresh one
+        openSegment(lastSeq + 1);
+        writer = new Thread(this::runWriter, "tracker-log");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    void logUpload(TrackerServer.FileInfo file, TrackerServer.PeerInfo peer) {
+        pending.add(encode(out -> {
+            out.writeByte(UPLOAD);
+            out.writeUTF(file.getFileName());
+            out.writeUTF(file.getInfoHash());
+            out.writeLong(file.getFileSize());
+            writePeer(out, peer);
+        }));
+    }
+
+    void logAnnounce(TrackerServer.PeerInfo peer) {
+        pending.add(encode(out -> {
+            out.writeByte(ANNOUNCE);
+            writePeer(out, peer);
+        }));
+    }
+
+    void logFile(TrackerServer.FileInfo file) {
+        pending.add(encode(out -> {
+            out.writeByte(FILE);
+            out.writeUTF(file.getFileName());
+            out.writeUTF(file.getInfoHash());
+            out.writeLong(file.getFileSize());
+        }));
+    }
+
+    /** Completed downloads counted elsewhere, e.g. by the node that handed the swarm over. */
+    void logDownloaded(String infoHash, int count) {
+        pending.add(encode(out -> {
+            out.writeByte(DOWNLOADED);
+            out.writeUTF(infoHash);
+            out.writeInt(count);
+        }));
+    }
+
+    /** The peer announced {@code stopped} and left the swarm. */
+    void logStopped(String infoHash, String peerId) {
+        pending.add(encode(out -> {
+            out.writeByte(STOPPED);
+            out.writeUTF(infoHash);
+            out.writeUTF(peerId);
+        }));
+    }
+
+    /** The swarm moved to another node. */
+    void logRemoveSwarm(String infoHash) {
+        pending.add(encode(out -> {
+            out.writeByte(REMOVE_SWARM);
+            out.writeUTF(infoHash);
+        }));
+    }
+
+    /** Commits queued records, folds the log into a final snapshot and stops. */
+    void close() throws InterruptedException {
+        if (writer == null) {
+            return;
+        }
+        pending.add(CLOSE);
+        writer.join();
+        snapshotExecutor.shutdown();
+        snapshotExecutor.awaitTermination(30, TimeUnit.SECONDS);
+    }
+
+    private void runWriter() {
+        List<byte[]> batch = new ArrayList<>();
+        long nextSnapshot = System.currentTimeMillis() + snapshotIntervalMillis;
+        boolean closing = false;
+        while (!closing) {
+            try {
+                byte[] record = pending.poll(Math.max(1, nextSnapshot - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+                if (record != null) {
+                    batch.add(record);
+                    pending.drainTo(batch);
+                }
+            } catch (InterruptedException e) {
+                closing = true;
+            }
+            closing |= batch.remove(CLOSE);
+            try {
+                if (!batch.isEmpty()) {
+                    commit(batch);
+                }
+                if (closing || System.currentTimeMillis() >= nextSnapshot) {
+                    rotate(closing);
+                    nextSnapshot = System.currentTimeMillis() + snapshotIntervalMillis;
+                }
+            } catch (IOException e) {
+                logger.error("Error writing tracker log, {} records lost", batch.size(), e);
+            }
+            batch.clear();
+        }
+    }
+
+    private void commit(List<byte[]> batch) throws IOException {
+        int size = 0;
+        for (byte[] record : batch) {
+            size += record.length;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        for (byte[] record : batch) {
+            buffer.put(record);
+        }
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            segment.write(buffer);
+        }
+        segment.force(false);
+        segmentBytes += size;
+    }
+
+    /** Closes the current segment and hands it to the snapshot thread. */
+    private void rotate(boolean closing) throws IOException {
+        if (segmentBytes == 0 && !closing) {
+            return;
+        }
+        long closed = segmentSeq;
+        segment.close();
+        if (!closing) {
+            openSegment(closed + 1);
+        }
+        snapshotExecutor.execute(() -> {
+            try {
+                snapshot(closed);
+            } catch (IOException e) {
+                logger.error("Error writing tracker snapshot", e);
+            }
+        });
+    }
+
+    private void openSegment(long seq) throws IOException {
+        segment = FileChannel.open(segmentFile(seq).toPath(),
+            StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        segmentSeq = seq;
+        segmentBytes = 0;
+    }
+
+    /** Folds the segments up to {@code upTo} into the snapshot, then deletes them. */
+    private void snapshot(long upTo) throws IOException {
+        long start = System.currentTimeMillis();
+        State state = readSnapshot();
+        List<Long> folded = new ArrayList<>();
+        for (long seq : listSegments()) {
+            if (seq > upTo) {
+                break;
+            }
+            if (seq > state.lastSegment) {
+                replay(seq, state);
+            }
+            folded.add(seq);
+        }
+        state.dropExpired(start - peerTtlMillis);
+        state.lastSegment = upTo;
+        writeSnapshot(state);
+        for (long seq : folded) {
+            Files.deleteIfExists(segmentFile(seq).toPath());
+        }
+        logger.debug("Tracker snapshot through segment {} written in {} ms", upTo, System.currentTimeMillis() - start);
+    }
+
+    private State readSnapshot() throws IOException {
+        State state = new State(peerTtlMillis);
+        File file = new File(dir, SNAPSHOT_FILE);
+        if (!file.exists()) {
+            return state;
+        }
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(Files.readAllBytes(file.toPath())))) {
+            if (in.readInt() != SNAPSHOT_MAGIC) {
+                throw new IOException("Not a tracker snapshot: " + file);
+            }
+            state.lastSegment = in.readLong();
+            int files = in.readInt();
+            for (int i = 0; i < files; i++) {
+                TrackerServer.FileInfo info = new TrackerServer.FileInfo(in.readUTF(), in.readUTF(), in.readLong());
+                state.files.put(info.getInfoHash(), info);
+            }
+            int counters = in.readInt();
+            for (int i = 0; i < counters; i++) {
+                state.downloaded.put(in.readUTF(), in.readInt());
+            }
+            int swarms = in.readInt();
+            for (int i = 0; i < swarms; i++) {
+                int peers = in.readInt();
+                for (int j = 0; j < peers; j++) {
+                    state.announce(readPeer(in));
+                }
+            }
+        }
+        return state;
+    }
+
+    private void writeSnapshot(State state) throws IOException {
+        File temp = new File(dir, SNAPSHOT_FILE + ".tmp");
+        try (FileOutputStream file = new FileOutputStream(temp);
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file))) {
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeLong(state.lastSegment);
+            out.writeInt(state.files.size());
+            for (TrackerServer.FileInfo info : state.files.values()) {
+                out.writeUTF(info.getFileName());
+                out.writeUTF(info.getInfoHash());
+                out.writeLong(info.getFileSize());
+            }
+            out.writeInt(state.downloaded.size());
+            for (Map.Entry<String, Integer> entry : state.downloaded.entrySet()) {
+                out.writeUTF(entry.getKey());
+                out.writeInt(entry.getValue());
+            }
+            out.writeInt(state.peers.size());
+            for (Map<String, TrackerServer.PeerInfo> swarm : state.peers.values()) {
+                out.writeInt(swarm.size());
+                for (TrackerServer.PeerInfo peer : swarm.values()) {
+                    writePeer(out, peer);
+                }
+            }
+            out.flush();
+            file.getFD().sync();
+        }
+        Files.move(temp.toPath(), new File(dir, SNAPSHOT_FILE).toPath(),
+            StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /** Applies one segment's records; a torn or corrupt tail ends the segment. */
+    private void replay(long seq, State state) throws IOException {
+        ByteBuffer data = ByteBuffer.wrap(Files.readAllBytes(segmentFile(seq).toPath()));
+        CRC32 crc = new CRC32();
+        while (data.remaining() >= 8) {
+            int length = data.getInt();
+            int checksum = data.getInt();
+            if (length <= 0 || length > data.remaining()) {
+                logger.warn("Tracker log segment {} ends in a partial record", seq);
+                return;
+            }
+            crc.reset();
+            crc.update(data.array(), data.position(), length);
+            if ((int) crc.getValue() != checksum) {
+                logger.warn("Tracker log segment {} has a corrupt record, ignoring the rest", seq);
+                return;
+            }
+            applyRecord(data.array(), data.position(), length, state);
+            data.position(data.position() + length);
+        }
+        if (data.hasRemaining()) {
+            logger.warn("Tracker log segment {} ends in a partial record", seq);
+        }
+    }
+
+    private void applyRecord(byte[] data, int offset, int length, State state) throws IOException {
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(data, offset, length))) {
+            byte type = in.readByte();
+            if (type == UPLOAD) {
+                TrackerServer.FileInfo info = new TrackerServer.FileInfo(in.readUTF(), in.readUTF(), in.readLong());
+                state.files.put(info.getInfoHash(), info);
+                state.announce(readPeer(in));
+            } else if (type == ANNOUNCE) {
+                state.announce(readPeer(in));
+            } else if (type == FILE) {
+                TrackerServer.FileInfo info = new TrackerServer.FileInfo(in.readUTF(), in.readUTF(), in.readLong());
+                state.files.put(info.getInfoHash(), info);
+            } else if (type == DOWNLOADED) {
+                state.downloaded.merge(in.readUTF(), in.readInt(), Integer::sum);
+            } else if (type == STOPPED) {
+                state.stop(in.readUTF(), in.readUTF());
+            } else if (type == REMOVE_SWARM) {
+                String infoHash = in.readUTF();
+                state.files.remove(infoHash);
+                state.peers.remove(infoHash);
+                state.downloaded.remove(infoHash);
+            } else {
+                throw new IOException("Unknown tracker log record type " + type);
+            }
+        }
+    }
+
+    private TreeSet<Long> listSegments() {
+        TreeSet<Long> segments = new TreeSet<>();
+        String[] names = dir.list();
+        if (names == null) {
+            return segments;
+        }
+        for (String name : names) {
+            if (name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX)) {
+                try {
+                    segments.add(Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length())));
+                } catch (NumberFormatException e) {
+                    logger.warn("Ignoring unexpected file {} in tracker state", name);
+                }
+            }
+        }
+        return segments;
+    }
+
+    private File segmentFile(long seq) {
+        return new File(dir, String.format("%s%016d%s", SEGMENT_PREFIX, seq, SEGMENT_SUFFIX));
+    }
+
+    /** Frames a record as length, CRC-32 and payload. */
+    private static byte[] encode(RecordWriter writer) {
+        try {
+            ByteArrayOutputStream payload = new ByteArrayOutputStream(128);
+            try (DataOutputStream out = new DataOutputStream(payload)) {
+                writer.write(out);
+            }
+            CRC32 crc = new CRC32();
+            crc.update(payload.toByteArray());
+            ByteBuffer record = ByteBuffer.allocate(8 + payload.size());
+            record.putInt(payload.size());
+            record.putInt((int) crc.getValue());
+            record.put(payload.toByteArray());
+            return record.array();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void writePeer(DataOutputStream out, TrackerServer.PeerInfo peer) throws IOException {
+        out.writeUTF(peer.getPeerId());
+        out.writeUTF(peer.getInfoHash());
+        out.writeUTF(peer.getIp() == null ? "" : peer.getIp());
+        out.writeInt(peer.getPort());
+        out.writeLong(peer.getUploaded());
+        out.writeLong(peer.getDownloaded());
+        out.writeLong(peer.getLeft());
+        out.writeLong(peer.getLastAnnounce());
+    }
+
+    private static TrackerServer.PeerInfo readPeer(DataInputStream in) throws IOException {
+        String peerId = in.readUTF();
+        String infoHash = in.readUTF();
+        String ip = in.readUTF();
+        return new TrackerServer.PeerInfo(peerId, infoHash, ip.isEmpty() ? null : ip, in.readInt(),
+            in.readLong(), in.readLong(), in.readLong(), in.readLong());
+    }
+
+    private static ThreadFactory daemon(String name) {
+        return runnable -> {
+            Thread thread = new Thread(runnable, name);
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    private interface RecordWriter {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    /** Tracker state rebuilt from the snapshot and log, keyed like the server's maps. */
+    private static class State {
+        private final long peerTtlMillis;
+        private long lastSegment;
+        private final Map<String, TrackerServer.FileInfo> files = new LinkedHashMap<>();
+        private final Map<String, Map<String, TrackerServer.PeerInfo>> peers = new LinkedHashMap<>();
+        // Completed downloads per swarm; unlike peers they outlive expiry
+        private final Map<String, Integer> downloaded = new LinkedHashMap<>();
+
+        State(long peerTtlMillis) {
+            this.peerTtlMillis = peerTtlMillis;
+        }
+
+        void announce(TrackerServer.PeerInfo peer) {
+            Map<String, TrackerServer.PeerInfo> swarm = peers.computeIfAbsent(peer.getInfoHash(), k -> new LinkedHashMap<>());
+            TrackerServer.PeerInfo previous = swarm.remove(peer.getPeerId());
+            // Expiry is not logged; the server dropped a peer this stale before it came back
+            if (previous != null && peer.getLastAnnounce() - previous.getLastAnnounce() > peerTtlMillis) {
+                previous = null;
+            }
+            swarm.put(peer.getPeerId(), peer);
+            if (TrackerServer.SwarmStats.isCompletion(previous, peer)) {
+                downloaded.merge(peer.getInfoHash(), 1, Integer::sum);
+            }
+        }
+
+        void stop(String infoHash, String peerId) {
+            Map<String, TrackerServer.PeerInfo> swarm = peers.get(infoHash);
+            if (swarm != null && swarm.remove(peerId) != null && swarm.isEmpty()) {
+                peers.remove(infoHash);
+            }
+        }
+
+        /** Removes peers that last announced before {@code cutoff}; returns how many. */
+        int dropExpired(long cutoff) {
+            int dropped = 0;
+            for (Map<String, TrackerServer.PeerInfo> swarm : peers.values()) {
+                int before = swarm.size();
+                swarm.values().removeIf(peer -> peer.getLastAnnounce() < cutoff);
+                dropped += before - swarm.size();
+            }
+            peers.values().removeIf(Map::isEmpty);
+            return dropped;
+        }
+    }
+}
@@ -1,5 +1,6 @@
 package com.torrent;
 
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
@@ -67,10 +68,10 @@ public class TrackerResponse {
         return response;
     }
 
-    private static List<PeerInfo> parseCompactPeers(String peers) {
+    static List<PeerInfo> parseCompactPeers(String peers) {
         List<PeerInfo> result = new ArrayList<>();
-        byte[] bytes = peers.getBytes();
-        for (int i = 0; i < bytes.length; i += 6) {
+        byte[] bytes = peers.getBytes(StandardCharsets.ISO_8859_1);
+        for (int i = 0; i + 6 <= bytes.length; i += 6) {
             PeerInfo peer = new PeerInfo();
             peer.setIp(String.format("%d.%d.%d.%d", 
                 bytes[i] & 0xFF, 
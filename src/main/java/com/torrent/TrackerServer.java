@@ -3,95 +3,1033 @@ package com.torrent;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.UnknownHostException;
 import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 
 public class TrackerServer {
     private static final Logger logger = LoggerFactory.getLogger(TrackerServer.class);
     private static final int PORT = 6969;
     private static final int BUFFER_SIZE = 8192;
+    private static final int ANNOUNCE_INTERVAL_SECONDS = 1800;
+    // An announce before this gets no peers, unless it reports an event or a finished download
+    private static final int MIN_ANNOUNCE_INTERVAL_SECONDS = 300;
+    // A peer that missed two announces is gone
+    private static final long PEER_TTL_MILLIS = 2L * ANNOUNCE_INTERVAL_SECONDS * 1000;
+    private static final long SNAPSHOT_INTERVAL_MILLIS = 5 * 60 * 1000;
+    private static final long EXPIRY_INTERVAL_MILLIS = 60 * 1000;
+    private static final long SELECT_TIMEOUT_MILLIS = 1000;
+    // Keep-alive connections with no request for this long are closed
+    private static final long IDLE_TIMEOUT_MILLIS = 2 * 60 * 1000;
+    private static final int DEFAULT_NUMWANT = 50;
+    private static final int MAX_NUMWANT = 200;
+    private static final int DEFAULT_LIST_LIMIT = 100;
+    private static final int MAX_LIST_LIMIT = 1000;
+    // Files a substring search looks at per page before handing back a cursor
+    private static final int MAX_LIST_SCANNED = 10_000;
+    private static final Set<String> NUMERIC_PARAMETERS =
+        Set.of("port", "uploaded", "downloaded", "left", "compact", "numwant");
+    // Set by the server or by cluster forwarding, never taken from an HTTP query
+    private static final Set<String> INTERNAL_PARAMETERS = Set.of("action", "forwarded", "ip", "info_hashes");
+    private static final int CLUSTER_THREADS = 8;
+    private static final int CLUSTER_TIMEOUT_MILLIS = 2000;
+    private static final long PING_INTERVAL_MILLIS = 5000;
+    // A member that misses this many pings in a row is taken off the ring
+    private static final int MAX_MISSED_PINGS = 3;
+    // Handoffs use the bencoded protocol, whose requests must fit one read buffer
+    private static final int HANDOFF_BATCH_BYTES = BUFFER_SIZE / 2;
+    private static final Set<String> CLUSTER_ACTIONS = Set.of("ping", "leave", "handoff");
+    // Per client address; the burst lets a client start many torrents at once
+    private static final double REQUESTS_PER_SECOND = 2;
+    private static final int REQUEST_BURST = 60;
+    // Requests read in one loop pass that would wait longer than this behind the others are shed
+    private static final long MAX_QUEUE_DELAY_MILLIS = 100;
+    private static final int MAX_PENDING_FORWARDS = 1024;
+    private static final int MAX_CONNECTIONS = 10_000;
+    // Shed clients retry after this many minutes plus up to as many again, so they do not return as a herd
+    private static final int RETRY_IN_MINUTES = 5;
+
+    // Response heads are fixed apart from the body length, so they are built once
+    private static final byte[] OK_KEEP_ALIVE = ascii(
+        "HTTP/1.1 200 OK\r\nContent-Type: text/plain\r\nConnection: keep-alive\r\nContent-Length: ");
+    private static final byte[] OK_CLOSE = ascii(
+        "HTTP/1.1 200 OK\r\nContent-Type: text/plain\r\nConnection: close\r\nContent-Length: ");
+    private static final byte[] HEAD_END = ascii("\r\n\r\n");
+    private static final byte[] NOT_FOUND_KEEP_ALIVE = ascii(
+        "HTTP/1.1 404 Not Found\r\nConnection: keep-alive\r\nContent-Length: 0\r\n\r\n");
+    private static final byte[] NOT_FOUND_CLOSE = ascii(
+        "HTTP/1.1 404 Not Found\r\nConnection: close\r\nContent-Length: 0\r\n\r\n");
+    private static final byte[] METHOD_NOT_ALLOWED_KEEP_ALIVE = ascii(
+        "HTTP/1.1 405 Method Not Allowed\r\nAllow: GET\r\nConnection: keep-alive\r\nContent-Length: 0\r\n\r\n");
+    private static final byte[] METHOD_NOT_ALLOWED_CLOSE = ascii(
+        "HTTP/1.1 405 Method Not Allowed\r\nAllow: GET\r\nConnection: close\r\nContent-Length: 0\r\n\r\n");
+    private static final byte[] BAD_REQUEST = ascii(
+        "HTTP/1.1 400 Bad Request\r\nConnection: close\r\nContent-Length: 0\r\n\r\n");
+    private static final byte[] REDIRECT = ascii(
+        "HTTP/1.1 307 Temporary Redirect\r\nContent-Length: 0\r\nLocation: http://");
+    private static final byte[] REDIRECT_KEEP_ALIVE_END = ascii("\r\nConnection: keep-alive\r\n\r\n");
+    private static final byte[] REDIRECT_CLOSE_END = ascii("\r\nConnection: close\r\n\r\n");
 
     // Map<infoHash, List<PeerInfo>> - Lưu danh sách peer cho mỗi file
     private final Map<String, List<PeerInfo>> filePeers = new ConcurrentHashMap<>();
-    // Map<infoHash, FileInfo> - Lưu thông tin file
-    private final Map<String, FileInfo> fileInfo = new ConcurrentHashMap<>();
+    // Thông tin file, indexed by info hash and by name
+    private final FileCatalog catalog = new FileCatalog(MAX_LIST_SCANNED);
+    // Map<infoHash, SwarmStats> - kept up to date on every peer change, so scrape never walks a swarm
+    private final Map<String, SwarmStats> swarmStats = new ConcurrentHashMap<>();
+    // Null when the state is kept in memory only
+    private final TrackerLog log;
+    private final int port;
+    // Null for a standalone tracker
+    private TrackerCluster cluster;
+    private final Map<String, Integer> missedPings = new HashMap<>();
+    private ScheduledExecutorService clusterExecutor;
+    // Work other threads hand back to the event loop, which owns all tracker state
+    private final Queue<Runnable> loopTasks = new ConcurrentLinkedQueue<>();
+    private AdmissionControl admission =
+        new AdmissionControl(REQUESTS_PER_SECOND, REQUEST_BURST, MAX_QUEUE_DELAY_MILLIS, MAX_PENDING_FORWARDS);
+    private int connections;
+    private Selector selector;
     private ServerSocketChannel serverSocket;
-    private boolean running;
+    private volatile boolean running;
+    private boolean trustForwardedFor;
+
+    public TrackerServer() {
+        this(PORT, null);
+    }
+
+    /** A tracker whose state survives restarts, kept in {@code stateDir}. */
+    public TrackerServer(File stateDir) {
+        this(PORT, stateDir);
+    }
 
+    /**
+     * @param stateDir where the state is kept across restarts, or null to keep
+     *                 it in memory only
+     */
+    public TrackerServer(int port, File stateDir) {
+        this.port = port;
+        this.log = stateDir == null ? null : new TrackerLog(stateDir, PEER_TTL_MILLIS, SNAPSHOT_INTERVAL_MILLIS);
+    }
+
+    /**
+     * Usage: {@code [stateDir] [--port port] [--node host:port --members host:port,...]}.
+     * With {@code --node} the tracker joins a cluster and listens on the node's port.
+     */
     public static void main(String[] args) {
-        TrackerServer server = new TrackerServer();
+        String stateDir = "tracker-state";
+        Integer port = null;
+        String node = null;
+        List<String> members = Collections.emptyList();
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--port":
+                    port = Integer.parseInt(args[++i]);
+                    break;
+                case "--node":
+                    node = args[++i];
+                    break;
+                case "--members":
+                    members = Arrays.asList(args[++i].split(","));
+                    break;
+                default:
+                    stateDir = args[i];
+            }
+        }
+        if (port == null) {
+            port = node != null ? TrackerCluster.port(node) : PORT;
+        }
+        TrackerServer server = new TrackerServer(port, new File(stateDir));
         try {
+            if (node != null) {
+                server.setCluster(node, members);
+            }
             server.start();
         } catch (IOException e) {
             logger.error("Error starting tracker server", e);
         }
     }
 
+    /**
+     * Makes this tracker one node of a cluster; call before {@link #start()}.
+     * HTTP clients are redirected to the member addresses, so those must be
+     * reachable by clients, not just by the other nodes.
+     *
+     * @param self this node's {@code host:port} as listed in {@code members}
+     */
+    public void setCluster(String self, List<String> members) throws UnknownHostException {
+        this.cluster = new TrackerCluster(self, members);
+    }
+
     public void start() throws IOException {
+        if (log != null) {
+            Map<String, FileInfo> files = new HashMap<>();
+            log.open(files, filePeers, swarmStats);
+            files.values().forEach(catalog::put);
+        }
+        selector = Selector.open();
         serverSocket = ServerSocketChannel.open();
-        serverSocket.bind(new InetSocketAddress(PORT));
+        serverSocket.bind(new InetSocketAddress(port));
         serverSocket.configureBlocking(false);
+        serverSocket.register(selector, SelectionKey.OP_ACCEPT);
         running = true;
 
-        logger.info("Tracker server started on port {}", PORT);
+        logger.info("Tracker server started on port {}", port);
+        if (cluster != null) {
+            joinCluster();
+        }
+
+        long nextExpiry = System.currentTimeMillis() + EXPIRY_INTERVAL_MILLIS;
+        try {
+            while (running) {
+                selector.select(SELECT_TIMEOUT_MILLIS);
+                admission.startPass(System.nanoTime());
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        acceptClients();
+                    } else {
+                        Connection connection = (Connection) key.attachment();
+                        if (key.isReadable()) {
+                            onReadable(connection);
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            flush(connection);
+                        }
+                    }
+                }
+                Runnable task;
+                while ((task = loopTasks.poll()) != null) {
+                    try {
+                        task.run();
+                    } catch (RuntimeException e) {
+                        logger.error("Error handling a reply from another tracker node", e);
+                    }
+                }
+                long now = System.currentTimeMillis();
+                if (now >= nextExpiry) {
+                    expirePeers();
+                    closeIdleConnections(now);
+                    admission.evictIdle(System.nanoTime());
+                    admission.logShedRequests();
+                    nextExpiry = now + EXPIRY_INTERVAL_MILLIS;
+                }
+            }
+        } finally {
+            if (cluster != null) {
+                leaveCluster();
+            }
+            for (SelectionKey key : selector.keys()) {
+                closeQuietly(key.channel());
+            }
+            selector.close();
+            if (log != null) {
+                try {
+                    log.close();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+
+    private void runOnLoop(Runnable task) {
+        loopTasks.add(task);
+        selector.wakeup();
+    }
+
+    /**
+     * Trusts the client address a reverse proxy or load balancer puts in
+     * X-Forwarded-For. Only enable this when every request comes through one.
+     */
+    public void setTrustForwardedFor(boolean trustForwardedFor) {
+        this.trustForwardedFor = trustForwardedFor;
+    }
+
+    /**
+     * Changes the per-client limit; call before {@link #start()}. Clients
+     * behind one NAT share an address, so large ones may need more.
+     */
+    public void setRateLimit(double requestsPerSecond, int burst) {
+        this.admission = new AdmissionControl(requestsPerSecond, burst, MAX_QUEUE_DELAY_MILLIS, MAX_PENDING_FORWARDS);
+    }
+
+    private void acceptClients() {
+        try {
+            SocketChannel channel;
+            while ((channel = serverSocket.accept()) != null) {
+                if (connections >= MAX_CONNECTIONS) {
+                    admission.onConnectionRefused();
+                    closeQuietly(channel);
+                    continue;
+                }
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+                String ip = ((InetSocketAddress) channel.getRemoteAddress()).getAddress().getHostAddress();
+                Connection connection = new Connection(channel, ip);
+                connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+                connections++;
+            }
+        } catch (IOException e) {
+            logger.error("Error accepting client connection", e);
+        }
+    }
 
-        while (running) {
+    private void onReadable(Connection connection) {
+        try {
+            int read = connection.channel.read(connection.in);
+            if (read < 0) {
+                close(connection);
+                return;
+            }
+            connection.lastActive = System.currentTimeMillis();
+            connection.in.flip();
             try {
-                SocketChannel clientSocket = serverSocket.accept();
-                if (clientSocket != null) {
-                    handleClient(clientSocket);
+                if (connection.in.hasRemaining() && connection.in.get(connection.in.position()) == 'd') {
+                    handleBencodeRequest(connection);
+                } else {
+                    handleHttpRequests(connection);
                 }
+            } finally {
+                connection.in.compact();
+            }
+            flush(connection);
+        } catch (IOException e) {
+            logger.debug("Error handling client request", e);
+            close(connection);
+        } catch (RuntimeException e) {
+            // A request the handlers did not expect costs its own connection, never the loop
+            logger.error("Error handling request from {}", connection.ip, e);
+            close(connection);
+        }
+    }
+
+    /**
+     * The original protocol: one bencoded dictionary per connection, answered
+     * with a bencoded dictionary before the connection is closed.
+     */
+    private void handleBencodeRequest(Connection connection) {
+        byte[] data = new byte[connection.in.remaining()];
+        connection.in.duplicate().get(data);
+        Map<String, Object> request;
+        try {
+            request = (Map<String, Object>) new BencodeParser(data).parse();
+        } catch (Exception e) {
+            if (connection.in.hasRemaining() && connection.in.limit() < connection.in.capacity()) {
+                // Probably incomplete; wait for the rest
+                return;
+            }
+            logger.error("Error parsing request", e);
+            request = null;
+        }
+        connection.in.position(connection.in.limit());
+        connection.closeAfterWrite = true;
+        if (request == null) {
+            connection.queue(ByteBuffer.wrap(BencodeParser.encode(Map.of("error", "Invalid request"))));
+            return;
+        }
+        AdmissionControl.Decision decision = admitBencodeRequest(request, connection.ip);
+        if (decision != AdmissionControl.Decision.ACCEPT) {
+            connection.queue(ByteBuffer.wrap(BencodeParser.encode(shedReply(decision))));
+            return;
+        }
+        Reply reply = connection.reserve();
+        route(request, connection.ip, connection.ip, response -> {
+            reply.data = ByteBuffer.wrap(BencodeParser.encode(response));
+            flush(connection);
+        });
+    }
+
+    private AdmissionControl.Decision admitBencodeRequest(Map<String, Object> request, String sourceIp) {
+        if (cluster != null && cluster.isMemberAddress(sourceIp)) {
+            if (CLUSTER_ACTIONS.contains(request.get("action"))) {
+                // Never shed membership traffic, or a busy node would look dead
+                return AdmissionControl.Decision.ACCEPT;
+            }
+            if (request.containsKey("forwarded")) {
+                return admission.admitForwarded(System.nanoTime());
+            }
+        }
+        return admission.admit(sourceIp, System.nanoTime());
+    }
+
+    /** The cheap answer to a request that is turned away, telling the client when to come back. */
+    private static Map<String, Object> shedReply(AdmissionControl.Decision decision) {
+        int retryIn = RETRY_IN_MINUTES + ThreadLocalRandom.current().nextInt(RETRY_IN_MINUTES + 1);
+        return Map.of(
+            "error", decision == AdmissionControl.Decision.RATE_LIMITED ? "Too many requests" : "Tracker is overloaded",
+            "retry in", retryIn,
+            "interval", retryIn * 60
+        );
+    }
+
+    /** Answers every complete request in the buffer, in order, so pipelined requests work. */
+    private void handleHttpRequests(Connection connection) throws IOException {
+        while (!connection.closeAfterWrite) {
+            HttpRequestParser.Request request;
+            try {
+                request = connection.parser.parse(connection.in);
             } catch (IOException e) {
-                logger.error("Error accepting client connection", e);
+                logger.debug("Bad HTTP request from {}: {}", connection.ip, e.getMessage());
+                connection.queue(ByteBuffer.wrap(BAD_REQUEST));
+                connection.closeAfterWrite = true;
+                return;
+            }
+            if (request == null) {
+                return;
             }
+            connection.closeAfterWrite = !request.isKeepAlive();
+            handleHttpRequest(request, connection);
         }
     }
 
-    private void handleClient(SocketChannel clientSocket) {
+    private void handleHttpRequest(HttpRequestParser.Request request, Connection connection) {
+        boolean keepAlive = request.isKeepAlive();
+        if (!request.isGet()) {
+            connection.queue(ByteBuffer.wrap(keepAlive ? METHOD_NOT_ALLOWED_KEEP_ALIVE : METHOD_NOT_ALLOWED_CLOSE));
+            return;
+        }
+        String path = request.getPath();
+        String action;
+        if (path.endsWith("/announce")) {
+            action = "announce";
+        } else if (path.endsWith("/scrape")) {
+            action = "scrape";
+        } else {
+            connection.queue(ByteBuffer.wrap(keepAlive ? NOT_FOUND_KEEP_ALIVE : NOT_FOUND_CLOSE));
+            return;
+        }
+        String forwardedFor = request.getForwardedFor();
+        String ip = connection.ip;
+        if (trustForwardedFor && forwardedFor != null) {
+            // The last entry is the one added by our own proxy
+            ip = forwardedFor.substring(forwardedFor.lastIndexOf(',') + 1).trim();
+        }
+        AdmissionControl.Decision decision = admission.admit(ip, System.nanoTime());
+        if (decision != AdmissionControl.Decision.ACCEPT) {
+            connection.queue(httpReply(shedReply(decision), keepAlive));
+            return;
+        }
+        Map<String, Object> params = new HashMap<>();
+        List<String> infoHashes = new ArrayList<>();
         try {
-            ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
-            int bytesRead = clientSocket.read(buffer);
-            if (bytesRead > 0) {
-                buffer.flip();
-                byte[] data = new byte[buffer.remaining()];
-                buffer.get(data);
-                handleRequest(data, clientSocket);
+            request.forEachQueryParameter((name, value) -> {
+                if (INTERNAL_PARAMETERS.contains(name)) {
+                    return;
+                }
+                if (NUMERIC_PARAMETERS.contains(name)) {
+                    params.put(name, HttpRequestParser.parseLong(value));
+                } else if (name.equals("info_hash")) {
+                    // Binary; kept as one char per byte like the bencoded protocol does
+                    infoHashes.add(new String(value, StandardCharsets.ISO_8859_1));
+                } else {
+                    params.put(name, new String(value, StandardCharsets.ISO_8859_1));
+                }
+            });
+            if (action.equals("scrape")) {
+                if (!infoHashes.isEmpty()) {
+                    params.put("info_hashes", infoHashes);
+                }
+            } else if (!infoHashes.isEmpty()) {
+                params.put("info_hash", infoHashes.get(0));
             }
+            params.put("action", action);
         } catch (IOException e) {
-            logger.error("Error handling client request", e);
+            connection.queue(httpReply(Map.of("error", "Invalid parameter"), keepAlive));
+            return;
+        }
+        if (cluster != null && action.equals("announce") && !infoHashes.isEmpty()) {
+            String owner = cluster.ownerOf(infoHashes.get(0));
+            if (!cluster.isLocal(owner)) {
+                // The client announces to the owner itself, so the owner sees its real address
+                connection.queue(redirect(owner, request.getTarget(), keepAlive));
+                return;
+            }
         }
+        Reply reply = connection.reserve();
+        route(params, connection.ip, ip, response -> {
+            reply.data = httpReply(response, keepAlive);
+            flush(connection);
+        });
     }
 
-    private void handleRequest(byte[] data, SocketChannel clientSocket) {
-        try {
-            BencodeParser parser = new BencodeParser(data);
-            Map<String, Object> request = (Map<String, Object>) parser.parse();
+    private static ByteBuffer httpReply(Map<String, Object> response, boolean keepAlive) {
+        if (response.containsKey("error")) {
+            // HTTP trackers report errors in a 200 reply (BEP 3); other keys such as "retry in" stay
+            Map<String, Object> failure = new HashMap<>(response);
+            failure.put("failure reason", failure.remove("error"));
+            response = failure;
+        }
+        byte[] body = BencodeParser.encode(response);
+        byte[] head = keepAlive ? OK_KEEP_ALIVE : OK_CLOSE;
+        byte[] length = Integer.toString(body.length).getBytes(StandardCharsets.US_ASCII);
+        ByteBuffer reply = ByteBuffer.allocate(head.length + length.length + HEAD_END.length + body.length);
+        reply.put(head).put(length).put(HEAD_END).put(body).flip();
+        return reply;
+    }
+
+    private static ByteBuffer redirect(String node, String target, boolean keepAlive) {
+        byte[] location = (node + target).getBytes(StandardCharsets.ISO_8859_1);
+        byte[] end = keepAlive ? REDIRECT_KEEP_ALIVE_END : REDIRECT_CLOSE_END;
+        ByteBuffer reply = ByteBuffer.allocate(REDIRECT.length + location.length + end.length);
+        reply.put(REDIRECT).put(location).put(end).flip();
+        return reply;
+    }
 
-            String action = (String) request.get("action");
-            switch (action) {
-                case "upload":
-                    handleUpload(request, clientSocket);
+    /**
+     * Writes the replies that are ready, in request order, so one still
+     * waiting on another node holds back those behind it. Reading pauses until
+     * all are out, which bounds what a pipelining client can queue.
+     */
+    private void flush(Connection connection) {
+        if (!connection.key.isValid()) {
+            // Closed while a reply was on its way from another node
+            return;
+        }
+        try {
+            while (!connection.out.isEmpty()) {
+                List<ByteBuffer> ready = new ArrayList<>();
+                for (Reply reply : connection.out) {
+                    if (reply.data == null) {
+                        break;
+                    }
+                    ready.add(reply.data);
+                }
+                if (ready.isEmpty()) {
                     break;
-                case "list":
-                    handleList(clientSocket);
+                }
+                connection.channel.write(ready.toArray(new ByteBuffer[0]));
+                while (!connection.out.isEmpty() && connection.out.peek().data != null
+                    && !connection.out.peek().data.hasRemaining()) {
+                    connection.out.poll();
+                }
+                if (ready.get(0).hasRemaining()) {
                     break;
-                case "announce":
-                    handleAnnounce(request, clientSocket);
+                }
+            }
+            if (connection.out.isEmpty()) {
+                if (connection.closeAfterWrite) {
+                    close(connection);
+                } else {
+                    connection.key.interestOps(SelectionKey.OP_READ);
+                }
+            } else {
+                connection.key.interestOps(connection.out.peek().data != null ? SelectionKey.OP_WRITE : 0);
+            }
+        } catch (IOException e) {
+            logger.debug("Error sending response", e);
+            close(connection);
+        }
+    }
+
+    private void closeIdleConnections(long now) {
+        for (SelectionKey key : selector.keys()) {
+            Object attachment = key.attachment();
+            if (attachment instanceof Connection && now - ((Connection) attachment).lastActive > IDLE_TIMEOUT_MILLIS) {
+                close((Connection) attachment);
+            }
+        }
+    }
+
+    private void close(Connection connection) {
+        if (connection.key.isValid()) {
+            connections--;
+        }
+        connection.key.cancel();
+        closeQuietly(connection.channel);
+    }
+
+    private static void closeQuietly(java.nio.channels.Channel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            logger.debug("Error closing channel", e);
+        }
+    }
+
+    /**
+     * Answers a request here or, in a cluster, on the node that owns its
+     * swarm. {@code reply} is called on the event loop, right away or once
+     * other nodes have answered.
+     *
+     * @param sourceIp the address the request came from
+     * @param clientIp the client's address, which differs behind a trusted proxy
+     */
+    private void route(Map<String, Object> request, String sourceIp, String clientIp,
+                       Consumer<Map<String, Object>> reply) {
+        Object action = request.get("action");
+        boolean fromMember = cluster != null && cluster.isMemberAddress(sourceIp);
+        if (CLUSTER_ACTIONS.contains(action)) {
+            reply.accept(fromMember ? handleClusterRequest(request) : Map.of("error", "Not a cluster member"));
+            return;
+        }
+        if (cluster == null) {
+            reply.accept(handleRequest(request, clientIp));
+            return;
+        }
+        if (fromMember && request.containsKey("forwarded")) {
+            // Routed here by another node, which speaks for the client; never routed again
+            Object ip = request.get("ip");
+            reply.accept(handleRequest(request, ip instanceof String ? (String) ip : null));
+            return;
+        }
+        if ("scrape".equals(action)) {
+            scrapeCluster(request, reply);
+            return;
+        }
+        if ("list".equals(action)) {
+            listCluster(request, reply);
+            return;
+        }
+        Object infoHash = request.get("info_hash");
+        String owner = infoHash instanceof String ? cluster.ownerOf((String) infoHash) : cluster.getSelf();
+        if (cluster.isLocal(owner)) {
+            reply.accept(handleRequest(request, clientIp));
+        } else {
+            forward(owner, forwarded(request, clientIp), reply);
+        }
+    }
+
+    /** A copy of a request for another node, carrying the client's address. */
+    private static Map<String, Object> forwarded(Map<String, Object> request, String clientIp) {
+        Map<String, Object> copy = new HashMap<>(request);
+        copy.put("forwarded", 1);
+        if (clientIp != null) {
+            copy.put("ip", clientIp);
+        }
+        return copy;
+    }
+
+    /** Asks each owner for its share of a scrape and merges the counters. */
+    private void scrapeCluster(Map<String, Object> request, Consumer<Map<String, Object>> reply) {
+        Map<String, Map<String, Object>> parts = new LinkedHashMap<>();
+        Object requested = request.get("info_hashes");
+        if (requested instanceof List) {
+            Map<String, List<String>> byOwner = new LinkedHashMap<>();
+            for (Object infoHash : (List<?>) requested) {
+                if (infoHash instanceof String) {
+                    byOwner.computeIfAbsent(cluster.ownerOf((String) infoHash), node -> new ArrayList<>())
+                        .add((String) infoHash);
+                }
+            }
+            byOwner.forEach((node, infoHashes) ->
+                parts.put(node, Map.of("action", "scrape", "info_hashes", infoHashes)));
+        } else {
+            for (String node : cluster.getLiveMembers()) {
+                parts.put(node, Map.of("action", "scrape"));
+            }
+        }
+        Map<String, Object> files = new LinkedHashMap<>();
+        gather(parts, response -> {
+            if (response.get("files") instanceof Map) {
+                ((Map<?, ?>) response.get("files")).forEach((infoHash, stats) -> files.put((String) infoHash, stats));
+            }
+        }, () -> reply.accept(Map.of("files", files)));
+    }
+
+    /**
+     * A page of the whole cluster's catalog. Every node returns its own page
+     * after the cursor and all sort alike, so the pages are merged, cut where
+     * the first node with more files stopped looking, and trimmed to the limit.
+     */
+    private void listCluster(Map<String, Object> request, Consumer<Map<String, Object>> reply) {
+        int limit = listLimit(request);
+        NavigableMap<String, Object> merged = new TreeMap<>();
+        FileCatalog.Page local = listPage(request);
+        for (FileInfo file : local.getFiles()) {
+            merged.put(FileCatalog.key(file.getFileName(), file.getInfoHash()), Map.of(
+                "file_name", file.getFileName(),
+                "info_hash", file.getInfoHash(),
+                "file_size", file.getFileSize(),
+                "peers", peerCount(file.getInfoHash())
+            ));
+        }
+        String[] bound = {local.getNext()};
+        Map<String, Map<String, Object>> parts = new LinkedHashMap<>();
+        for (String node : cluster.getLiveMembers()) {
+            if (!cluster.isLocal(node)) {
+                parts.put(node, request);
+            }
+        }
+        gather(parts, response -> {
+            if (response.get("files") instanceof List) {
+                for (Object entry : (List<?>) response.get("files")) {
+                    Map<?, ?> file = (Map<?, ?>) entry;
+                    merged.put(FileCatalog.key((String) file.get("file_name"), (String) file.get("info_hash")), file);
+                }
+            }
+            Object next = response.get("next");
+            if (next instanceof String && (bound[0] == null || ((String) next).compareTo(bound[0]) < 0)) {
+                bound[0] = (String) next;
+            }
+        }, () -> {
+            // Past the lowest cursor some node has not looked yet; those files wait for the next page
+            NavigableMap<String, Object> page = bound[0] == null ? merged : merged.headMap(bound[0], true);
+            List<Object> files = new ArrayList<>();
+            String next = bound[0];
+            for (Map.Entry<String, Object> entry : page.entrySet()) {
+                if (files.size() == limit) {
+                    next = page.lowerKey(entry.getKey());
                     break;
-                default:
-                    logger.warn("Unknown action: {}", action);
+                }
+                files.add(entry.getValue());
+            }
+            reply.accept(listReply(files, next));
+        });
+    }
+
+    /**
+     * Sends each node, this one included, its part of a request and runs
+     * {@code done} once all have answered. A node that fails is left out of
+     * the result rather than failing the whole request.
+     */
+    private void gather(Map<String, Map<String, Object>> parts, Consumer<Map<String, Object>> merge, Runnable done) {
+        if (parts.isEmpty()) {
+            done.run();
+            return;
+        }
+        int[] remaining = {parts.size()};
+        for (Map.Entry<String, Map<String, Object>> part : parts.entrySet()) {
+            Consumer<Map<String, Object>> collect = response -> {
+                merge.accept(response);
+                if (--remaining[0] == 0) {
+                    done.run();
+                }
+            };
+            if (cluster.isLocal(part.getKey())) {
+                collect.accept(handleRequest(part.getValue(), null));
+            } else {
+                forward(part.getKey(), forwarded(part.getValue(), null), collect);
+            }
+        }
+    }
+
+    /** Sends a request to another node off the event loop; {@code reply} runs back on the loop. */
+    private void forward(String node, Map<String, Object> request, Consumer<Map<String, Object>> reply) {
+        admission.onForwardStarted();
+        clusterExecutor.execute(() -> {
+            Map<String, Object> response;
+            try {
+                response = sendToNode(node, request);
+            } catch (IOException e) {
+                logger.warn("Tracker node {} did not answer: {}", node, e.getMessage());
+                response = Map.of("error", "Tracker node unavailable");
+            }
+            Map<String, Object> result = response;
+            runOnLoop(() -> {
+                admission.onForwardFinished();
+                reply.accept(result);
+            });
+        });
+    }
+
+    /** One request over the bencoded protocol; blocks, so never call it on the event loop while it runs. */
+    @SuppressWarnings("unchecked")
+    private static Map<String, Object> sendToNode(String node, Map<String, Object> request) throws IOException {
+        try (Socket socket = new Socket()) {
+            socket.connect(new InetSocketAddress(TrackerCluster.host(node), TrackerCluster.port(node)),
+                CLUSTER_TIMEOUT_MILLIS);
+            socket.setSoTimeout(CLUSTER_TIMEOUT_MILLIS);
+            socket.getOutputStream().write(BencodeParser.encode(request));
+            Object response = new BencodeParser(socket.getInputStream().readAllBytes()).parse();
+            if (!(response instanceof Map)) {
+                throw new IOException("Unexpected reply from " + node);
+            }
+            return (Map<String, Object>) response;
+        }
+    }
+
+    private void joinCluster() {
+        clusterExecutor = Executors.newScheduledThreadPool(CLUSTER_THREADS, runnable -> {
+            Thread thread = new Thread(runnable, "tracker-cluster");
+            thread.setDaemon(true);
+            return thread;
+        });
+        // A ping also tells the other node we are up, so it starts handing us our shards
+        clusterExecutor.scheduleWithFixedDelay(this::pingMembers, 0, PING_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+        logger.info("Tracker node {} joining cluster {}", cluster.getSelf(), cluster.getMembers());
+    }
+
+    private void pingMembers() {
+        Map<String, Object> ping = Map.of("action", "ping", "node", cluster.getSelf());
+        for (String node : cluster.getMembers()) {
+            if (cluster.isLocal(node)) {
+                continue;
+            }
+            boolean answered;
+            try {
+                sendToNode(node, ping);
+                answered = true;
+            } catch (IOException e) {
+                answered = false;
+            }
+            boolean alive = answered;
+            runOnLoop(() -> onPing(node, alive));
+        }
+    }
+
+    private void onPing(String node, boolean answered) {
+        if (answered) {
+            missedPings.remove(node);
+            if (cluster.setAlive(node, true)) {
+                logger.info("Tracker node {} joined", node);
+                rebalance();
+            }
+        } else if (missedPings.merge(node, 1, Integer::sum) >= MAX_MISSED_PINGS && cluster.setAlive(node, false)) {
+            // Its shards fall to the remaining nodes; their peers come back with the next announce
+            logger.warn("Tracker node {} is down", node);
+        }
+    }
+
+    private Map<String, Object> handleClusterRequest(Map<String, Object> request) {
+        Object action = request.get("action");
+        Object nodeParameter = request.get("node");
+        if (!(nodeParameter instanceof String) && !"handoff".equals(action)) {
+            return Map.of("error", "Missing node");
+        }
+        String node = (String) nodeParameter;
+        switch ((String) action) {
+            case "ping":
+                onPing(node, true);
+                return Map.of("status", "ok");
+            case "leave":
+                missedPings.remove(node);
+                if (cluster.setAlive(node, false)) {
+                    logger.info("Tracker node {} left", node);
+                }
+                return Map.of("status", "ok");
+            default:
+                try {
+                    applyHandoff(request);
+                    return Map.of("status", "ok");
+                } catch (Exception e) {
+                    logger.error("Error taking over swarms", e);
+                    return Map.of("error", "Handoff failed");
+                }
+        }
+    }
+
+    /** Hands every swarm this node no longer owns to its owner. */
+    private void rebalance() {
+        for (Map.Entry<String, List<String>> moving : swarmsByOwner().entrySet()) {
+            String node = moving.getKey();
+            logger.info("Handing {} swarms to tracker node {}", moving.getValue().size(), node);
+            for (Map<String, Object> batch : takeSwarms(moving.getValue())) {
+                forward(node, batch, response -> {
+                    if (response.containsKey("error")) {
+                        // Kept here until the next rebalance
+                        applyHandoff(batch);
+                    }
+                });
+            }
+        }
+    }
+
+    /**
+     * Leaves the ring, tells the others and hands them every swarm, so no
+     * announce is lost to a node that is gone.
+     */
+    private void leaveCluster() {
+        clusterExecutor.shutdownNow();
+        if (!cluster.leave()) {
+            return;
+        }
+        Map<String, Object> leave = Map.of("action", "leave", "node", cluster.getSelf());
+        for (String node : cluster.getLiveMembers()) {
+            try {
+                sendToNode(node, leave);
+            } catch (IOException e) {
+                logger.warn("Could not tell tracker node {} about leaving: {}", node, e.getMessage());
+            }
+        }
+        for (Map.Entry<String, List<String>> moving : swarmsByOwner().entrySet()) {
+            for (Map<String, Object> batch : takeSwarms(moving.getValue())) {
+                try {
+                    Map<String, Object> response = sendToNode(moving.getKey(), batch);
+                    if (response.containsKey("error")) {
+                        throw new IOException(String.valueOf(response.get("error")));
+                    }
+                } catch (IOException e) {
+                    logger.warn("Could not hand swarms to tracker node {}: {}", moving.getKey(), e.getMessage());
+                    // Back into the log, to be handed off after the next start
+                    applyHandoff(batch);
+                }
+            }
+        }
+    }
+
+    /** Swarms held here that another node owns, grouped by owner. */
+    private Map<String, List<String>> swarmsByOwner() {
+        Set<String> infoHashes = new HashSet<>(catalog.infoHashes());
+        infoHashes.addAll(filePeers.keySet());
+        infoHashes.addAll(swarmStats.keySet());
+        Map<String, List<String>> byOwner = new HashMap<>();
+        for (String infoHash : infoHashes) {
+            String owner = cluster.ownerOf(infoHash);
+            if (!cluster.isLocal(owner)) {
+                byOwner.computeIfAbsent(owner, node -> new ArrayList<>()).add(infoHash);
+            }
+        }
+        return byOwner;
+    }
+
+    /**
+     * Removes swarms from this node and packs them into handoff requests,
+     * each small enough for the receiving node's read buffer.
+     */
+    private List<Map<String, Object>> takeSwarms(List<String> infoHashes) {
+        List<Map<String, Object>> batches = new ArrayList<>();
+        Map<String, List<Object>> batch = null;
+        int batchBytes = 0;
+        for (String infoHash : infoHashes) {
+            List<Map.Entry<String, Map<String, Object>>> entries = new ArrayList<>();
+            FileInfo file = catalog.remove(infoHash);
+            if (file != null) {
+                entries.add(Map.entry("files", Map.of(
+                    "file_name", file.getFileName(),
+                    "info_hash", file.getInfoHash(),
+                    "file_size", file.getFileSize())));
+            }
+            List<PeerInfo> peers = filePeers.remove(infoHash);
+            if (peers != null) {
+                for (PeerInfo peer : peers) {
+                    entries.add(Map.entry("peers", encodePeer(peer)));
+                }
+            }
+            SwarmStats stats = swarmStats.remove(infoHash);
+            if (stats != null && stats.getDownloaded() > 0) {
+                entries.add(Map.entry("completed", Map.of("info_hash", infoHash, "downloaded", stats.getDownloaded())));
+            }
+            if (log != null) {
+                log.logRemoveSwarm(infoHash);
+            }
+            for (Map.Entry<String, Map<String, Object>> entry : entries) {
+                int bytes = BencodeParser.encode(entry.getValue()).length;
+                if (batch == null || batchBytes + bytes > HANDOFF_BATCH_BYTES) {
+                    batch = Map.of("files", new ArrayList<>(), "peers", new ArrayList<>(),
+                        "completed", new ArrayList<>());
+                    Map<String, Object> request = new HashMap<>(batch);
+                    request.put("action", "handoff");
+                    batches.add(request);
+                    batchBytes = 0;
+                }
+                batch.get(entry.getKey()).add(entry.getValue());
+                batchBytes += bytes;
+            }
+        }
+        return batches;
+    }
+
+    /** Takes over swarms from a handoff; an entry older than what is here already is ignored. */
+    private void applyHandoff(Map<String, Object> handoff) {
+        for (Object entry : (List<?>) handoff.get("files")) {
+            Map<?, ?> file = (Map<?, ?>) entry;
+            FileInfo info = new FileInfo((String) file.get("file_name"), (String) file.get("info_hash"),
+                ((Number) file.get("file_size")).longValue());
+            catalog.put(info);
+            if (log != null) {
+                log.logFile(info);
+            }
+        }
+        for (Object entry : (List<?>) handoff.get("peers")) {
+            PeerInfo peer = decodePeer((Map<?, ?>) entry);
+            if (isNewer(peer)) {
+                putPeer(peer);
+                if (log != null) {
+                    log.logAnnounce(peer);
+                }
+            }
+        }
+        for (Object entry : (List<?>) handoff.get("completed")) {
+            Map<?, ?> completed = (Map<?, ?>) entry;
+            String infoHash = (String) completed.get("info_hash");
+            int downloaded = ((Number) completed.get("downloaded")).intValue();
+            swarmStats.computeIfAbsent(infoHash, k -> new SwarmStats(0)).addDownloaded(downloaded);
+            if (log != null) {
+                log.logDownloaded(infoHash, downloaded);
+            }
+        }
+    }
+
+    private boolean isNewer(PeerInfo peer) {
+        PeerInfo existing = findPeer(peer.getInfoHash(), peer.getPeerId());
+        return existing == null || existing.getLastAnnounce() < peer.getLastAnnounce();
+    }
+
+    private PeerInfo findPeer(String infoHash, String peerId) {
+        for (PeerInfo peer : filePeers.getOrDefault(infoHash, Collections.emptyList())) {
+            if (peer.getPeerId().equals(peerId)) {
+                return peer;
             }
-        } catch (Exception e) {
-            logger.error("Error parsing request", e);
         }
+        return null;
     }
 
-    private void handleUpload(Map<String, Object> request, SocketChannel clientSocket) {
+    private static Map<String, Object> encodePeer(PeerInfo peer) {
+        Map<String, Object> encoded = new HashMap<>();
+        encoded.put("peer_id", peer.getPeerId());
+        encoded.put("info_hash", peer.getInfoHash());
+        if (peer.getIp() != null) {
+            encoded.put("ip", peer.getIp());
+        }
+        encoded.put("port", peer.getPort());
+        encoded.put("uploaded", peer.getUploaded());
+        encoded.put("downloaded", peer.getDownloaded());
+        encoded.put("left", peer.getLeft());
+        encoded.put("last_announce", peer.getLastAnnounce());
+        return encoded;
+    }
+
+    private static PeerInfo decodePeer(Map<?, ?> peer) {
+        return new PeerInfo((String) peer.get("peer_id"), (String) peer.get("info_hash"), (String) peer.get("ip"),
+            ((Number) peer.get("port")).intValue(), ((Number) peer.get("uploaded")).longValue(),
+            ((Number) peer.get("downloaded")).longValue(), ((Number) peer.get("left")).longValue(),
+            ((Number) peer.get("last_announce")).longValue());
+    }
+
+    private Map<String, Object> handleRequest(Map<String, Object> request, String ip) {
+        Object action = request.get("action");
+        if (!(action instanceof String)) {
+            return Map.of("error", "Missing action");
+        }
+        switch ((String) action) {
+            case "upload":
+                return handleUpload(request, ip);
+            case "list":
+                return handleList(request);
+            case "announce":
+                return handleAnnounce(request, ip);
+            case "scrape":
+                return handleScrape(request);
+            default:
+                logger.warn("Unknown action: {}", action);
+                return Map.of("error", "Unknown action");
+        }
+    }
+
+    private Map<String, Object> handleUpload(Map<String, Object> request, String ip) {
         try {
             String fileName = (String) request.get("file_name");
             String infoHash = (String) request.get("info_hash");
@@ -101,43 +1039,87 @@ public class TrackerServer {
 
             // Lưu thông tin file
             FileInfo file = new FileInfo(fileName, infoHash, fileSize);
-            fileInfo.put(infoHash, file);
+            catalog.put(file);
 
-            // Thêm peer vào danh sách
-            PeerInfo peer = new PeerInfo(peerId, infoHash, port, 0, 0, fileSize);
-            filePeers.computeIfAbsent(infoHash, k -> new ArrayList<>()).add(peer);
-
-            // Gửi phản hồi thành công
-            Map<String, Object> response = Map.of("status", "success");
-            sendResponse(clientSocket, response);
+            // Thêm peer vào danh sách; người upload đã có toàn bộ file
+            PeerInfo peer = new PeerInfo(peerId, infoHash, ip, port, 0, 0, 0, System.currentTimeMillis());
+            putPeer(peer);
+            if (log != null) {
+                log.logUpload(file, peer);
+            }
 
             logger.info("File uploaded: {} ({} bytes)", fileName, fileSize);
+            // Gửi phản hồi thành công
+            return Map.of("status", "success");
         } catch (Exception e) {
             logger.error("Error handling upload", e);
-            sendError(clientSocket, "Upload failed");
+            return Map.of("error", "Upload failed");
         }
     }
 
-    private void handleList(SocketChannel clientSocket) {
+    /**
+     * One page of the catalog, taking {@code limit}, {@code cursor},
+     * {@code prefix} and {@code search}. The files are encoded straight from
+     * the index rather than through a map each; the reply carries a
+     * {@code next} cursor unless this is the last page.
+     */
+    private Map<String, Object> handleList(Map<String, Object> request) {
         try {
-            List<Map<String, Object>> files = new ArrayList<>();
-            for (FileInfo file : fileInfo.values()) {
-                files.add(Map.of(
-                    "file_name", file.getFileName(),
-                    "info_hash", file.getInfoHash(),
-                    "file_size", file.getFileSize(),
-                    "peers", filePeers.getOrDefault(file.getInfoHash(), Collections.emptyList()).size()
-                ));
+            FileCatalog.Page page = listPage(request);
+            ByteArrayOutputStream files = new ByteArrayOutputStream(64 * page.getFiles().size() + 2);
+            files.write('l');
+            for (FileInfo file : page.getFiles()) {
+                // Keys in bencode order
+                files.write('d');
+                BencodeParser.encode("file_name", files);
+                BencodeParser.encode(file.getFileName(), files);
+                BencodeParser.encode("file_size", files);
+                BencodeParser.encode(file.getFileSize(), files);
+                BencodeParser.encode("info_hash", files);
+                BencodeParser.encode(file.getInfoHash(), files);
+                BencodeParser.encode("peers", files);
+                BencodeParser.encode(peerCount(file.getInfoHash()), files);
+                files.write('e');
             }
-            Map<String, Object> response = Map.of("files", files);
-            sendResponse(clientSocket, response);
+            files.write('e');
+            return listReply(new BencodeParser.Encoded(files.toByteArray()), page.getNext());
         } catch (Exception e) {
             logger.error("Error handling list", e);
-            sendError(clientSocket, "List failed");
+            return Map.of("error", "List failed");
+        }
+    }
+
+    private FileCatalog.Page listPage(Map<String, Object> request) {
+        return catalog.page(stringParameter(request, "cursor"), stringParameter(request, "prefix"),
+            stringParameter(request, "search"), listLimit(request));
+    }
+
+    private static int listLimit(Map<String, Object> request) {
+        Object limit = request.get("limit");
+        return limit instanceof Number
+            ? (int) Math.max(1, Math.min(((Number) limit).longValue(), MAX_LIST_LIMIT)) : DEFAULT_LIST_LIMIT;
+    }
+
+    private static String stringParameter(Map<String, Object> request, String name) {
+        Object value = request.get(name);
+        return value instanceof String ? (String) value : null;
+    }
+
+    private static Map<String, Object> listReply(Object files, String next) {
+        Map<String, Object> reply = new HashMap<>();
+        reply.put("files", files);
+        if (next != null) {
+            reply.put("next", next);
         }
+        return reply;
+    }
+
+    private int peerCount(String infoHash) {
+        List<PeerInfo> peers = filePeers.get(infoHash);
+        return peers == null ? 0 : peers.size();
     }
 
-    private void handleAnnounce(Map<String, Object> request, SocketChannel clientSocket) {
+    private Map<String, Object> handleAnnounce(Map<String, Object> request, String ip) {
         try {
             String infoHash = (String) request.get("info_hash");
             String peerId = (String) request.get("peer_id");
@@ -145,49 +1127,187 @@ public class TrackerServer {
             long uploaded = ((Number) request.get("uploaded")).longValue();
             long downloaded = ((Number) request.get("downloaded")).longValue();
             long left = ((Number) request.get("left")).longValue();
+            boolean compact = request.get("compact") instanceof Number && ((Number) request.get("compact")).intValue() == 1;
+            int numWant = request.get("numwant") instanceof Number
+                ? (int) Math.min(((Number) request.get("numwant")).longValue(), MAX_NUMWANT) : DEFAULT_NUMWANT;
+            long now = System.currentTimeMillis();
 
-            // Cập nhật thông tin peer
-            PeerInfo peer = new PeerInfo(peerId, infoHash, port, uploaded, downloaded, left);
-            List<PeerInfo> peers = filePeers.computeIfAbsent(infoHash, k -> new ArrayList<>());
-            peers.removeIf(p -> p.getPeerId().equals(peerId));
-            peers.add(peer);
+            if ("stopped".equals(request.get("event"))) {
+                // Leaving the swarm: gone from the counters and other peers' lists right away
+                if (removePeer(infoHash, peerId) && log != null) {
+                    log.logStopped(infoHash, peerId);
+                }
+                SwarmStats stats = swarmStats.get(infoHash);
+                return Map.of(
+                    "interval", ANNOUNCE_INTERVAL_SECONDS,
+                    "min interval", MIN_ANNOUNCE_INTERVAL_SECONDS,
+                    "complete", stats == null ? 0 : stats.getComplete(),
+                    "incomplete", stats == null ? 0 : stats.getIncomplete(),
+                    "peers", encodePeers(Collections.emptyList(), peerId, compact, 0)
+                );
+            }
+
+            PeerInfo previous = findPeer(infoHash, peerId);
+            if (previous != null && now - previous.getLastAnnounce() < MIN_ANNOUNCE_INTERVAL_SECONDS * 1000L
+                && !(request.get("event") instanceof String && !((String) request.get("event")).isEmpty())
+                && Objects.equals(previous.getIp(), ip) && previous.getPort() == port
+                && (previous.getLeft() == 0) == (left == 0)) {
+                // Too early and nothing worth recording changed: no write, no peers
+                admission.onThrottled();
+                numWant = 0;
+            } else {
+                // Cập nhật thông tin peer
+                PeerInfo peer = new PeerInfo(peerId, infoHash, ip, port, uploaded, downloaded, left, now);
+                putPeer(peer);
+                if (log != null) {
+                    log.logAnnounce(peer);
+                }
+            }
 
             // Gửi danh sách peer
-            Map<String, Object> response = Map.of(
-                "interval", 1800,
-                "peers", peers
+            SwarmStats stats = swarmStats.get(infoHash);
+            return Map.of(
+                "interval", ANNOUNCE_INTERVAL_SECONDS,
+                "min interval", MIN_ANNOUNCE_INTERVAL_SECONDS,
+                "complete", stats.getComplete(),
+                "incomplete", stats.getIncomplete(),
+                "peers", encodePeers(filePeers.get(infoHash), peerId, compact, numWant)
             );
-            sendResponse(clientSocket, response);
         } catch (Exception e) {
             logger.error("Error handling announce", e);
-            sendError(clientSocket, "Announce failed");
+            return Map.of("error", "Announce failed");
+        }
+    }
+
+    /**
+     * Up to {@code numWant} other peers of the swarm, as 6-byte IPv4 entries
+     * when {@code compact} (BEP 23), otherwise as dictionaries.
+     */
+    private Object encodePeers(List<PeerInfo> peers, String requester, boolean compact, int numWant) {
+        ByteBuffer compactPeers = compact ? ByteBuffer.allocate(6 * Math.min(numWant, peers.size())) : null;
+        List<Map<String, Object>> peerList = compact ? null : new ArrayList<>();
+        int count = 0;
+        for (PeerInfo peer : peers) {
+            if (count == numWant) {
+                break;
+            }
+            if (peer.getPeerId().equals(requester) || peer.getIp() == null) {
+                continue;
+            }
+            if (compact) {
+                byte[] address = ipv4Bytes(peer.getIp());
+                if (address == null || !compactPeers.hasRemaining()) {
+                    continue;
+                }
+                compactPeers.put(address).putShort((short) peer.getPort());
+            } else {
+                peerList.add(Map.of("peer id", peer.getPeerId(), "ip", peer.getIp(), "port", peer.getPort()));
+            }
+            count++;
         }
+        return compact ? Arrays.copyOf(compactPeers.array(), compactPeers.position()) : peerList;
     }
 
-    private void sendResponse(SocketChannel clientSocket, Map<String, Object> response) {
+    private static byte[] ipv4Bytes(String ip) {
+        String[] parts = ip.split("\\.");
+        if (parts.length != 4) {
+            return null;
+        }
+        byte[] address = new byte[4];
         try {
-            byte[] responseData = BencodeParser.encode(response);
-            ByteBuffer buffer = ByteBuffer.wrap(responseData);
-            clientSocket.write(buffer);
-        } catch (IOException e) {
-            logger.error("Error sending response", e);
+            for (int i = 0; i < 4; i++) {
+                int part = Integer.parseInt(parts[i]);
+                if (part < 0 || part > 255) {
+                    return null;
+                }
+                address[i] = (byte) part;
+            }
+        } catch (NumberFormatException e) {
+            return null;
         }
+        return address;
     }
 
-    private void sendError(SocketChannel clientSocket, String message) {
+    /**
+     * Counters of the requested swarms, or of all of them when no
+     * {@code info_hashes} list is given, in one reply.
+     */
+    private Map<String, Object> handleScrape(Map<String, Object> request) {
         try {
-            Map<String, Object> error = Map.of("error", message);
-            byte[] errorData = BencodeParser.encode(error);
-            ByteBuffer buffer = ByteBuffer.wrap(errorData);
-            clientSocket.write(buffer);
-        } catch (IOException e) {
-            logger.error("Error sending error response", e);
+            Object requested = request.get("info_hashes");
+            Collection<?> infoHashes = requested instanceof List ? (List<?>) requested : swarmStats.keySet();
+            Map<String, Object> files = new LinkedHashMap<>();
+            for (Object infoHash : infoHashes) {
+                SwarmStats stats = swarmStats.get(infoHash);
+                if (stats != null) {
+                    files.put((String) infoHash, stats.toMap());
+                }
+            }
+            return Map.of("files", files);
+        } catch (Exception e) {
+            logger.error("Error handling scrape", e);
+            return Map.of("error", "Scrape failed");
+        }
+    }
+
+    /** Adds or replaces a peer's entry and moves its swarm's counters to match. */
+    private void putPeer(PeerInfo peer) {
+        List<PeerInfo> peers = filePeers.computeIfAbsent(peer.getInfoHash(), k -> new ArrayList<>());
+        PeerInfo previous = null;
+        for (Iterator<PeerInfo> it = peers.iterator(); it.hasNext(); ) {
+            PeerInfo existing = it.next();
+            if (existing.getPeerId().equals(peer.getPeerId())) {
+                previous = existing;
+                it.remove();
+                break;
+            }
+        }
+        peers.add(peer);
+        swarmStats.computeIfAbsent(peer.getInfoHash(), k -> new SwarmStats(0)).onTransition(previous, peer);
+    }
+
+    /** Takes a peer out of its swarm and the counters; false if it was not there. */
+    private boolean removePeer(String infoHash, String peerId) {
+        List<PeerInfo> peers = filePeers.get(infoHash);
+        if (peers == null) {
+            return false;
+        }
+        for (Iterator<PeerInfo> it = peers.iterator(); it.hasNext(); ) {
+            PeerInfo existing = it.next();
+            if (existing.getPeerId().equals(peerId)) {
+                it.remove();
+                if (peers.isEmpty()) {
+                    filePeers.remove(infoHash);
+                }
+                swarmStats.get(infoHash).onTransition(existing, null);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Drops peers that stopped announcing, taking them out of the counters too. */
+    private void expirePeers() {
+        long cutoff = System.currentTimeMillis() - PEER_TTL_MILLIS;
+        for (Map.Entry<String, List<PeerInfo>> swarm : filePeers.entrySet()) {
+            SwarmStats stats = swarmStats.get(swarm.getKey());
+            swarm.getValue().removeIf(peer -> {
+                if (peer.getLastAnnounce() >= cutoff) {
+                    return false;
+                }
+                stats.onTransition(peer, null);
+                return true;
+            });
         }
+        filePeers.values().removeIf(List::isEmpty);
     }
 
     public void stop() {
         running = false;
         try {
+            if (selector != null) {
+                selector.wakeup();
+            }
             if (serverSocket != null) {
                 serverSocket.close();
             }
@@ -196,7 +1316,44 @@ public class TrackerServer {
         }
     }
 
-    private static class FileInfo {
+    private static byte[] ascii(String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /** A client connection: the protocol is picked by its first byte, HTTP or a bencoded dictionary. */
+    private static class Connection {
+        private final SocketChannel channel;
+        private final String ip;
+        private final ByteBuffer in = ByteBuffer.allocate(BUFFER_SIZE);
+        private final Deque<Reply> out = new ArrayDeque<>();
+        private final HttpRequestParser parser = new HttpRequestParser(BUFFER_SIZE);
+        private SelectionKey key;
+        private boolean closeAfterWrite;
+        private long lastActive = System.currentTimeMillis();
+
+        Connection(SocketChannel channel, String ip) {
+            this.channel = channel;
+            this.ip = ip;
+        }
+
+        void queue(ByteBuffer data) {
+            reserve().data = data;
+        }
+
+        /** Holds a reply's place in the order while it is still being worked out. */
+        Reply reserve() {
+            Reply reply = new Reply();
+            out.add(reply);
+            return reply;
+        }
+    }
+
+    private static class Reply {
+        // Null until the reply is ready
+        private ByteBuffer data;
+    }
+
+    static class FileInfo {
         private final String fileName;
         private final String infoHash;
         private final long fileSize;
@@ -220,21 +1377,79 @@ public class TrackerServer {
         }
     }
 
-    private static class PeerInfo {
+    /** Seeders, leechers and completed downloads of one swarm. */
+    static class SwarmStats {
+        private final AtomicInteger complete = new AtomicInteger();
+        private final AtomicInteger incomplete = new AtomicInteger();
+        private final AtomicInteger downloaded;
+
+        SwarmStats(int downloaded) {
+            this.downloaded = new AtomicInteger(downloaded);
+        }
+
+        /**
+         * Moves the counters from a peer's previous entry (null for a new peer)
+         * to its new one (null when it leaves the swarm).
+         */
+        void onTransition(PeerInfo previous, PeerInfo next) {
+            if (previous != null) {
+                (previous.getLeft() == 0 ? complete : incomplete).decrementAndGet();
+            }
+            if (next != null) {
+                (next.getLeft() == 0 ? complete : incomplete).incrementAndGet();
+            }
+            if (isCompletion(previous, next)) {
+                downloaded.incrementAndGet();
+            }
+        }
+
+        /** A leecher whose {@code left} reached 0 finished its download. */
+        static boolean isCompletion(PeerInfo previous, PeerInfo next) {
+            return previous != null && previous.getLeft() > 0 && next != null && next.getLeft() == 0;
+        }
+
+        /** Completions counted by another node before the swarm moved here. */
+        void addDownloaded(int count) {
+            downloaded.addAndGet(count);
+        }
+
+        public int getComplete() {
+            return complete.get();
+        }
+
+        public int getIncomplete() {
+            return incomplete.get();
+        }
+
+        public int getDownloaded() {
+            return downloaded.get();
+        }
+
+        Map<String, Object> toMap() {
+            return Map.of("complete", getComplete(), "incomplete", getIncomplete(), "downloaded", getDownloaded());
+        }
+    }
+
+    static class PeerInfo {
         private final String peerId;
         private final String infoHash;
+        private final String ip;
         private final int port;
         private final long uploaded;
         private final long downloaded;
         private final long left;
+        private final long lastAnnounce;
 
-        public PeerInfo(String peerId, String infoHash, int port, long uploaded, long downloaded, long left) {
+        public PeerInfo(String peerId, String infoHash, String ip, int port, long uploaded, long downloaded,
+                        long left, long lastAnnounce) {
             this.peerId = peerId;
             this.infoHash = infoHash;
+            this.ip = ip;
             this.port = port;
             this.uploaded = uploaded;
             this.downloaded = downloaded;
             this.left = left;
+            this.lastAnnounce = lastAnnounce;
         }
 
         public String getPeerId() {
@@ -245,6 +1460,10 @@ public class TrackerServer {
             return infoHash;
         }
 
+        public String getIp() {
+            return ip;
+        }
+
         public int getPort() {
             return port;
         }
@@ -260,5 +1479,9 @@ public class TrackerServer {
         public long getLeft() {
             return left;
         }
+
+        public long getLastAnnounce() {
+            return lastAnnounce;
+        }
     }
 } 
\ No newline at end of file
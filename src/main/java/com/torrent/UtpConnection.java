@@ -0,0 +1,638 @@
+package com.torrent;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * One uTP (BEP 29) stream multiplexed over a {@link UtpSocketManager}.
+ *
+ * Congestion control is LEDBAT: the window grows while the measured one-way
+ * queueing delay is below {@link #TARGET_DELAY_MICROS} and shrinks as it goes
+ * above, so bulk transfers back off before they build queues that hurt other
+ * traffic. Losses are detected from selective ACKs, duplicate ACKs and timeouts.
+ */
+public class UtpConnection implements PeerTransport {
+    static final int VERSION = 1;
+    static final int ST_DATA = 0;
+    static final int ST_FIN = 1;
+    static final int ST_STATE = 2;
+    static final int ST_RESET = 3;
+    static final int ST_SYN = 4;
+    static final int HEADER_LENGTH = 20;
+    private static final int EXTENSION_SELECTIVE_ACK = 1;
+    private static final int SELECTIVE_ACK_BITS = 32;
+
+    private static final int MSS = 1400;
+    private static final int SEND_BUFFER_SIZE = 1024 * 1024;
+    private static final int RECEIVE_BUFFER_SIZE = 1024 * 1024;
+    private static final long TARGET_DELAY_MICROS = 100_000;
+    private static final long MAX_CWND_INCREASE_BYTES_PER_RTT = 3000;
+    private static final long MIN_CWND = MSS;
+    private static final long MAX_CWND = SEND_BUFFER_SIZE;
+    private static final long INITIAL_RTO_MILLIS = 1000;
+    private static final long MIN_RTO_MILLIS = 500;
+    private static final long MAX_RTO_MILLIS = 60_000;
+    private static final int MAX_TIMEOUTS = 8;
+    private static final long IDLE_TIMEOUT_MILLIS = 60_000;
+    private static final long CLOSE_TIMEOUT_MILLIS = 10_000;
+    private static final long BASE_DELAY_WINDOW_MILLIS = 60_000;
+
+    private enum State { SYN_SENT, CONNECTED, RESET, CLOSED }
+
+    private final UtpSocketManager manager;
+    private final InetSocketAddress remote;
+    private final int recvId;
+    private final int sendId;
+    private State state;
+    private int seqNr;
+    private int ackNr;
+    private long replyMicros;
+    private long peerWindow = MSS;
+    private long cwnd = 2 * MSS;
+
+    private final ByteBuffer sendBuffer = ByteBuffer.allocate(SEND_BUFFER_SIZE);
+    private final ByteBuffer receiveBuffer = ByteBuffer.allocate(RECEIVE_BUFFER_SIZE);
+    private final LinkedHashMap<Integer, OutPacket> inFlight = new LinkedHashMap<>();
+    private final TreeMap<Integer, byte[]> outOfOrder = new TreeMap<>();
+    private long bytesInFlight;
+    private int outOfOrderBytes;
+
+    private long rttMillis;
+    private long rttVarMillis;
+    private long rtoMillis = INITIAL_RTO_MILLIS;
+    private int timeouts;
+    private int lastAck = -1;
+    private int duplicateAcks;
+    private int lossRecoverySeq = -1;
+
+    // Minimum delay sample per minute over the last two minutes
+    private final long[] baseDelayHistory = { Long.MAX_VALUE, Long.MAX_VALUE };
+    private long baseDelayWindowStart = System.currentTimeMillis();
+
+    private boolean finReceived;
+    private int finSeq;
+    private boolean eof;
+    private boolean closing;
+    private boolean finSent;
+    private long closeRequestedAt;
+    private long lastReceivedAt = System.currentTimeMillis();
+    private long lastSentAt;
+    private boolean windowClosedAdvertised;
+
+    UtpConnection(UtpSocketManager manager, InetSocketAddress remote, int recvId, int sendId, int initialSeq) {
+        this.manager = manager;
+        this.remote = remote;
+        this.recvId = recvId;
+        this.sendId = sendId;
+        this.seqNr = initialSeq;
+        this.state = State.SYN_SENT;
+    }
+
+    InetSocketAddress getRemote() {
+        return remote;
+    }
+
+    int getRecvId() {
+        return recvId;
+    }
+
+    public synchronized long getCongestionWindow() {
+        return cwnd;
+    }
+
+    public synchronized long getRttMillis() {
+        return rttMillis;
+    }
+
+    // ---- application side ----
+
+    @Override
+    public synchronized int read(ByteBuffer dst) throws IOException {
+        checkNotReset();
+        receiveBuffer.flip();
+        int count = Math.min(dst.remaining(), receiveBuffer.remaining());
+        if (count > 0) {
+            int limit = receiveBuffer.limit();
+            receiveBuffer.limit(receiveBuffer.position() + count);
+            dst.put(receiveBuffer);
+            receiveBuffer.limit(limit);
+        }
+        receiveBuffer.compact();
+        if (count == 0) {
+            return eof ? -1 : 0;
+        }
+        if (windowClosedAdvertised && receiveBuffer.remaining() >= MSS) {
+            // Let a sender stalled on our zero window know it can continue
+            windowClosedAdvertised = false;
+            sendState();
+        }
+        return count;
+    }
+
+    @Override
+    public synchronized long read(ByteBuffer[] dsts, int offset, int length) throws IOException {
+        long total = 0;
+        for (int i = offset; i < offset + length; i++) {
+            int read = read(dsts[i]);
+            if (read < 0) {
+                return total == 0 ? -1 : total;
+            }
+            total += read;
+            if (dsts[i].hasRemaining()) {
+                break;
+            }
+        }
+        return total;
+    }
+
+    @Override
+    public long read(ByteBuffer[] dsts) throws IOException {
+        return read(dsts, 0, dsts.length);
+    }
+
+    @Override
+    public synchronized int write(ByteBuffer src) throws IOException {
+        checkNotReset();
+        if (closing) {
+            throw new ClosedChannelException();
+        }
+        int count = Math.min(src.remaining(), sendBuffer.remaining());
+        if (count > 0) {
+            int limit = src.limit();
+            src.limit(src.position() + count);
+            sendBuffer.put(src);
+            src.limit(limit);
+            flush();
+        }
+        return count;
+    }
+
+    @Override
+    public synchronized long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+        long total = 0;
+        for (int i = offset; i < offset + length; i++) {
+            total += write(srcs[i]);
+            if (srcs[i].hasRemaining()) {
+                break;
+            }
+        }
+        return total;
+    }
+
+    @Override
+    public long write(ByteBuffer[] srcs) throws IOException {
+        return write(srcs, 0, srcs.length);
+    }
+
+    @Override
+    public synchronized void awaitReady(long timeoutMillis, boolean readInterest, boolean writeInterest)
+            throws IOException {
+        boolean ready = (readInterest && (receiveBuffer.position() > 0 || eof)) || state != State.CONNECTED
+            || (writeInterest && sendBuffer.hasRemaining());
+        if (!ready) {
+            try {
+                wait(Math.max(1, timeoutMillis));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted waiting for " + remote, e);
+            }
+        }
+    }
+
+    @Override
+    public InetSocketAddress getRemoteAddress() {
+        return remote;
+    }
+
+    @Override
+    public synchronized boolean isOpen() {
+        return state == State.CONNECTED && !closing;
+    }
+
+    /** Sends a FIN once all buffered data has been transmitted. */
+    @Override
+    public synchronized void close() {
+        if (closing || state == State.RESET || state == State.CLOSED) {
+            return;
+        }
+        closing = true;
+        closeRequestedAt = System.currentTimeMillis();
+        if (state == State.CONNECTED) {
+            flush();
+        } else {
+            reset();
+        }
+    }
+
+    synchronized void reset() {
+        if (state != State.RESET && state != State.CLOSED) {
+            sendHeader(ST_RESET, sendId, seqNr, null);
+        }
+        state = State.RESET;
+        notifyAll();
+        manager.remove(this);
+    }
+
+    synchronized boolean awaitConnected(long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (state == State.SYN_SENT) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                return false;
+            }
+            wait(remaining);
+        }
+        return state == State.CONNECTED;
+    }
+
+    // ---- network side ----
+
+    synchronized void sendSyn() {
+        // The SYN carries our receive id and consumes one sequence number
+        sendHeader(ST_SYN, recvId, seqNr, null);
+    }
+
+    synchronized void sendReset(int ack) {
+        sendReset(manager, remote, sendId, ack);
+    }
+
+    static void sendReset(UtpSocketManager manager, InetSocketAddress remote, int connectionId, int ack) {
+        ByteBuffer packet = ByteBuffer.allocate(HEADER_LENGTH);
+        packet.put((byte) (ST_RESET << 4 | VERSION));
+        packet.put((byte) 0);
+        packet.putShort((short) connectionId);
+        packet.putInt((int) nowMicros());
+        packet.putInt(0);
+        packet.putInt(0);
+        packet.putShort((short) 0);
+        packet.putShort((short) ack);
+        packet.flip();
+        manager.send(packet, remote);
+    }
+
+    synchronized void onPacket(ByteBuffer packet) {
+        int type = (packet.get() & 0xFF) >>> 4;
+        int extension = packet.get() & 0xFF;
+        packet.getShort();
+        long timestamp = packet.getInt() & 0xFFFFFFFFL;
+        long timestampDiff = packet.getInt() & 0xFFFFFFFFL;
+        long window = packet.getInt() & 0xFFFFFFFFL;
+        int seq = packet.getShort() & 0xFFFF;
+        int ack = packet.getShort() & 0xFFFF;
+        byte[] selectiveAck = null;
+        while (extension != 0 && packet.remaining() >= 2) {
+            int next = packet.get() & 0xFF;
+            int length = packet.get() & 0xFF;
+            if (packet.remaining() < length) {
+                return;
+            }
+            if (extension == EXTENSION_SELECTIVE_ACK) {
+                selectiveAck = new byte[length];
+                packet.get(selectiveAck);
+            } else {
+                packet.position(packet.position() + length);
+            }
+            extension = next;
+        }
+
+        lastReceivedAt = System.currentTimeMillis();
+        replyMicros = (nowMicros() - timestamp) & 0xFFFFFFFFL;
+        peerWindow = window;
+
+        if (type == ST_RESET) {
+            state = State.RESET;
+            notifyAll();
+            return;
+        }
+        if (type == ST_SYN) {
+            if (state == State.SYN_SENT) {
+                // Incoming connection: our first data packet reuses seqNr, as the SYN-ACK does not consume it
+                ackNr = seq;
+                state = State.CONNECTED;
+            }
+            sendState();
+            notifyAll();
+            return;
+        }
+        if (state == State.SYN_SENT) {
+            if (type != ST_STATE) {
+                return;
+            }
+            state = State.CONNECTED;
+            ackNr = (seq - 1) & 0xFFFF;
+            seqNr = (seqNr + 1) & 0xFFFF;
+            notifyAll();
+        }
+
+        processAck(ack, selectiveAck, timestampDiff);
+
+        if (type == ST_DATA) {
+            int payloadLength = packet.remaining();
+            byte[] payload = new byte[payloadLength];
+            packet.get(payload);
+            handleData(seq, payload);
+            sendState();
+        } else if (type == ST_FIN) {
+            finReceived = true;
+            finSeq = seq;
+            deliverInOrder();
+            sendState();
+        }
+        flush();
+        notifyAll();
+    }
+
+    /** Returns false once the connection is finished and can be dropped by the manager. */
+    synchronized boolean onTick(long now) {
+        if (state == State.RESET || state == State.CLOSED) {
+            return false;
+        }
+        if (closing && finSent && inFlight.isEmpty()) {
+            state = State.CLOSED;
+            return false;
+        }
+        if (closing && now - closeRequestedAt > CLOSE_TIMEOUT_MILLIS) {
+            reset();
+            return false;
+        }
+        if (now - lastReceivedAt > IDLE_TIMEOUT_MILLIS) {
+            reset();
+            return false;
+        }
+        if (state != State.CONNECTED) {
+            return true;
+        }
+        if (!inFlight.isEmpty()) {
+            OutPacket oldest = inFlight.values().iterator().next();
+            if (now - oldest.sentAtMillis > rtoMillis) {
+                if (++timeouts > MAX_TIMEOUTS) {
+                    reset();
+                    return false;
+                }
+                // Timeout: collapse the window and resend everything outstanding
+                cwnd = MIN_CWND;
+                rtoMillis = Math.min(rtoMillis * 2, MAX_RTO_MILLIS);
+                for (OutPacket packet : inFlight.values()) {
+                    packet.needsResend = true;
+                }
+                flush();
+            }
+        } else if (sendBuffer.position() > 0 && peerWindow < MSS && now - lastSentAt > rtoMillis) {
+            // Zero-window probe
+            peerWindow = MSS;
+            flush();
+        }
+        return true;
+    }
+
+    private void processAck(int ack, byte[] selectiveAck, long delaySample) {
+        long nowMillis = System.currentTimeMillis();
+        long bytesAcked = 0;
+        Iterator<OutPacket> it = inFlight.values().iterator();
+        while (it.hasNext()) {
+            OutPacket packet = it.next();
+            if (!seqLessOrEqual(packet.seq, ack)) {
+                break;
+            }
+            it.remove();
+            bytesInFlight -= packet.payload.length;
+            bytesAcked += packet.payload.length;
+            if (packet.transmissions == 1) {
+                updateRtt(nowMillis - packet.sentAtMillis);
+            }
+        }
+
+        int selectivelyAcked = 0;
+        if (selectiveAck != null) {
+            for (int i = 0; i < selectiveAck.length * 8; i++) {
+                if ((selectiveAck[i / 8] & (1 << (i % 8))) == 0) {
+                    continue;
+                }
+                selectivelyAcked++;
+                OutPacket packet = inFlight.remove((ack + 2 + i) & 0xFFFF);
+                if (packet != null) {
+                    bytesInFlight -= packet.payload.length;
+                    bytesAcked += packet.payload.length;
+                }
+            }
+        }
+
+        if (ack == lastAck && bytesAcked == 0 && !inFlight.isEmpty()) {
+            duplicateAcks++;
+        } else {
+            duplicateAcks = 0;
+        }
+        lastAck = ack;
+
+        int missing = (ack + 1) & 0xFFFF;
+        OutPacket lost = inFlight.get(missing);
+        if (lost != null && (selectivelyAcked >= 3 || duplicateAcks >= 3)) {
+            lost.needsResend = true;
+            if (lossRecoverySeq < 0 || !seqLessOrEqual(missing, lossRecoverySeq)) {
+                // Halve at most once per window of data
+                cwnd = Math.max(MIN_CWND, cwnd / 2);
+                lossRecoverySeq = (seqNr - 1) & 0xFFFF;
+            }
+            duplicateAcks = 0;
+        }
+
+        if (bytesAcked > 0) {
+            timeouts = 0;
+            applyLedbat(bytesAcked, delaySample);
+        }
+    }
+
+    /**
+     * LEDBAT window update: off_target scales a per-RTT gain of
+     * {@link #MAX_CWND_INCREASE_BYTES_PER_RTT} by the fraction of the window acked.
+     */
+    private void applyLedbat(long bytesAcked, long delaySample) {
+        if (delaySample == 0) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        if (now - baseDelayWindowStart > BASE_DELAY_WINDOW_MILLIS) {
+            baseDelayHistory[1] = baseDelayHistory[0];
+            baseDelayHistory[0] = Long.MAX_VALUE;
+            baseDelayWindowStart = now;
+        }
+        baseDelayHistory[0] = Math.min(baseDelayHistory[0], delaySample);
+        long baseDelay = Math.min(baseDelayHistory[0], baseDelayHistory[1]);
+        long ourDelay = Math.max(0, delaySample - baseDelay);
+
+        double delayFactor = (double) (TARGET_DELAY_MICROS - ourDelay) / TARGET_DELAY_MICROS;
+        double windowFactor = (double) bytesAcked / Math.max(cwnd, MSS);
+        long gain = (long) (MAX_CWND_INCREASE_BYTES_PER_RTT * delayFactor * windowFactor);
+        cwnd = Math.max(MIN_CWND, Math.min(MAX_CWND, cwnd + gain));
+    }
+
+    private void updateRtt(long sampleMillis) {
+        if (rttMillis == 0) {
+            rttMillis = sampleMillis;
+            rttVarMillis = sampleMillis / 2;
+        } else {
+            long delta = rttMillis - sampleMillis;
+            rttVarMillis += (Math.abs(delta) - rttVarMillis) / 4;
+            rttMillis += (sampleMillis - rttMillis) / 8;
+        }
+        rtoMillis = Math.max(MIN_RTO_MILLIS, Math.min(MAX_RTO_MILLIS, rttMillis + 4 * rttVarMillis));
+    }
+
+    private void handleData(int seq, byte[] payload) {
+        int expected = (ackNr + 1) & 0xFFFF;
+        if (seq == expected) {
+            if (receiveBuffer.remaining() < payload.length) {
+                return; // No room: the sender retransmits once our window reopens
+            }
+            receiveBuffer.put(payload);
+            ackNr = seq;
+            deliverInOrder();
+        } else if (!seqLessOrEqual(seq, ackNr) && !outOfOrder.containsKey(seq)
+                && outOfOrderBytes + payload.length <= receiveBuffer.remaining()) {
+            int distance = (seq - expected) & 0xFFFF;
+            if (distance <= SELECTIVE_ACK_BITS * 8) {
+                outOfOrder.put(seq, payload);
+                outOfOrderBytes += payload.length;
+            }
+        }
+    }
+
+    private void deliverInOrder() {
+        while (true) {
+            int next = (ackNr + 1) & 0xFFFF;
+            byte[] payload = outOfOrder.get(next);
+            if (payload != null && receiveBuffer.remaining() >= payload.length) {
+                outOfOrder.remove(next);
+                outOfOrderBytes -= payload.length;
+                receiveBuffer.put(payload);
+                ackNr = next;
+            } else if (finReceived && next == finSeq) {
+                ackNr = finSeq;
+                eof = true;
+                return;
+            } else {
+                return;
+            }
+        }
+    }
+
+    private void flush() {
+        if (state != State.CONNECTED) {
+            return;
+        }
+        for (OutPacket packet : inFlight.values()) {
+            if (packet.needsResend) {
+                transmit(packet);
+            }
+        }
+        long window = Math.min(cwnd, peerWindow);
+        sendBuffer.flip();
+        while (sendBuffer.hasRemaining()) {
+            int size = Math.min(MSS, sendBuffer.remaining());
+            if (bytesInFlight + size > window && !(inFlight.isEmpty() && peerWindow > 0)) {
+                break;
+            }
+            byte[] payload = new byte[size];
+            sendBuffer.get(payload);
+            OutPacket packet = new OutPacket(ST_DATA, seqNr, payload);
+            seqNr = (seqNr + 1) & 0xFFFF;
+            inFlight.put(packet.seq, packet);
+            bytesInFlight += size;
+            transmit(packet);
+        }
+        sendBuffer.compact();
+        if (closing && !finSent && sendBuffer.position() == 0) {
+            OutPacket fin = new OutPacket(ST_FIN, seqNr, new byte[0]);
+            seqNr = (seqNr + 1) & 0xFFFF;
+            inFlight.put(fin.seq, fin);
+            transmit(fin);
+            finSent = true;
+        }
+    }
+
+    private void transmit(OutPacket packet) {
+        packet.sentAtMillis = System.currentTimeMillis();
+        packet.transmissions++;
+        packet.needsResend = false;
+        sendHeader(packet.type, sendId, packet.seq, packet.payload);
+    }
+
+    private void sendState() {
+        sendHeader(ST_STATE, sendId, seqNr, null);
+    }
+
+    private void sendHeader(int type, int connectionId, int seq, byte[] payload) {
+        byte[] selectiveAck = null;
+        if (!outOfOrder.isEmpty() && type == ST_STATE) {
+            selectiveAck = new byte[SELECTIVE_ACK_BITS / 8];
+            int base = (ackNr + 2) & 0xFFFF;
+            for (int received : outOfOrder.keySet()) {
+                int bit = (received - base) & 0xFFFF;
+                if (bit < SELECTIVE_ACK_BITS) {
+                    selectiveAck[bit / 8] |= (byte) (1 << (bit % 8));
+                }
+            }
+        }
+        int length = HEADER_LENGTH + (selectiveAck == null ? 0 : 2 + selectiveAck.length)
+            + (payload == null ? 0 : payload.length);
+        ByteBuffer packet = ByteBuffer.allocate(length);
+        packet.put((byte) (type << 4 | VERSION));
+        packet.put((byte) (selectiveAck == null ? 0 : EXTENSION_SELECTIVE_ACK));
+        packet.putShort((short) connectionId);
+        packet.putInt((int) nowMicros());
+        packet.putInt((int) replyMicros);
+        long window = Math.max(0, receiveBuffer.remaining() - outOfOrderBytes);
+        if (window < MSS) {
+            windowClosedAdvertised = true;
+        }
+        packet.putInt((int) window);
+        packet.putShort((short) seq);
+        packet.putShort((short) ackNr);
+        if (selectiveAck != null) {
+            packet.put((byte) 0);
+            packet.put((byte) selectiveAck.length);
+            packet.put(selectiveAck);
+        }
+        if (payload != null) {
+            packet.put(payload);
+        }
+        packet.flip();
+        lastSentAt = System.currentTimeMillis();
+        manager.send(packet, remote);
+    }
+
+    private void checkNotReset() throws IOException {
+        if (state == State.RESET) {
+            throw new IOException("uTP connection reset by " + remote);
+        }
+    }
+
+    private static boolean seqLessOrEqual(int a, int b) {
+        return ((b - a) & 0xFFFF) < 0x8000;
+    }
+
+    static long nowMicros() {
+        return (System.nanoTime() / 1000) & 0xFFFFFFFFL;
+    }
+
+    private static class OutPacket {
+        private final int type;
+        private final int seq;
+        private final byte[] payload;
+        private long sentAtMillis;
+        private int transmissions;
+        private boolean needsResend;
+
+        OutPacket(int type, int seq, byte[] payload) {
+            this.type = type;
+            this.seq = seq;
+            this.payload = payload;
+        }
+    }
+}
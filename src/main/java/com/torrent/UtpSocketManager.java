@@ -0,0 +1,219 @@
+package com.torrent;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Owns the single UDP socket used for uTP (BEP 29) and multiplexes any number
+ * of {@link UtpConnection}s over it, keyed by remote address and connection id.
+ * One thread receives packets and drives retransmission timers.
+ */
+public class UtpSocketManager implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(UtpSocketManager.class);
+    private static final long TICK_MILLIS = 50;
+    private static final int MAX_PACKET_SIZE = 65536;
+    private static final int MAX_PENDING_ACCEPTS = 64;
+    private static final int SYN_RETRIES = 3;
+
+    private final DatagramChannel channel;
+    private final Selector selector;
+    private final Map<ConnectionKey, UtpConnection> connections = new ConcurrentHashMap<>();
+    private final BlockingQueue<UtpConnection> acceptQueue = new LinkedBlockingQueue<>(MAX_PENDING_ACCEPTS);
+    private final SecureRandom random = new SecureRandom();
+    private Thread thread;
+    private volatile boolean running;
+
+    public UtpSocketManager(int port) throws IOException {
+        channel = DatagramChannel.open();
+        channel.bind(new InetSocketAddress(port));
+        channel.configureBlocking(false);
+        selector = Selector.open();
+        channel.register(selector, SelectionKey.OP_READ);
+    }
+
+    public void start() {
+        running = true;
+        thread = new Thread(this::loop, "utp-socket");
+        thread.setDaemon(true);
+        thread.start();
+        logger.info("uTP listening on UDP port {}", getPort());
+    }
+
+    public int getPort() {
+        try {
+            return ((InetSocketAddress) channel.getLocalAddress()).getPort();
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+
+    /** Opens an outgoing connection, waiting for the peer's SYN acknowledgement. */
+    public UtpConnection connect(InetSocketAddress address, long timeoutMillis) throws IOException {
+        UtpConnection connection;
+        synchronized (connections) {
+            int recvId;
+            do {
+                recvId = random.nextInt(0x10000);
+            } while (connections.containsKey(new ConnectionKey(address, recvId)));
+            connection = new UtpConnection(this, address, recvId, (recvId + 1) & 0xFFFF, random.nextInt(0x10000));
+            connections.put(new ConnectionKey(address, recvId), connection);
+        }
+        try {
+            for (int attempt = 0; attempt < SYN_RETRIES; attempt++) {
+                connection.sendSyn();
+                if (connection.awaitConnected(timeoutMillis / SYN_RETRIES)) {
+                    return connection;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        connection.reset();
+        throw new IOException("uTP connect to " + address + " timed out");
+    }
+
+    /** Returns the next incoming connection, or null if none arrived within the timeout. */
+    public UtpConnection accept(long timeoutMillis) throws InterruptedException {
+        return acceptQueue.poll(timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    void send(ByteBuffer packet, InetSocketAddress address) {
+        try {
+            channel.send(packet, address);
+        } catch (IOException e) {
+            logger.debug("Error sending uTP packet to {}", address, e);
+        }
+    }
+
+    void remove(UtpConnection connection) {
+        connections.remove(new ConnectionKey(connection.getRemote(), connection.getRecvId()));
+    }
+
+    private void loop() {
+        ByteBuffer buffer = ByteBuffer.allocate(MAX_PACKET_SIZE);
+        long lastTick = System.currentTimeMillis();
+        while (running) {
+            try {
+                selector.select(TICK_MILLIS);
+                selector.selectedKeys().clear();
+                SocketAddress source;
+                buffer.clear();
+                while ((source = channel.receive(buffer)) != null) {
+                    buffer.flip();
+                    dispatch(buffer, (InetSocketAddress) source);
+                    buffer.clear();
+                }
+                long now = System.currentTimeMillis();
+                if (now - lastTick >= TICK_MILLIS) {
+                    lastTick = now;
+                    List<UtpConnection> finished = new ArrayList<>();
+                    for (UtpConnection connection : connections.values()) {
+                        if (!connection.onTick(now)) {
+                            finished.add(connection);
+                        }
+                    }
+                    for (UtpConnection connection : finished) {
+                        remove(connection);
+                    }
+                }
+            } catch (ClosedSelectorException e) {
+                return;
+            } catch (IOException e) {
+                if (running) {
+                    logger.warn("Error in uTP socket loop", e);
+                }
+            }
+        }
+    }
+
+    private void dispatch(ByteBuffer packet, InetSocketAddress source) {
+        if (packet.remaining() < UtpConnection.HEADER_LENGTH) {
+            return;
+        }
+        int typeVersion = packet.get(0) & 0xFF;
+        if ((typeVersion & 0x0F) != UtpConnection.VERSION) {
+            return;
+        }
+        int type = typeVersion >>> 4;
+        int connectionId = packet.getShort(2) & 0xFFFF;
+        if (type == UtpConnection.ST_SYN) {
+            ConnectionKey key = new ConnectionKey(source, (connectionId + 1) & 0xFFFF);
+            UtpConnection existing = connections.get(key);
+            if (existing != null) {
+                existing.onPacket(packet);
+                return;
+            }
+            UtpConnection incoming = new UtpConnection(this, source, (connectionId + 1) & 0xFFFF, connectionId,
+                random.nextInt(0x10000));
+            if (!acceptQueue.offer(incoming)) {
+                incoming.sendReset(packet.getShort(16) & 0xFFFF);
+                return;
+            }
+            connections.put(key, incoming);
+            incoming.onPacket(packet);
+            return;
+        }
+        UtpConnection connection = connections.get(new ConnectionKey(source, connectionId));
+        if (connection != null) {
+            connection.onPacket(packet);
+        } else if (type != UtpConnection.ST_RESET) {
+            UtpConnection.sendReset(this, source, connectionId, packet.getShort(16) & 0xFFFF);
+        }
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        for (UtpConnection connection : connections.values()) {
+            connection.reset();
+        }
+        try {
+            selector.close();
+            channel.close();
+        } catch (IOException e) {
+            logger.error("Error closing uTP socket", e);
+        }
+    }
+
+    private static class ConnectionKey {
+        private final InetSocketAddress address;
+        private final int connectionId;
+
+        ConnectionKey(InetSocketAddress address, int connectionId) {
+            this.address = address;
+            this.connectionId = connectionId;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof ConnectionKey)) {
+                return false;
+            }
+            ConnectionKey other = (ConnectionKey) o;
+            return connectionId == other.connectionId && address.equals(other.address);
+        }
+
+        @Override
+        public int hashCode() {
+            return address.hashCode() * 31 + connectionId;
+        }
+    }
+}
@@ -0,0 +1,150 @@
+package com.torrent;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * An HTTP server holding the torrent's files (BEP 19). Pieces are fetched
+ * with range requests; a piece spanning several files becomes one request per
+ * file, sent in parallel. Connections come from the shared {@link HttpClient},
+ * which keeps them alive between requests.
+ */
+public class WebSeed {
+    private static final Duration REQUEST_TIMEOUT = Duration.ofSeconds(30);
+
+    private final String url;
+    private final HttpClient client;
+    private final long pieceLength;
+    private final List<FileEntry> entries = new ArrayList<>();
+
+    public WebSeed(String url, TorrentFile.Info info, HttpClient client) {
+        this.url = url;
+        this.client = client;
+        this.pieceLength = info.getPieceLength();
+        if (info.getFiles() != null) {
+            // Multi-file torrents live under <url>/<name>/<path>
+            StringBuilder base = new StringBuilder(url);
+            if (!url.endsWith("/")) {
+                base.append('/');
+            }
+            base.append(encodeSegment(info.getName()));
+            long offset = 0;
+            for (TorrentFile.Info.FileInfo file : info.getFiles()) {
+                if (file.isPadding()) {
+                    // Not on the server; the piece buffer already holds the zeros
+                    offset += file.getLength();
+                    continue;
+                }
+                StringBuilder path = new StringBuilder(base);
+                for (String segment : file.getPath()) {
+                    path.append('/').append(encodeSegment(segment));
+                }
+                entries.add(new FileEntry(URI.create(path.toString()), offset, file.getLength()));
+                offset += file.getLength();
+            }
+        } else {
+            // A URL ending in a slash names a directory holding the file
+            String fileUrl = url.endsWith("/") ? url + encodeSegment(info.getName()) : url;
+            entries.add(new FileEntry(URI.create(fileUrl), 0, info.getLength()));
+        }
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    /** Downloads a piece into {@code dst}, which must be exactly the piece's size. */
+    public void fetch(int pieceIndex, byte[] dst) throws IOException {
+        long start = (long) pieceIndex * pieceLength;
+        long end = start + dst.length;
+        List<CompletableFuture<Void>> ranges = new ArrayList<>();
+        for (FileEntry entry : entries) {
+            if (entry.length == 0 || entry.offset + entry.length <= start || entry.offset >= end) {
+                continue;
+            }
+            long from = Math.max(start, entry.offset);
+            long to = Math.min(end, entry.offset + entry.length);
+            ranges.add(fetchRange(entry, from - entry.offset, (int) (to - from), dst, (int) (from - start)));
+        }
+        try {
+            CompletableFuture.allOf(ranges.toArray(new CompletableFuture<?>[0])).get();
+        } catch (InterruptedException e) {
+            ranges.forEach(range -> range.cancel(true));
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted fetching piece " + pieceIndex + " from " + url);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw cause instanceof IOException ? (IOException) cause
+                : new IOException("Error fetching piece " + pieceIndex + " from " + url, cause);
+        }
+    }
+
+    private CompletableFuture<Void> fetchRange(FileEntry entry, long fileOffset, int length, byte[] dst, int dstOffset) {
+        HttpRequest request = HttpRequest.newBuilder(entry.uri)
+            .timeout(REQUEST_TIMEOUT)
+            .header("Range", "bytes=" + fileOffset + "-" + (fileOffset + length - 1))
+            .GET()
+            .build();
+        // A server that ignores the range sends the whole file; only take that when
+        // the whole file is what we asked for, otherwise don't read the body at all
+        boolean wholeFile = fileOffset == 0 && length == entry.length;
+        HttpResponse.BodyHandler<byte[]> handler = info -> info.statusCode() == 206
+                || (info.statusCode() == 200 && wholeFile)
+            ? HttpResponse.BodySubscribers.ofByteArray()
+            : HttpResponse.BodySubscribers.replacing(null);
+        return client.sendAsync(request, handler).thenAccept(response -> {
+            byte[] body = response.body();
+            if (body != null && body.length == length) {
+                System.arraycopy(body, 0, dst, dstOffset, length);
+            } else {
+                throw new CompletionException(new IOException("HTTP " + response.statusCode() + " for "
+                    + entry.uri + " bytes " + fileOffset + "+" + length
+                    + (body != null ? ", got " + body.length + " bytes" : "")));
+            }
+        });
+    }
+
+    /** Percent-encodes one path segment; torrent strings hold the raw UTF-8 bytes. */
+    private static String encodeSegment(String segment) {
+        StringBuilder encoded = new StringBuilder();
+        for (byte b : segment.getBytes(StandardCharsets.ISO_8859_1)) {
+            int c = b & 0xFF;
+            if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')
+                    || c == '-' || c == '.' || c == '_' || c == '~') {
+                encoded.append((char) c);
+            } else {
+                encoded.append('%').append(Character.toUpperCase(Character.forDigit(c >> 4, 16)))
+                    .append(Character.toUpperCase(Character.forDigit(c & 0xF, 16)));
+            }
+        }
+        return encoded.toString();
+    }
+
+    @Override
+    public String toString() {
+        return "WebSeed[" + url + "]";
+    }
+
+    private static class FileEntry {
+        private final URI uri;
+        private final long offset;
+        private final long length;
+
+        FileEntry(URI uri, long offset, long length) {
+            this.uri = uri;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+}